@@ -20,13 +20,18 @@ package com.wire.bots.sdk;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.wire.bots.sdk.assets.IAsset;
+import com.wire.bots.sdk.assets.IStreamingAsset;
+import com.wire.bots.sdk.assets.MultipartStream;
 import com.wire.bots.sdk.exceptions.HttpException;
 import com.wire.bots.sdk.models.AssetKey;
 import com.wire.bots.sdk.models.otr.*;
 import com.wire.bots.sdk.server.model.Conversation;
 import com.wire.bots.sdk.server.model.NewBotResponseModel;
 import com.wire.bots.sdk.server.model.User;
+import com.wire.bots.sdk.tools.Futures;
 import com.wire.bots.sdk.tools.Util;
+import org.glassfish.jersey.client.ClientProperties;
+import org.glassfish.jersey.client.RequestEntityProcessing;
 import org.glassfish.jersey.media.multipart.BodyPart;
 import org.glassfish.jersey.media.multipart.MultiPart;
 
@@ -37,13 +42,16 @@ import javax.ws.rs.client.WebTarget;
 import javax.ws.rs.core.*;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.UUID;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 
-public class API implements Backend {
+public class API implements Backend, AsyncBackend {
 
     private final WebTarget messages;
     private final WebTarget assets;
@@ -54,9 +62,18 @@ public class API implements Backend {
     private final WebTarget bot;
 
     private final String token;
+    private final OtrTransport transport;
 
     public API(Client httpClient, String token) {
+        this(httpClient, token, OtrTransport.JSON);
+    }
+
+    /**
+     * @param transport Wire format of the otr messages this client posts
+     */
+    public API(Client httpClient, String token, OtrTransport transport) {
         this.token = token;
+        this.transport = transport;
 
         bot = httpClient
                 .target(host())
@@ -101,7 +118,7 @@ public class API implements Backend {
                 .queryParam("ignore_missing", ignoreMissing)
                 .request(MediaType.APPLICATION_JSON)
                 .header(HttpHeaders.AUTHORIZATION, bearer())
-                .post(Entity.entity(msg, MediaType.APPLICATION_JSON));
+                .post(transport.entity(msg));
 
         int statusCode = response.getStatus();
         if (statusCode == 412) {
@@ -122,7 +139,7 @@ public class API implements Backend {
                 .queryParam("report_missing", userId)
                 .request(MediaType.APPLICATION_JSON)
                 .header(HttpHeaders.AUTHORIZATION, bearer())
-                .post(Entity.entity(msg, MediaType.APPLICATION_JSON));
+                .post(transport.entity(msg));
 
         int statusCode = response.getStatus();
         if (statusCode == 412) {
@@ -137,6 +154,52 @@ public class API implements Backend {
         return response.readEntity(Devices.class);
     }
 
+    @Override
+    public CompletionStage<Devices> sendMessageAsync(OtrMessage msg, Boolean ignoreMissing) {
+        WebTarget target = ignoreMissing != null ? messages.queryParam("ignore_missing", ignoreMissing) : messages;
+        Invocation.Builder req = target
+                .request(MediaType.APPLICATION_JSON)
+                .header(HttpHeaders.AUTHORIZATION, bearer());
+
+        return Futures.post(req, transport.entity(msg)).thenApply(API::devices);
+    }
+
+    @Override
+    public CompletionStage<Devices> sendPartialMessageAsync(OtrMessage msg, UUID userId) {
+        Invocation.Builder req = messages
+                .queryParam("report_missing", userId)
+                .request(MediaType.APPLICATION_JSON)
+                .header(HttpHeaders.AUTHORIZATION, bearer());
+
+        return Futures.post(req, transport.entity(msg)).thenApply(API::devices);
+    }
+
+    @Override
+    public CompletionStage<PreKeys> getPreKeysAsync(Missing missing) {
+        Invocation.Builder req = prekeys
+                .request(MediaType.APPLICATION_JSON)
+                .header(HttpHeaders.AUTHORIZATION, bearer())
+                .accept(MediaType.APPLICATION_JSON);
+
+        return Futures.post(req, Entity.entity(missing, MediaType.APPLICATION_JSON)).thenApply(response -> {
+            if (response.getStatus() >= 400) {
+                HttpException e = new HttpException(response.readEntity(String.class), response.getStatus());
+                throw new CompletionException(e);
+            }
+            return response.readEntity(PreKeys.class);
+        });
+    }
+
+    // Same handling as sendMessage: 412 carries the missing devices
+    private static Devices devices(Response response) {
+        int statusCode = response.getStatus();
+        if (statusCode >= 400 && statusCode != 412) {
+            throw new CompletionException(new HttpException(response.readEntity(String.class), statusCode));
+        }
+
+        return response.readEntity(Devices.class);
+    }
+
     Collection<User> getUsers(Collection<UUID> ids) {
         return users
                 .queryParam("ids", ids.toArray())
@@ -240,6 +303,23 @@ public class API implements Backend {
         return response.readEntity(AssetKey.class);
     }
 
+    /**
+     * Streams the asset with chunked encoding, so neither the asset nor the request body is held in memory
+     */
+    public AssetKey uploadAsset(IStreamingAsset asset) throws HttpException {
+        Response response = assets
+                .request(MediaType.APPLICATION_JSON_TYPE)
+                .header(HttpHeaders.AUTHORIZATION, bearer())
+                .property(ClientProperties.REQUEST_ENTITY_PROCESSING, RequestEntityProcessing.CHUNKED)
+                .post(Entity.entity(new MultipartStream(asset), MultipartStream.MEDIA_TYPE));
+
+        if (response.getStatus() >= 400) {
+            throw new HttpException(response.readEntity(String.class), response.getStatus());
+        }
+
+        return response.readEntity(AssetKey.class);
+    }
+
     private MultiPart getMultiPart(IAsset asset) throws NoSuchAlgorithmException {
         MetaData metaData = new MetaData();
         metaData.retention = asset.getRetention();
@@ -275,6 +355,40 @@ public class API implements Backend {
         return response.readEntity(byte[].class);
     }
 
+    /**
+     * @param offset Number of bytes to skip. Requested with a Range header
+     * @return Stream of the encrypted asset starting at offset. Closing it releases the connection
+     */
+    public InputStream openAsset(String assetKey, String assetToken, long offset) throws HttpException, IOException {
+        Invocation.Builder req = assets
+                .path(assetKey)
+                .request()
+                .header(HttpHeaders.AUTHORIZATION, bearer());
+
+        if (assetToken != null)
+            req.header("Asset-Token", assetToken);
+        if (offset > 0)
+            req.header("Range", String.format("bytes=%d-", offset));
+
+        Response response = req.get();
+
+        if (response.getStatus() >= 400) {
+            throw new HttpException(response.readEntity(String.class), response.getStatus());
+        }
+
+        try {
+            InputStream input = response.readEntity(InputStream.class);
+            // The whole asset came back, the Range header was ignored
+            if (offset > 0 && response.getStatus() != Response.Status.PARTIAL_CONTENT.getStatusCode())
+                Util.skip(input, offset);
+            return input;
+        } catch (IOException | RuntimeException e) {
+            // Nobody gets the stream to close: release the connection here
+            response.close();
+            throw e;
+        }
+    }
+
     private String bearer() {
         return String.format("Bearer %s", token);
     }
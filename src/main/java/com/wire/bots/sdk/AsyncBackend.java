@@ -0,0 +1,23 @@
+package com.wire.bots.sdk;
+
+import com.wire.bots.sdk.models.otr.Devices;
+import com.wire.bots.sdk.models.otr.Missing;
+import com.wire.bots.sdk.models.otr.OtrMessage;
+import com.wire.bots.sdk.models.otr.PreKeys;
+
+import java.util.UUID;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Non-blocking counterpart of Backend. The stages complete on the http client's threads and fail with HttpException
+ */
+public interface AsyncBackend {
+    /**
+     * @param ignoreMissing NULL to only report the missing devices, as sendMessage(msg) does
+     */
+    CompletionStage<Devices> sendMessageAsync(OtrMessage msg, Boolean ignoreMissing);
+
+    CompletionStage<Devices> sendPartialMessageAsync(OtrMessage msg, UUID userId);
+
+    CompletionStage<PreKeys> getPreKeysAsync(Missing missing);
+}
@@ -0,0 +1,189 @@
+package com.wire.bots.sdk;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.wire.bots.sdk.assets.FileAssetPreview;
+import com.wire.bots.sdk.assets.IGeneric;
+import com.wire.bots.sdk.assets.MessageEphemeral;
+import com.wire.bots.sdk.assets.MessageText;
+import com.wire.bots.sdk.assets.Picture;
+import com.wire.bots.sdk.assets.Reaction;
+import com.wire.bots.sdk.assets.StreamingFileAsset;
+import com.wire.bots.sdk.models.AssetKey;
+import com.wire.bots.sdk.tools.Futures;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+/**
+ * Non-blocking variant of the WireClient send methods: the returned stage completes with the message id once the
+ * message was delivered, and fails with the HttpException or CryptoException the blocking method would throw.
+ * <p>
+ * At most maxInFlight sends of one bot run at the same time, shared by all the AsyncWireClients of that bot.
+ * Further sends queue up and start on the executor as earlier ones complete; the caller never waits for a slot.
+ * Encryption and asset uploads block (on a session lock, on the blocking http calls), so they run on the executor.
+ */
+public class AsyncWireClient {
+    public static final int MAX_IN_FLIGHT = 16;
+    private static final Cache<UUID, Limiter> limiters = CacheBuilder.newBuilder()
+            .weakValues()
+            .build();
+
+    private final WireClientBase base;
+    private final WireClient client;
+    private final Executor executor;
+    private final Limiter limiter;
+
+    public <C extends WireClientBase & WireClient> AsyncWireClient(C client, Executor executor) {
+        this(client, executor, MAX_IN_FLIGHT);
+    }
+
+    /**
+     * @param client      BotClient or UserClient
+     * @param executor    Runs the queued sends, the encryption and the asset uploads
+     * @param maxInFlight Max number of sends of this bot in flight. The first client of a bot sets it
+     */
+    public <C extends WireClientBase & WireClient> AsyncWireClient(C client, Executor executor, int maxInFlight) {
+        this.base = client;
+        this.client = client;
+        this.executor = executor;
+        this.limiter = limiters.asMap().computeIfAbsent(client.getId(), id -> new Limiter(maxInFlight));
+    }
+
+    public CompletionStage<UUID> send(IGeneric message) {
+        return limiter.submit(() -> base.postGenericMessageAsync(message, executor), executor)
+                .thenApply(v -> message.getMessageId());
+    }
+
+    public CompletionStage<UUID> send(IGeneric message, UUID userId) {
+        return limiter.submit(() -> base.postGenericMessageAsync(message, userId, executor), executor)
+                .thenApply(v -> message.getMessageId());
+    }
+
+    public CompletionStage<UUID> sendText(String txt) {
+        return send(new MessageText(txt));
+    }
+
+    public CompletionStage<UUID> sendText(String txt, long expires) {
+        return send(new MessageEphemeral(expires).setText(txt));
+    }
+
+    public CompletionStage<UUID> sendDirectText(String txt, UUID userId) {
+        return send(new MessageText(txt), userId);
+    }
+
+    public CompletionStage<UUID> sendReaction(UUID msgId, String emoji) {
+        return send(new Reaction(msgId, emoji));
+    }
+
+    public CompletionStage<UUID> sendPicture(byte[] bytes, String mimeType) {
+        return limiter.submit(() -> upload(() -> {
+            Picture image = new Picture(bytes, mimeType);
+            AssetKey assetKey = client.uploadAsset(image);
+            image.setAssetKey(assetKey.key);
+            image.setAssetToken(assetKey.token);
+            return image;
+        }).thenCompose(image -> base.postGenericMessageAsync(image, executor).thenApply(v -> image.getMessageId())),
+                executor);
+    }
+
+    public CompletionStage<UUID> sendFile(File f, String mime) {
+        UUID messageId = UUID.randomUUID();
+        FileAssetPreview preview = new FileAssetPreview(f.getName(), mime, f.length(), messageId);
+
+        return limiter.submit(() -> base.postGenericMessageAsync(preview, executor)
+                .thenCompose(v -> upload(() -> {
+                    StreamingFileAsset asset = new StreamingFileAsset(f, mime, messageId);
+                    AssetKey assetKey = client.uploadAsset(asset);
+                    asset.setAssetKey(assetKey.key);
+                    asset.setAssetToken(assetKey.token);
+                    return asset;
+                }))
+                .thenCompose(asset -> base.postGenericMessageAsync(asset, executor))
+                .thenApply(v -> messageId), executor);
+    }
+
+    private <T> CompletionStage<T> upload(Upload<T> upload) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return upload.call();
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    private interface Upload<T> {
+        T call() throws Exception;
+    }
+
+    /**
+     * Bounds the number of stages in flight without blocking: over the limit the task is queued and started by the
+     * completion of an earlier one
+     */
+    static class Limiter {
+        private final int max;
+        private final ArrayDeque<Runnable> queue = new ArrayDeque<>();
+        private int inFlight;
+
+        Limiter(int max) {
+            this.max = max;
+        }
+
+        <T> CompletionStage<T> submit(Supplier<CompletionStage<T>> task, Executor executor) {
+            CompletableFuture<T> ret = new CompletableFuture<>();
+            Runnable run = () -> {
+                CompletionStage<T> stage;
+                try {
+                    stage = task.get();
+                } catch (Throwable t) {
+                    stage = Futures.failed(t);
+                }
+                stage.whenComplete((value, t) -> {
+                    release();
+                    if (t != null)
+                        ret.completeExceptionally(Futures.unwrap(t));
+                    else
+                        ret.complete(value);
+                });
+            };
+
+            boolean now;
+            synchronized (this) {
+                now = inFlight < max;
+                if (now)
+                    inFlight++;
+                else
+                    queue.add(() -> executor.execute(run));
+            }
+            if (now)
+                run.run();
+            return ret;
+        }
+
+        synchronized int inFlight() {
+            return inFlight;
+        }
+
+        synchronized int queued() {
+            return queue.size();
+        }
+
+        private void release() {
+            Runnable next;
+            synchronized (this) {
+                next = queue.poll();
+                if (next == null)
+                    inFlight--;
+            }
+            if (next != null)
+                next.run();
+        }
+    }
+}
@@ -20,6 +20,7 @@ package com.wire.bots.sdk;
 
 import com.wire.bots.sdk.assets.*;
 import com.wire.bots.sdk.crypto.Crypto;
+import com.wire.bots.sdk.devices.DeviceCache;
 import com.wire.bots.sdk.exceptions.HttpException;
 import com.wire.bots.sdk.models.AssetKey;
 import com.wire.bots.sdk.models.otr.PreKey;
@@ -30,6 +31,8 @@ import com.wire.bots.sdk.tools.Util;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
 import java.security.MessageDigest;
 import java.util.*;
 
@@ -41,7 +44,15 @@ public class BotClient extends WireClientBase implements WireClient {
     private final API api;
 
     BotClient(NewBot state, Crypto crypto, API api) {
-        super(api, crypto, state);
+        this(state, crypto, api, null);
+    }
+
+    BotClient(NewBot state, Crypto crypto, API api, DeviceCache deviceCache) {
+        this(state, crypto, api, deviceCache, SendOptions.DEFAULT);
+    }
+
+    BotClient(NewBot state, Crypto crypto, API api, DeviceCache deviceCache, SendOptions options) {
+        super(api, crypto, state, deviceCache, options);
         this.api = api;
     }
 
@@ -168,7 +179,7 @@ public class BotClient extends WireClientBase implements WireClient {
     public UUID sendFile(File f, String mime) throws Exception {
         UUID messageId = UUID.randomUUID();
         FileAssetPreview preview = new FileAssetPreview(f.getName(), mime, f.length(), messageId);
-        FileAsset asset = new FileAsset(f, mime, messageId);
+        StreamingFileAsset asset = new StreamingFileAsset(f, mime, messageId);
 
         // post original
         postGenericMessage(preview);
@@ -187,7 +198,7 @@ public class BotClient extends WireClientBase implements WireClient {
     public UUID sendDirectFile(File f, String mime, UUID userId) throws Exception {
         UUID messageId = UUID.randomUUID();
         FileAssetPreview preview = new FileAssetPreview(f.getName(), mime, f.length(), messageId);
-        FileAsset asset = new FileAsset(f, mime, messageId);
+        StreamingFileAsset asset = new StreamingFileAsset(f, mime, messageId);
 
         // post original
         postGenericMessage(preview, userId);
@@ -231,6 +242,18 @@ public class BotClient extends WireClientBase implements WireClient {
         return Util.decrypt(otrKey, cipher);
     }
 
+    @Override
+    public void downloadAsset(String assetKey, String assetToken, byte[] sha256Challenge, byte[] otrKey,
+                              OutputStream out) throws Exception {
+        AssetDownloader.download(offset -> api.openAsset(assetKey, assetToken, offset), sha256Challenge, otrKey, out);
+    }
+
+    @Override
+    public void downloadAsset(String assetKey, String assetToken, byte[] sha256Challenge, byte[] otrKey, Path path)
+            throws Exception {
+        AssetDownloader.download(offset -> api.openAsset(assetKey, assetToken, offset), sha256Challenge, otrKey, path);
+    }
+
     @Override
     public UUID sendReaction(UUID msgId, String emoji) throws Exception {
         Reaction generic = new Reaction(msgId, emoji);
@@ -298,6 +321,11 @@ public class BotClient extends WireClientBase implements WireClient {
         return api.uploadAsset(asset);
     }
 
+    @Override
+    public AssetKey uploadAsset(IStreamingAsset asset) throws Exception {
+        return api.uploadAsset(asset);
+    }
+
     @Override
     public void call(String content) throws Exception {
         postGenericMessage(new Calling(content));
@@ -0,0 +1,182 @@
+package com.wire.bots.sdk;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.waz.model.Messages;
+import com.wire.bots.sdk.assets.IGeneric;
+import com.wire.bots.sdk.state.StateLister;
+import com.wire.bots.sdk.tools.Logger;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Posts one message into the conversation of every bot in the storage.
+ * <p>
+ * The GenericMessage is built once. Bots are listed page by page and the sends of a page (state, crypto box,
+ * encryption and http) run on the pool, whose size bounds the parallelism. The next page starts once the whole page
+ * is done, so the page cursor is a checkpoint: a broadcast started from it does not list the earlier pages again.
+ * It is at least once, not exactly once: the Redis lister SCANs, and SCAN can return a bot twice (in two pages, or
+ * again after the checkpoint) when the keyspace is resized meanwhile. Such a bot gets the message twice, with the same
+ * message id. Clients come from the ClientRepo, so its state and crypto caches are used when enabled.
+ */
+public class Broadcaster {
+    public static final int PAGE_SIZE = 500;
+    private static final int MAX_FAILURES = 1000;
+
+    private final ClientRepo repo;
+    private final StateLister lister;
+    private final ExecutorService pool;
+    private final int pageSize;
+    private final Meter sent;
+    private final Meter failed;
+    private final Timer timer;
+
+    public Broadcaster(ClientRepo repo, StateLister lister, ExecutorService pool, MetricRegistry metrics) {
+        this(repo, lister, pool, metrics, PAGE_SIZE);
+    }
+
+    public Broadcaster(ClientRepo repo, StateLister lister, ExecutorService pool, MetricRegistry metrics, int pageSize) {
+        this.repo = repo;
+        this.lister = lister;
+        this.pool = pool;
+        this.pageSize = pageSize;
+        this.sent = metrics.meter(MetricRegistry.name(Broadcaster.class, "sent"));
+        this.failed = metrics.meter(MetricRegistry.name(Broadcaster.class, "failed"));
+        this.timer = metrics.timer(MetricRegistry.name(Broadcaster.class, "send"));
+    }
+
+    /**
+     * @param message    Message to post. Every conversation gets the same message id
+     * @param checkpoint NULL to start with the first bot, or a checkpoint from an earlier broadcast to resume after it
+     * @param listener   Told about failed bots and completed pages
+     * @return Counts, the failures (up to 1000) and the last checkpoint
+     */
+    public Report broadcast(IGeneric message, @Nullable String checkpoint, Listener listener) throws Exception {
+        Prebuilt prebuilt = new Prebuilt(message.createGenericMsg(), message.getMessageId());
+        Report report = new Report(checkpoint);
+
+        String cursor = checkpoint;
+        do {
+            StateLister.Page page = lister.list(cursor, pageSize);
+
+            List<Future<?>> futures = new ArrayList<>(page.botIds.size());
+            for (UUID botId : page.botIds)
+                futures.add(pool.submit(() -> send(botId, prebuilt, report, listener)));
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    Logger.error("Broadcaster: %s", e.getCause());
+                }
+            }
+
+            cursor = page.next;
+            report.checkpoint = cursor;
+            if (cursor != null)
+                listener.onCheckpoint(cursor, report);
+        } while (cursor != null);
+
+        return report;
+    }
+
+    public Report broadcast(IGeneric message) throws Exception {
+        return broadcast(message, null, new Listener() {
+        });
+    }
+
+    private void send(UUID botId, IGeneric message, Report report, Listener listener) {
+        try (Timer.Context ignored = timer.time(); WireClient client = repo.getClient(botId)) {
+            client.send(message);
+            sent.mark();
+            report.sent.incrementAndGet();
+        } catch (Exception e) {
+            failed.mark();
+            report.failed(botId, e);
+            listener.onFailure(botId, e);
+        }
+    }
+
+    public interface Listener {
+        default void onFailure(UUID botId, Exception e) {
+            Logger.warning("Broadcaster: bot: %s %s", botId, e);
+        }
+
+        /**
+         * Every page up to this checkpoint was handled. Store it to resume from here
+         */
+        default void onCheckpoint(String checkpoint, Report report) {
+        }
+    }
+
+    public static class Report {
+        private final AtomicInteger sent = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        private final Map<UUID, String> failures = new LinkedHashMap<>();
+        private volatile String checkpoint;
+
+        Report(@Nullable String checkpoint) {
+            this.checkpoint = checkpoint;
+        }
+
+        public int getSent() {
+            return sent.get();
+        }
+
+        public int getFailed() {
+            return failed.get();
+        }
+
+        /**
+         * @return Error per bot, for the first 1000 failed bots
+         */
+        public synchronized Map<UUID, String> getFailures() {
+            return Collections.unmodifiableMap(new LinkedHashMap<>(failures));
+        }
+
+        /**
+         * @return Checkpoint of the last completed page. NULL when the broadcast went through all the bots
+         */
+        @Nullable
+        public String getCheckpoint() {
+            return checkpoint;
+        }
+
+        private synchronized void failed(UUID botId, Exception e) {
+            failed.incrementAndGet();
+            if (failures.size() < MAX_FAILURES)
+                failures.put(botId, String.valueOf(e.getMessage()));
+        }
+    }
+
+    // Same GenericMessage for every bot, built once
+    private static class Prebuilt implements IGeneric {
+        private final Messages.GenericMessage generic;
+        private final UUID messageId;
+
+        Prebuilt(Messages.GenericMessage generic, UUID messageId) {
+            this.generic = generic;
+            this.messageId = messageId;
+        }
+
+        @Override
+        public Messages.GenericMessage createGenericMsg() {
+            return generic;
+        }
+
+        @Override
+        public UUID getMessageId() {
+            return messageId;
+        }
+    }
+}
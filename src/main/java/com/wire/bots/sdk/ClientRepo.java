@@ -1,32 +1,85 @@
 package com.wire.bots.sdk;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalListener;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.wire.bots.cryptobox.CryptoException;
 import com.wire.bots.sdk.crypto.Crypto;
+import com.wire.bots.sdk.crypto.SharedCrypto;
+import com.wire.bots.sdk.devices.DeviceCache;
+import com.wire.bots.sdk.factories.CachingStorageFactory;
 import com.wire.bots.sdk.factories.CryptoFactory;
 import com.wire.bots.sdk.factories.StorageFactory;
 import com.wire.bots.sdk.server.model.NewBot;
 import com.wire.bots.sdk.state.State;
 
+import javax.annotation.Nullable;
 import javax.ws.rs.client.Client;
 import java.io.IOException;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 public class ClientRepo {
     protected final Client httpClient;
     protected final CryptoFactory cf;
     protected final StorageFactory sf;
 
+    // Both caches are NULL if caching is disabled
+    private final CachingStorageFactory states;
+    private final Cache<UUID, SharedCrypto> cryptos;
+    private DeviceCache deviceCache;
+    private PreKeyReplenisher preKeyReplenisher;
+    private SendOptions sendOptions = SendOptions.DEFAULT;
+
     public ClientRepo(Client httpClient, CryptoFactory cf, StorageFactory sf) {
+        this(httpClient, cf, sf, null, null);
+    }
+
+    /**
+     * @param cache   If not NULL the state and the open crypto box of the most active bots are kept in memory
+     * @param metrics Registry for the hit/miss/eviction metrics of the cache
+     */
+    public ClientRepo(Client httpClient, CryptoFactory cf, StorageFactory sf,
+                      @Nullable Configuration.Cache cache, @Nullable MetricRegistry metrics) {
         this.httpClient = httpClient;
         this.cf = cf;
-        this.sf = sf;
+
+        if (cache == null || cache.maxSize == 0) {
+            this.sf = sf;
+            this.states = null;
+            this.cryptos = null;
+            return;
+        }
+
+        long idle = cache.expireAfterAccess.toMilliseconds();
+        this.states = new CachingStorageFactory(sf, cache.maxSize, idle, cache.statesTtl.toMilliseconds(), cache.listen);
+        this.cryptos = CacheBuilder.newBuilder()
+                .maximumSize(cache.maxSize)
+                .expireAfterAccess(idle, TimeUnit.MILLISECONDS)
+                .removalListener((RemovalListener<UUID, SharedCrypto>) notification -> notification.getValue().evict())
+                .recordStats()
+                .build();
+
+        // Writes through the factory update the cached state
+        this.sf = states;
+
+        if (metrics != null) {
+            registerMetrics(metrics, "states", states::size, states::stats);
+            registerMetrics(metrics, "crypto", cryptos::size, cryptos::stats);
+        }
     }
 
     public WireClient getClient(UUID botId) throws IOException, CryptoException {
-        NewBot state = sf.create(botId).getState();
-        Crypto crypto = cf.create(botId);
-        API api = new API(httpClient, state.token);
-        return new BotClient(state, crypto, api);
+        NewBot state = getState(botId);
+        Crypto crypto = getCrypto(botId);
+        API api = new API(httpClient, state.token, sendOptions.getOtrTransport());
+        return new BotClient(state, crypto, api, deviceCache, sendOptions);
     }
 
     public void purgeBot(UUID botId) throws IOException {
@@ -35,10 +88,70 @@ public class ClientRepo {
             return;
 
         boolean purged = state.removeState();
+        invalidate(botId);
+        if (preKeyReplenisher != null)
+            preKeyReplenisher.onRemoved(botId);
         if (!purged)
             throw new IOException("Failed to purge Bot: " + botId);
     }
 
+    /**
+     * Drops the cached state and crypto box of this bot. The crypto box is closed once no client is using it
+     */
+    public void invalidate(UUID botId) {
+        if (states != null) {
+            states.invalidate(botId);
+            cryptos.invalidate(botId);
+        }
+    }
+
+    /**
+     * Drops the cached state of this bot only. Called by the state listener when the state was changed. The
+     * notifications of the saves made through this repo are skipped
+     */
+    public void invalidateState(UUID botId) {
+        if (states != null)
+            states.onChange(botId);
+    }
+
+    /**
+     * @param deviceCache Devices of the conversations shared by all the clients created by this repo
+     */
+    public ClientRepo addDeviceCache(DeviceCache deviceCache) {
+        this.deviceCache = deviceCache;
+        return this;
+    }
+
+    @Nullable
+    public DeviceCache getDeviceCache() {
+        return deviceCache;
+    }
+
+    /**
+     * @param preKeyReplenisher Tops up the prekeys of the bots created by this repo
+     */
+    public ClientRepo addPreKeyReplenisher(PreKeyReplenisher preKeyReplenisher) {
+        this.preKeyReplenisher = preKeyReplenisher;
+        return this;
+    }
+
+    @Nullable
+    public PreKeyReplenisher getPreKeyReplenisher() {
+        return preKeyReplenisher;
+    }
+
+    /**
+     * @param sendOptions Transport, External threshold and prekey fetcher of the clients created by this repo
+     */
+    public ClientRepo addSendOptions(SendOptions sendOptions) {
+        this.sendOptions = sendOptions;
+        return this;
+    }
+
+    public SendOptions getSendOptions() {
+        return sendOptions;
+    }
+
     public Client getHttpClient() {
         return httpClient;
     }
@@ -47,7 +160,46 @@ public class ClientRepo {
         return cf;
     }
 
+    /**
+     * @return Storage factory. States created by this factory keep the cache up to date
+     */
     public StorageFactory getSf() {
         return sf;
     }
+
+    private NewBot getState(UUID botId) throws IOException {
+        return sf.create(botId).getState();
+    }
+
+    private Crypto getCrypto(UUID botId) throws CryptoException, IOException {
+        if (cryptos == null)
+            return cf.create(botId);
+
+        while (true) {
+            SharedCrypto shared;
+            try {
+                shared = cryptos.get(botId, () -> new SharedCrypto(cf.create(botId)));
+            } catch (ExecutionException | UncheckedExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof CryptoException)
+                    throw (CryptoException) cause;
+                throw new IOException(cause);
+            }
+
+            Crypto crypto = shared.acquire();
+            if (crypto != null)
+                return crypto;
+
+            // Evicted (or closed) in the meantime. Drop it and open a new one
+            cryptos.asMap().remove(botId, shared);
+        }
+    }
+
+    private static void registerMetrics(MetricRegistry metrics, String name, Supplier<Long> size, Supplier<CacheStats> stats) {
+        metrics.register(MetricRegistry.name(ClientRepo.class, name, "size"), (Gauge<Long>) size::get);
+        metrics.register(MetricRegistry.name(ClientRepo.class, name, "hits"), (Gauge<Long>) () -> stats.get().hitCount());
+        metrics.register(MetricRegistry.name(ClientRepo.class, name, "misses"), (Gauge<Long>) () -> stats.get().missCount());
+        metrics.register(MetricRegistry.name(ClientRepo.class, name, "evictions"), (Gauge<Long>) () -> stats.get().evictionCount());
+        metrics.register(MetricRegistry.name(ClientRepo.class, name, "hit-rate"), (Gauge<Double>) () -> stats.get().hitRate());
+    }
 }
@@ -20,13 +20,17 @@ package com.wire.bots.sdk;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.wire.bots.sdk.models.otr.OtrTransport;
 import io.dropwizard.client.JerseyClientConfiguration;
 import io.dropwizard.db.DataSourceFactory;
+import io.dropwizard.util.Duration;
 import io.federecio.dropwizard.swagger.SwaggerBundleConfiguration;
 import org.hibernate.validator.constraints.NotEmpty;
 
 import javax.validation.Valid;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
+import java.util.List;
 
 /**
  * Application configuration class. Extend this class to add your custom configuration
@@ -50,12 +54,45 @@ public class Configuration extends io.dropwizard.Configuration {
     @Valid
     public UserMode userMode;
 
+    /**
+     * Many User mode accounts hosted in this process. Used instead of userMode when not empty
+     */
+    @JsonProperty
+    @Valid
+    public List<UserMode> userModes;
+
+    @JsonProperty
+    @Valid
+    public Inbound inbound;
+
+    @JsonProperty
+    @Valid
+    @NotNull
+    public Cache cache = new Cache();
+
+    @JsonProperty
+    @Valid
+    @NotNull
+    public Encryption encryption = new Encryption();
+
+    @JsonProperty
+    @Valid
+    @NotNull
+    public PreKeys preKeys = new PreKeys();
+
     @JsonProperty
     public String apiHost = "https://prod-nginz-https.wire.com";
 
     @JsonProperty
     public String wsHost = "wss://prod-nginz-ssl.wire.com/await";
 
+    /**
+     * Wire format of outgoing otr messages: JSON or PROTOBUF
+     */
+    @JsonProperty
+    @NotNull
+    public OtrTransport otrTransport = OtrTransport.JSON;
+
     @JsonProperty("jerseyClient")
     public JerseyClientConfiguration getJerseyClient() {
         return jerseyClient;
@@ -75,6 +112,21 @@ public class Configuration extends io.dropwizard.Configuration {
         public Integer timeout = 5000;
         public String url;
         public String driver;
+        // Redis cluster nodes, or the sentinels when master is set. Both as host:port
+        public List<String> nodes;
+        // Redis sentinel master name
+        public String master;
+        // Redis connection pool
+        public Integer poolSize = 128;
+        public Integer maxIdle = 16;
+        public Integer minIdle = 4;
+        public Long maxWait = 2000L;
+        public boolean testOnBorrow = false;
+        // Redis: look up keys of the layout before the {botId} hash tags and move them on first access.
+        // Turn off once the redis-migrate task ran
+        public boolean legacyKeys = true;
+        // mmap driver: ms between forced writes to disk. 0 forces every write
+        public Long syncInterval = 1000L;
     }
 
     public static class UserMode {
@@ -88,6 +140,127 @@ public class Configuration extends io.dropwizard.Configuration {
         public boolean sync = true;
     }
 
+    public static class Inbound {
+        /**
+         * If TRUE incoming payloads are acknowledged immediately and processed by the worker pool
+         */
+        @JsonProperty
+        public boolean async;
+        /**
+         * Max number of payloads waiting to be processed
+         */
+        @JsonProperty
+        @Min(1)
+        public int queueSize = 10000;
+        /**
+         * Number of threads processing payloads. Payloads of the same bot are always processed one after another
+         */
+        @JsonProperty
+        @Min(1)
+        public int workers = 32;
+        /**
+         * Persist enqueued payloads into the Inbound table so that they survive restarts
+         */
+        @JsonProperty
+        public boolean journal;
+        /**
+         * If async is FALSE: how long a request waits for its payload to be processed before it is answered with 503.
+         * The payload is still processed when its turn comes
+         */
+        @JsonProperty
+        @NotNull
+        public Duration timeout = Duration.seconds(20);
+    }
+
+    public static class Cache {
+        /**
+         * Max number of bots whose state and crypto box are kept open. 0 disables the cache
+         */
+        @JsonProperty
+        @Min(0)
+        public int maxSize = 1000;
+        /**
+         * Bots that had no traffic for this long are evicted
+         */
+        @JsonProperty
+        @NotNull
+        public Duration expireAfterAccess = Duration.minutes(10);
+        /**
+         * Cached states are loaded again after this long, even if they are in use
+         */
+        @JsonProperty
+        @NotNull
+        public Duration statesTtl = Duration.minutes(10);
+        /**
+         * Drop cached states as soon as another replica changes them. Uses Redis keyspace notifications or
+         * Postgres LISTEN/NOTIFY, depending on where the states are stored. The notifications of the saves made by
+         * this replica are skipped
+         */
+        @JsonProperty
+        public boolean listen = false;
+        /**
+         * How long the devices of a conversation are trusted before they are pulled from the Backend again
+         */
+        @JsonProperty
+        @NotNull
+        public Duration devicesTtl = Duration.minutes(10);
+    }
+
+    public static class PreKeys {
+        /**
+         * Bots are topped up once their estimated number of prekeys left drops below this
+         */
+        @JsonProperty
+        @Min(1)
+        public int lowWater = 16;
+        /**
+         * Number of prekeys a bot is topped up to
+         */
+        @JsonProperty
+        @Min(1)
+        public int target = 50;
+        /**
+         * How long bots that ran low are collected before they are topped up together
+         */
+        @JsonProperty
+        @NotNull
+        public Duration debounce = Duration.seconds(5);
+        /**
+         * How long the estimated number of prekeys left is trusted before it is checked against the Backend again
+         */
+        @JsonProperty
+        @NotNull
+        public Duration resync = Duration.minutes(10);
+    }
+
+    public static class Encryption {
+        /**
+         * Number of threads that encrypt one message for many recipients. 0 encrypts on the calling thread
+         */
+        @JsonProperty
+        @Min(0)
+        public int parallelism = 0;
+        /**
+         * Min number of recipients for the encryption to go parallel
+         */
+        @JsonProperty
+        @Min(1)
+        public int threshold = 64;
+        /**
+         * Messages whose size times the number of recipient devices exceeds this many bytes are sent as External:
+         * AES encrypted once, only the key is encrypted per device
+         */
+        @JsonProperty
+        @Min(1)
+        public int externalThreshold = 256 * 1024;
+        /**
+         * Milliseconds the devices missing from concurrent sends are collected into one prekeys fetch per bot
+         */
+        @JsonProperty
+        @Min(0)
+        public long preKeysWindow = 10;
+    }
+
     public static class Database extends DataSourceFactory {
         @JsonProperty
         public boolean baseline;
@@ -109,6 +282,7 @@ public class Configuration extends io.dropwizard.Configuration {
 
     @JsonIgnore
     public boolean isUserMode() {
-        return userMode != null && userMode.email != null && userMode.password != null;
+        return userMode != null && userMode.email != null && userMode.password != null
+                || userModes != null && !userModes.isEmpty();
     }
 }
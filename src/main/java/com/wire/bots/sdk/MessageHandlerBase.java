@@ -270,6 +270,10 @@ public abstract class MessageHandlerBase {
 
     }
 
+    /**
+     * Tops up the prekeys on member-join. Only called when there is no PreKeyReplenisher (User mode): in Bot mode the
+     * prekeys are topped up in the background
+     */
     public void validatePreKeys(WireClient client, int size) {
         try {
             int minAvailable = 8 * size;
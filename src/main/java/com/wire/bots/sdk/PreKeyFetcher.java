@@ -0,0 +1,338 @@
+package com.wire.bots.sdk;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.wire.bots.sdk.models.otr.Missing;
+import com.wire.bots.sdk.models.otr.PreKey;
+import com.wire.bots.sdk.models.otr.PreKeys;
+import com.wire.bots.sdk.tools.Futures;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Single-flight prekey fetching for the 412 fallback. Every device (bot, user, client) has at most one fetch in
+ * flight: the first sender that misses the device owns it, gets the prekey and creates the session. Concurrent senders
+ * that miss the same device wait until the owner released it and then encrypt from the session the owner created,
+ * instead of fetching (and burning) another prekey and racing to create a second session.
+ * Devices missed by async sends within the same window are fetched with one /users/prekeys call per bot. A prekey whose owner failed
+ * to use it is kept for a short while so the next sender does not fetch another one.
+ * Prekeys are fetched with the bot's token, so they are never shared between bots.
+ */
+public final class PreKeyFetcher {
+    private static final PreKeyFetcher instance = new PreKeyFetcher(10);
+    /**
+     * How long a sender waits for the owners of the devices it did not fetch to create their sessions
+     */
+    private static final long OWNER_TIMEOUT = 10_000;
+
+    private final ConcurrentHashMap<Key, Flight> flights = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<UUID, Batch> batches = new ConcurrentHashMap<>();
+    private final Cache<Key, PreKey> unused;
+    private final ScheduledExecutorService scheduler;
+    private final long window;
+
+    /**
+     * @param window Milliseconds the async sends collect missed devices into one fetch. 0 fetches right away
+     */
+    public PreKeyFetcher(long window) {
+        this(window, 30_000);
+    }
+
+    /**
+     * @param window Milliseconds the first missed device waits for others before the fetch goes out
+     * @param ttl    Milliseconds a fetched but unused prekey is kept
+     */
+    PreKeyFetcher(long window, long ttl) {
+        this.window = window;
+        this.unused = CacheBuilder.newBuilder()
+                .expireAfterWrite(ttl, TimeUnit.MILLISECONDS)
+                .build();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "prekeys");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return Fetcher of the clients that were not given one, see SendOptions
+     */
+    public static PreKeyFetcher get() {
+        return instance;
+    }
+
+    /**
+     * Blocks until the prekeys for the devices this call owns are fetched. The batch goes out right away: the window
+     * is not waited on the calling thread. Concurrent senders that miss the same devices still join this fetch
+     *
+     * @param botId   Bot whose token fetches the prekeys
+     * @param missing Devices the Backend reported missing
+     * @param api     Backend of this bot
+     */
+    public Claims fetch(UUID botId, Missing missing, Backend api) throws Exception {
+        Claims claims = new Claims();
+        Batch batch = claim(botId, missing, claims, m -> {
+            try {
+                return CompletableFuture.completedFuture(api.getPreKeys(m));
+            } catch (Exception e) {
+                return Futures.failed(e);
+            }
+        });
+
+        if (batch != null)
+            flush(botId, batch);
+
+        try {
+            claims.await().get();
+            return claims;
+        } catch (ExecutionException e) {
+            claims.close();
+            Throwable cause = Futures.unwrap(e);
+            throw cause instanceof Exception ? (Exception) cause : e;
+        } catch (Exception e) {
+            claims.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Non-blocking fetch. The window is waited on the fetcher's scheduler, the fetch itself is the async call
+     */
+    public CompletionStage<Claims> fetchAsync(UUID botId, Missing missing, AsyncBackend async) {
+        Claims claims = new Claims();
+        Batch batch = claim(botId, missing, claims, async::getPreKeysAsync);
+
+        if (batch != null)
+            scheduler.schedule(() -> flush(botId, batch), window, TimeUnit.MILLISECONDS);
+
+        return claims.await()
+                .whenComplete((v, t) -> {
+                    if (t != null)
+                        claims.close();
+                })
+                .thenApply(v -> claims);
+    }
+
+    /**
+     * @return The batch this call opened and has to flush, NULL if it only joined others
+     */
+    private Batch claim(UUID botId, Missing missing, Claims claims, Function<Missing, CompletionStage<PreKeys>> loader) {
+        Batch opened = null;
+        for (Map.Entry<UUID, Collection<String>> entry : missing.entrySet()) {
+            UUID userId = entry.getKey();
+            for (String clientId : entry.getValue()) {
+                Key key = new Key(botId, userId, clientId);
+
+                PreKey preKey = unused.asMap().remove(key);
+                if (preKey != null) {
+                    Flight flight = new Flight();
+                    if (flights.putIfAbsent(key, flight) == null) {
+                        flight.preKey.complete(preKey);
+                        claims.own(key, flight);
+                        continue;
+                    }
+                    unused.put(key, preKey);
+                }
+
+                Flight flight = new Flight();
+                Flight current = flights.putIfAbsent(key, flight);
+                if (current != null) {
+                    claims.join(key, current);
+                    continue;
+                }
+
+                claims.own(key, flight);
+                Batch batch = enlist(botId, key, flight, loader);
+                if (batch.leader == claims)
+                    opened = batch;
+            }
+        }
+        return opened;
+    }
+
+    private Batch enlist(UUID botId, Key key, Flight flight, Function<Missing, CompletionStage<PreKeys>> loader) {
+        while (true) {
+            Batch batch = batches.computeIfAbsent(botId, id -> new Batch());
+            synchronized (batch) {
+                if (!batch.sealed) {
+                    batch.missing.add(key.userId, key.clientId);
+                    batch.flights.put(key, flight);
+                    if (batch.leader == null) {
+                        // The leader flushes the batch, on its own thread and with its own loader
+                        batch.leader = flight.owner;
+                        batch.loader = loader;
+                    }
+                    return batch;
+                }
+            }
+            batches.remove(botId, batch);
+        }
+    }
+
+    private void flush(UUID botId, Batch batch) {
+        synchronized (batch) {
+            batch.sealed = true;
+        }
+        batches.remove(botId, batch);
+
+        CompletionStage<PreKeys> stage;
+        try {
+            stage = batch.loader.apply(batch.missing);
+        } catch (Exception e) {
+            stage = Futures.failed(e);
+        }
+
+        stage.whenComplete((preKeys, t) -> {
+            for (Map.Entry<Key, Flight> entry : batch.flights.entrySet()) {
+                Key key = entry.getKey();
+                Flight flight = entry.getValue();
+                if (t != null) {
+                    flight.preKey.completeExceptionally(Futures.unwrap(t));
+                    continue;
+                }
+                Map<String, PreKey> clients = preKeys != null ? preKeys.get(key.userId) : null;
+                // NULL when the device is gone. The owner skips it
+                flight.preKey.complete(clients != null ? clients.get(key.clientId) : null);
+            }
+        });
+    }
+
+    /**
+     * Devices one sender missed. The owned ones come with their prekeys and must be released once the session is
+     * created. The others are released by concurrent senders; await their sessions only after closing this
+     */
+    public final class Claims implements AutoCloseable {
+        private final Map<Key, Flight> owned = new HashMap<>();
+        private final Map<Key, Flight> others = new HashMap<>();
+        private boolean used;
+
+        private void own(Key key, Flight flight) {
+            flight.owner = this;
+            owned.put(key, flight);
+        }
+
+        private void join(Key key, Flight flight) {
+            others.put(key, flight);
+        }
+
+        private CompletableFuture<Void> await() {
+            List<CompletableFuture<PreKey>> all = new ArrayList<>();
+            for (Flight flight : owned.values())
+                all.add(flight.preKey);
+            return CompletableFuture.allOf(all.toArray(new CompletableFuture[0]));
+        }
+
+        /**
+         * @return Prekeys of the devices this sender owns
+         */
+        public PreKeys getPreKeys() {
+            PreKeys ret = new PreKeys();
+            for (Map.Entry<Key, Flight> entry : owned.entrySet()) {
+                PreKey preKey = entry.getValue().preKey.getNow(null);
+                if (preKey != null)
+                    ret.computeIfAbsent(entry.getKey().userId, k -> new HashMap<>()).put(entry.getKey().clientId, preKey);
+            }
+            return ret;
+        }
+
+        /**
+         * Marks the owned prekeys as used: the sessions exist now
+         */
+        public void used() {
+            used = true;
+        }
+
+        /**
+         * @return Devices concurrent senders created the session for. Encrypt for them from the session
+         */
+        public CompletableFuture<Missing> others() {
+            Missing devices = new Missing();
+            List<CompletableFuture<Void>> released = new ArrayList<>();
+            for (Map.Entry<Key, Flight> entry : others.entrySet()) {
+                devices.add(entry.getKey().userId, entry.getKey().clientId);
+                released.add(entry.getValue().released);
+            }
+            if (released.isEmpty())
+                return CompletableFuture.completedFuture(devices);
+
+            // Devices whose owner did not make it in time are skipped by the session encryption
+            CompletableFuture<Missing> ret = new CompletableFuture<>();
+            CompletableFuture.allOf(released.toArray(new CompletableFuture[0]))
+                    .whenComplete((v, t) -> ret.complete(devices));
+            scheduler.schedule(() -> ret.complete(devices), OWNER_TIMEOUT, TimeUnit.MILLISECONDS);
+            return ret;
+        }
+
+        /**
+         * Releases the owned devices. Prekeys that were fetched but not used are kept for the next sender
+         */
+        @Override
+        public void close() {
+            for (Map.Entry<Key, Flight> entry : owned.entrySet()) {
+                Key key = entry.getKey();
+                Flight flight = entry.getValue();
+                PreKey preKey = flight.preKey.getNow(null);
+                if (!used && preKey != null)
+                    unused.put(key, preKey);
+                flights.remove(key, flight);
+                flight.released.complete(null);
+            }
+            owned.clear();
+        }
+    }
+
+    private static class Flight {
+        final CompletableFuture<PreKey> preKey = new CompletableFuture<>();
+        final CompletableFuture<Void> released = new CompletableFuture<>();
+        Claims owner;
+    }
+
+    private static class Batch {
+        final Missing missing = new Missing();
+        final Map<Key, Flight> flights = new HashMap<>();
+        Function<Missing, CompletionStage<PreKeys>> loader;
+        Claims leader;
+        boolean sealed;
+    }
+
+    private static class Key {
+        final UUID botId;
+        final UUID userId;
+        final String clientId;
+
+        Key(UUID botId, UUID userId, String clientId) {
+            this.botId = botId;
+            this.userId = userId;
+            this.clientId = clientId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+            Key key = (Key) o;
+            return botId.equals(key.botId) && userId.equals(key.userId) && clientId.equals(key.clientId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(botId, userId, clientId);
+        }
+    }
+}
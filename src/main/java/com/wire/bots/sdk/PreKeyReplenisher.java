@@ -0,0 +1,284 @@
+package com.wire.bots.sdk;
+
+import com.wire.bots.sdk.models.otr.PreKey;
+import com.wire.bots.sdk.tools.Logger;
+import io.dropwizard.lifecycle.Managed;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps the bots stocked with prekeys in the background. Every bot has a local estimate of the prekeys it has left on
+ * the Backend, decremented each time a message opens a new session (a PreKeyMessage). Only when the estimate drops
+ * below the low-water mark is the bot marked due. Due bots are collected for the debounce interval and then topped up
+ * in one pass, so the Backend is not asked for the available prekeys on every event.
+ * Estimates are not persisted: the first new session of a bot after a restart syncs its estimate with the Backend.
+ * An estimate older than the resync interval is synced again on the next new session or member join, in case it
+ * drifted (sessions opened while a bot was topped up, prekeys claimed by clients that never sent anything).
+ */
+public class PreKeyReplenisher implements Managed {
+    /**
+     * Last resort prekey. It is never consumed so it does not count
+     */
+    static final int LAST_PREKEY = 0xFFFF;
+
+    private final ClientRepo repo;
+    private final ScheduledExecutorService scheduler;
+    private final int lowWater;
+    private final int target;
+    private final long debounce;
+    private final long resync;
+    private final ConcurrentHashMap<UUID, AtomicInteger> estimates = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<UUID, Long> synced = new ConcurrentHashMap<>();
+    private final Set<UUID> due = ConcurrentHashMap.newKeySet();
+    private ScheduledFuture<?> pending;
+
+    public PreKeyReplenisher(ClientRepo repo, ScheduledExecutorService scheduler, Configuration.PreKeys config) {
+        this.repo = repo;
+        this.scheduler = scheduler;
+        this.lowWater = config.lowWater;
+        this.target = Math.max(config.target, config.lowWater);
+        this.debounce = config.debounce.toMilliseconds();
+        this.resync = config.resync.toMilliseconds();
+    }
+
+    /**
+     * Called for every decrypted message
+     *
+     * @param botId  Bot that received the message
+     * @param cipher Received envelope
+     */
+    public void onDecrypted(UUID botId, byte[] cipher) {
+        int preKeyId = preKeyId(cipher);
+        if (preKeyId < 0 || preKeyId == LAST_PREKEY)
+            return;
+
+        AtomicInteger estimate = estimates.get(botId);
+        if (estimate == null || estimate.decrementAndGet() < lowWater || isStale(botId))
+            schedule(botId);
+    }
+
+    /**
+     * Called when users joined a conversation of this bot. Their clients are about to claim prekeys, so a stale
+     * estimate is synced with the Backend
+     *
+     * @param botId Bot in the conversation
+     */
+    public void onMemberJoin(UUID botId) {
+        if (isStale(botId))
+            schedule(botId);
+    }
+
+    public void onRemoved(UUID botId) {
+        estimates.remove(botId);
+        synced.remove(botId);
+        due.remove(botId);
+    }
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (pending != null)
+            pending.cancel(false);
+        pending = null;
+    }
+
+    int estimate(UUID botId) {
+        AtomicInteger estimate = estimates.get(botId);
+        return estimate != null ? estimate.get() : -1;
+    }
+
+    boolean isDue(UUID botId) {
+        return due.contains(botId);
+    }
+
+    private boolean isStale(UUID botId) {
+        Long time = synced.get(botId);
+        return time == null || System.currentTimeMillis() - time >= resync;
+    }
+
+    private void schedule(UUID botId) {
+        if (!due.add(botId))
+            return;
+
+        synchronized (this) {
+            if (pending == null)
+                pending = scheduler.schedule(this::replenish, debounce, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Tops up all the bots that are due
+     */
+    void replenish() {
+        synchronized (this) {
+            pending = null;
+        }
+
+        int count = 0;
+        for (Iterator<UUID> it = due.iterator(); it.hasNext(); ) {
+            UUID botId = it.next();
+            it.remove();
+            try {
+                count += topUp(botId);
+            } catch (Exception e) {
+                Logger.error("PreKeyReplenisher: bot: %s %s", botId, e);
+            }
+        }
+        if (count > 0)
+            Logger.info("PreKeyReplenisher: uploaded %d prekeys", count);
+    }
+
+    private int topUp(UUID botId) throws Exception {
+        // Closing the client gives back its crypto box, or its lease on the shared one
+        try (WireClient client = repo.getClient(botId)) {
+            ArrayList<Integer> available = client.getAvailablePrekeys();
+            available.remove(Integer.valueOf(LAST_PREKEY));
+
+            int left = available.size();
+            int uploaded = 0;
+            if (left < lowWater) {
+                int from = available.isEmpty() ? 0 : Collections.max(available) + 1;
+                ArrayList<PreKey> keys = client.newPreKeys(from, target - left);
+                client.uploadPreKeys(keys);
+                uploaded = keys.size();
+            }
+
+            // Sessions opened while this ran are lost from the estimate. The Backend corrects it on the next pass
+            estimates.put(botId, new AtomicInteger(left + uploaded));
+            synced.put(botId, System.currentTimeMillis());
+            return uploaded;
+        }
+    }
+
+    /**
+     * Reads the prekey id out of a Proteus envelope without decoding it: CBOR map {0: version, 1: mac, 2: message}
+     * where the message starts with its type, 2 for a PreKeyMessage, followed by the map {0: prekey id, ...}
+     *
+     * @return The id of the prekey the session was opened with, -1 if this is not a PreKeyMessage
+     */
+    static int preKeyId(byte[] envelope) {
+        try {
+            Cbor env = new Cbor(envelope, 0, envelope.length);
+            int fields = (int) env.head(Cbor.MAP);
+            for (int i = 0; i < fields; i++) {
+                long key = env.head(Cbor.UINT);
+                if (key != 2) {
+                    env.skip();
+                    continue;
+                }
+
+                int len = (int) env.head(Cbor.BYTES);
+                Cbor msg = new Cbor(envelope, env.pos, env.pos + len);
+                if (msg.head(Cbor.UINT) != 2)
+                    return -1;
+
+                int entries = (int) msg.head(Cbor.MAP);
+                for (int j = 0; j < entries; j++) {
+                    if (msg.head(Cbor.UINT) == 0)
+                        return (int) msg.head(Cbor.UINT);
+                    msg.skip();
+                }
+                return -1;
+            }
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            Logger.debug("PreKeyReplenisher: malformed envelope: %s", e);
+        }
+        return -1;
+    }
+
+    /**
+     * Just enough CBOR to walk an envelope: unsigned ints, byte strings and maps
+     */
+    private static class Cbor {
+        static final int UINT = 0;
+        static final int BYTES = 2;
+        static final int MAP = 5;
+
+        final byte[] buf;
+        final int end;
+        int pos;
+
+        Cbor(byte[] buf, int pos, int end) {
+            if (end > buf.length)
+                throw new IllegalArgumentException("Truncated");
+            this.buf = buf;
+            this.pos = pos;
+            this.end = end;
+        }
+
+        /**
+         * @return Value of the next item's head: the int itself, or the length of a byte string or map
+         */
+        long head(int type) {
+            int b = next();
+            if ((b >>> 5) != type)
+                throw new IllegalArgumentException("Unexpected major type: " + (b >>> 5));
+
+            int info = b & 0x1F;
+            if (info < 24)
+                return info;
+
+            int size;
+            switch (info) {
+                case 24:
+                    size = 1;
+                    break;
+                case 25:
+                    size = 2;
+                    break;
+                case 26:
+                    size = 4;
+                    break;
+                case 27:
+                    size = 8;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported length: " + info);
+            }
+            long ret = 0;
+            for (int i = 0; i < size; i++)
+                ret = (ret << 8) | next();
+            return ret;
+        }
+
+        void skip() {
+            int type = (buf[pos] & 0xFF) >>> 5;
+            switch (type) {
+                case UINT:
+                    head(UINT);
+                    break;
+                case BYTES: {
+                    int len = (int) head(BYTES);
+                    pos += len;
+                    break;
+                }
+                case MAP: {
+                    long entries = head(MAP);
+                    for (long i = 0; i < 2 * entries; i++)
+                        skip();
+                    break;
+                }
+                default:
+                    throw new IllegalArgumentException("Unexpected major type: " + type);
+            }
+        }
+
+        private int next() {
+            if (pos >= end)
+                throw new IllegalArgumentException("Truncated");
+            return buf[pos++] & 0xFF;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.wire.bots.sdk;
+
+import com.wire.bots.sdk.crypto.ExternalMessage;
+import com.wire.bots.sdk.models.otr.OtrTransport;
+
+/**
+ * How the clients of one repo send their messages. Passed to the clients instead of being set process wide, so two
+ * Servers or tests in one JVM do not change each other's settings
+ */
+public class SendOptions {
+    public static final SendOptions DEFAULT = new SendOptions(PreKeyFetcher.get(), ExternalMessage.DEFAULT_THRESHOLD,
+            OtrTransport.JSON);
+
+    private final PreKeyFetcher preKeyFetcher;
+    private final int externalThreshold;
+    private final OtrTransport otrTransport;
+
+    /**
+     * @param preKeyFetcher     Fetches the prekeys of the devices the sends missed
+     * @param externalThreshold Min number of bytes (payload size x number of devices) for a message to be sent as External
+     * @param otrTransport      Wire format of the otr messages
+     */
+    public SendOptions(PreKeyFetcher preKeyFetcher, int externalThreshold, OtrTransport otrTransport) {
+        this.preKeyFetcher = preKeyFetcher;
+        this.externalThreshold = externalThreshold;
+        this.otrTransport = otrTransport;
+    }
+
+    public PreKeyFetcher getPreKeyFetcher() {
+        return preKeyFetcher;
+    }
+
+    public int getExternalThreshold() {
+        return externalThreshold;
+    }
+
+    public OtrTransport getOtrTransport() {
+        return otrTransport;
+    }
+}
@@ -23,26 +23,45 @@ import com.codahale.metrics.jmx.JmxReporter;
 import com.fasterxml.jackson.jaxrs.json.JacksonJsonProvider;
 import com.wire.bots.sdk.crypto.CryptoDatabase;
 import com.wire.bots.sdk.crypto.CryptoFile;
+import com.wire.bots.sdk.crypto.ParallelEncryption;
 import com.wire.bots.sdk.crypto.storage.JdbiStorage;
+import com.wire.bots.sdk.crypto.storage.MVStorage;
 import com.wire.bots.sdk.crypto.storage.RedisStorage;
+import com.wire.bots.sdk.crypto.storage.SegmentStorage;
+import com.wire.bots.sdk.devices.DeviceCache;
+import com.wire.bots.sdk.devices.MemDeviceCache;
+import com.wire.bots.sdk.devices.RedisDeviceCache;
 import com.wire.bots.sdk.factories.CryptoFactory;
 import com.wire.bots.sdk.factories.StorageFactory;
 import com.wire.bots.sdk.healthchecks.Alice2Bob;
 import com.wire.bots.sdk.healthchecks.CryptoHealthCheck;
 import com.wire.bots.sdk.healthchecks.Outbound;
 import com.wire.bots.sdk.healthchecks.StorageHealthCheck;
+import com.wire.bots.sdk.mmap.SegmentStore;
+import com.wire.bots.sdk.models.otr.OtrTransport;
+import com.wire.bots.sdk.redis.RedisPool;
+import com.wire.bots.sdk.server.InboundDAO;
+import com.wire.bots.sdk.server.InboundQueue;
+import com.wire.bots.sdk.server.KeyedExecutor;
 import com.wire.bots.sdk.server.filters.AuthenticationFeature;
 import com.wire.bots.sdk.server.resources.BotsResource;
 import com.wire.bots.sdk.server.resources.EmptyStatusResource;
 import com.wire.bots.sdk.server.resources.MessageResource;
 import com.wire.bots.sdk.server.resources.VersionResource;
 import com.wire.bots.sdk.server.tasks.AvailablePrekeysTask;
+import com.wire.bots.sdk.server.tasks.BroadcastTask;
 import com.wire.bots.sdk.server.tasks.ConversationTask;
+import com.wire.bots.sdk.server.tasks.RedisMigrationTask;
 import com.wire.bots.sdk.state.FileState;
 import com.wire.bots.sdk.state.JdbiState;
+import com.wire.bots.sdk.state.PostgresStateListener;
 import com.wire.bots.sdk.state.RedisState;
+import com.wire.bots.sdk.state.RedisStateListener;
+import com.wire.bots.sdk.state.SegmentState;
+import com.wire.bots.sdk.state.StateLister;
 import com.wire.bots.sdk.tools.Logger;
 import com.wire.bots.sdk.user.UserApplication;
+import com.wire.bots.sdk.user.UserModeManager;
 import io.dropwizard.Application;
 import io.dropwizard.bundles.redirect.PathRedirect;
 import io.dropwizard.bundles.redirect.RedirectBundle;
@@ -50,16 +69,27 @@ import io.dropwizard.client.JerseyClientBuilder;
 import io.dropwizard.configuration.EnvironmentVariableSubstitutor;
 import io.dropwizard.configuration.SubstitutingSourceProvider;
 import io.dropwizard.jdbi.DBIFactory;
+import io.dropwizard.lifecycle.ExecutorServiceManager;
+import io.dropwizard.lifecycle.Managed;
 import io.dropwizard.servlets.tasks.Task;
 import io.dropwizard.setup.Bootstrap;
 import io.dropwizard.setup.Environment;
+import io.dropwizard.util.Duration;
 import io.federecio.dropwizard.swagger.SwaggerBundle;
 import io.federecio.dropwizard.swagger.SwaggerBundleConfiguration;
 import org.flywaydb.core.Flyway;
 import org.glassfish.jersey.media.multipart.MultiPartFeature;
+import org.glassfish.tyrus.client.ClientManager;
+import org.h2.mvstore.MVStore;
 import org.skife.jdbi.v2.DBI;
 
 import javax.ws.rs.client.Client;
+import java.net.URL;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -74,6 +104,7 @@ public abstract class Server<Config extends Configuration> extends Application<C
     protected Client client;
     protected MessageHandlerBase messageHandler;
     protected DBI jdbi;
+    protected ParallelEncryption parallelEncryption = ParallelEncryption.DISABLED;
 
     /**
      * This method is called once by the sdk in order to create the main message handler
@@ -131,16 +162,44 @@ public abstract class Server<Config extends Configuration> extends Application<C
 
         buildJdbi(config.database);
 
+        if (config.db != null && "redis".equals(config.db.driver)) {
+            RedisPool redis = RedisPool.get(config.db).registerMetrics(env.metrics());
+            env.lifecycle().manage(redis);
+        }
+        if (config.db != null && "mmap".equals(config.db.driver))
+            env.lifecycle().manage(getSegmentStore());
+        if (config.db != null && "mvstore".equals(config.db.driver)) {
+            MVStore store = getMVStore();
+            env.lifecycle().manage(new Managed() {
+                @Override
+                public void start() {
+                }
+
+                @Override
+                public void stop() {
+                    MVStorage.close(store);
+                }
+            });
+        }
+
         client = new JerseyClientBuilder(environment)
                 .using(config.getJerseyClient())
                 .withProvider(MultiPartFeature.class)
                 .withProvider(JacksonJsonProvider.class)
                 .build(getName());
 
+        encryption(config.encryption);
+
         StorageFactory storageFactory = getStorageFactory();
         CryptoFactory cryptoFactory = getCryptoFactory();
 
-        repo = new ClientRepo(client, cryptoFactory, storageFactory);
+        repo = new ClientRepo(client, cryptoFactory, storageFactory, config.cache, env.metrics())
+                .addDeviceCache(buildDeviceCache(config.cache))
+                .addSendOptions(buildSendOptions(config.encryption, config.otrTransport));
+
+        Managed stateListener = buildStateListener(config.cache);
+        if (stateListener != null)
+            env.lifecycle().manage(stateListener);
 
         initialize(config, env);
 
@@ -172,10 +231,14 @@ public abstract class Server<Config extends Configuration> extends Application<C
 
     public StorageFactory getStorageFactory() {
         if (config.db != null) {
-            if (config.db.driver.equals("redis"))
-                return (botId) -> new RedisState(botId, config.db);
-            if (config.db.driver.equals("fs"))
+            if (config.db.driver.equals("redis")) {
+                RedisPool redis = RedisPool.get(config.db);
+                return (botId) -> new RedisState(botId, redis, config.db);
+            }
+            if (config.db.driver.equals("fs") || config.db.driver.equals("mvstore"))
                 return botId -> new FileState(botId, config.db);
+            if (config.db.driver.equals("mmap"))
+                return botId -> new SegmentState(botId, getSegmentStore());
 
             return botId -> new JdbiState(botId, jdbi);
         }
@@ -185,15 +248,76 @@ public abstract class Server<Config extends Configuration> extends Application<C
 
     public CryptoFactory getCryptoFactory() {
         if (config.db != null) {
-            if (config.db.driver.equals("redis"))
-                return (botId) -> new CryptoDatabase(botId, new RedisStorage(config.db.host, config.db.port, config.db.password));
+            if (config.db.driver.equals("redis")) {
+                RedisPool redis = RedisPool.get(config.db);
+                return (botId) -> new CryptoDatabase(botId, new RedisStorage(redis, config.db))
+                        .addParallelEncryption(parallelEncryption);
+            }
             if (config.db.driver.equals("fs"))
-                return (botId) -> new CryptoFile(botId, config.db);
+                return (botId) -> new CryptoFile(botId, config.db)
+                        .addParallelEncryption(parallelEncryption);
+            if (config.db.driver.equals("mmap"))
+                return (botId) -> new CryptoDatabase(botId, new SegmentStorage(getSegmentStore()))
+                        .addParallelEncryption(parallelEncryption);
+            if (config.db.driver.equals("mvstore"))
+                return (botId) -> new CryptoDatabase(botId, new MVStorage(getMVStore()))
+                        .addParallelEncryption(parallelEncryption);
+
+            return (botId) -> new CryptoDatabase(botId, new JdbiStorage(jdbi))
+                    .addParallelEncryption(parallelEncryption);
+        }
+
+        return (botId) -> new CryptoDatabase(botId, new JdbiStorage(jdbi))
+                .addParallelEncryption(parallelEncryption);
+    }
+
+    /**
+     * Segment files go to the path of db.url (file:///var/lib/bot) or to ./data
+     */
+    protected SegmentStore getSegmentStore() {
+        return SegmentStore.get(getDataPath(), config.db.syncInterval);
+    }
+
+    /**
+     * Crypto store file in the path of db.url (file:///var/lib/bot) or in ./data. Bot states stay in FileState
+     */
+    protected MVStore getMVStore() {
+        return MVStorage.open(getDataPath() + "/crypto.mv");
+    }
 
-            return (botId) -> new CryptoDatabase(botId, new JdbiStorage(jdbi));
+    /**
+     * @return Lists the bots in the state storage of the configured driver
+     */
+    public StateLister getStateLister() {
+        if (config.db != null) {
+            if (config.db.driver.equals("redis"))
+                return RedisState.lister(config.db);
+            if (config.db.driver.equals("fs") || config.db.driver.equals("mvstore"))
+                return FileState.lister(config.db);
+            if (config.db.driver.equals("mmap"))
+                return SegmentState.lister(getSegmentStore());
         }
 
-        return (botId) -> new CryptoDatabase(botId, new JdbiStorage(jdbi));
+        return JdbiState.lister(jdbi);
+    }
+
+    protected Broadcaster buildBroadcaster() {
+        int threads = Runtime.getRuntime().availableProcessors() * 4;
+        ExecutorService pool = environment.lifecycle()
+                .executorService("broadcast-%d")
+                .minThreads(threads)
+                .maxThreads(threads)
+                .build();
+
+        return new Broadcaster(repo, getStateLister(), pool, environment.metrics());
+    }
+
+    private String getDataPath() {
+        try {
+            return new URL(config.db.url).getPath();
+        } catch (Exception e) {
+            return "data";
+        }
     }
 
     private void runInBotMode() {
@@ -202,35 +326,159 @@ public abstract class Server<Config extends Configuration> extends Application<C
         // add version endpoint
         addResource(new VersionResource());
 
+        preKeyReplenisher(config.preKeys);
         botResource();
         messageResource();
 
         addTask(new ConversationTask(repo));
         addTask(new AvailablePrekeysTask(repo));
+        addTask(new BroadcastTask(buildBroadcaster()));
+        if (config.db != null && "redis".equals(config.db.driver))
+            addTask(new RedisMigrationTask(RedisPool.get(config.db)));
     }
 
     private void runInUserMode() {
         Logger.info("Starting in User Mode");
 
-        UserApplication app = new UserApplication(environment)
-                .addClient(client)
-                .addConfig(config)
-                .addCryptoFactory(getCryptoFactory())
-                .addStorageFactory(getStorageFactory())
-                .addHandler(messageHandler);
+        Configuration.Inbound inbound = config.inbound != null ? config.inbound : new Configuration.Inbound();
+        KeyedExecutor executor = buildKeyedExecutor("user-inbound", inbound);
+
+        List<Configuration.UserMode> accounts = getUserModes();
+        if (accounts.isEmpty()) {
+            UserApplication app = new UserApplication(environment)
+                    .addClient(client)
+                    .addExecutor(executor)
+                    .addDeviceCache(repo.getDeviceCache())
+                    .addSendOptions(repo.getSendOptions())
+                    .addConfig(config)
+                    .addCryptoFactory(getCryptoFactory())
+                    .addStorageFactory(getStorageFactory())
+                    .addHandler(messageHandler);
+
+            environment.lifecycle().manage(app);
+            return;
+        }
+
+        Logger.info("Hosting %d User mode accounts", accounts.size());
+
+        ScheduledExecutorService renewal = environment.lifecycle()
+                .scheduledExecutorService("access renewal-%d")
+                .threads(4)
+                .build();
+        ClientManager container = UserApplication.createContainer(config);
+        // Logins and notification syncs are blocking calls, run a few of them at once
+        int starters = Math.min(8, accounts.size());
+        ExecutorService logins = environment.lifecycle()
+                .executorService("user-login-%d")
+                .minThreads(starters)
+                .maxThreads(starters)
+                .build();
+
+        UserModeManager manager = new UserModeManager(logins, renewal, container);
+        for (Configuration.UserMode account : accounts) {
+            manager.addAccount(new UserApplication(renewal)
+                    .addAccount(account)
+                    .addContainer(container)
+                    .addMetrics(environment.metrics())
+                    .addClient(client)
+                    .addExecutor(executor)
+                    .addDeviceCache(repo.getDeviceCache())
+                    .addSendOptions(repo.getSendOptions())
+                    .addConfig(config)
+                    .addCryptoFactory(getCryptoFactory())
+                    .addStorageFactory(getStorageFactory())
+                    .addHandler(messageHandler));
+        }
+        environment.lifecycle().manage(manager);
+    }
+
+    /**
+     * Accounts hosted when running in User mode. Override to load them from somewhere else than the config
+     *
+     * @return Empty to run the single userMode account
+     */
+    protected List<Configuration.UserMode> getUserModes() {
+        return config.userModes != null ? config.userModes : Collections.emptyList();
+    }
+
+    protected void encryption(Configuration.Encryption encryption) {
+        if (encryption.parallelism == 0)
+            return;
+
+        ForkJoinPool pool = new ForkJoinPool(encryption.parallelism);
+        environment.lifecycle().manage(new ExecutorServiceManager(pool, Duration.seconds(5), "encryption"));
+        parallelEncryption = new ParallelEncryption(pool, encryption.threshold);
+    }
+
+    protected SendOptions buildSendOptions(Configuration.Encryption encryption, OtrTransport otrTransport) {
+        return new SendOptions(new PreKeyFetcher(encryption.preKeysWindow), encryption.externalThreshold, otrTransport);
+    }
+
+    protected Managed buildStateListener(Configuration.Cache cache) {
+        if (!cache.listen || cache.maxSize == 0)
+            return null;
+
+        if (config.db != null && config.db.driver.equals("redis"))
+            return new RedisStateListener(RedisPool.get(config.db), repo::invalidateState);
+        if (config.db != null && (config.db.driver.equals("fs") || config.db.driver.equals("mmap")
+                || config.db.driver.equals("mvstore")))
+            return null;
+
+        return new PostgresStateListener(jdbi, repo::invalidateState);
+    }
+
+    protected DeviceCache buildDeviceCache(Configuration.Cache cache) {
+        if (cache.maxSize == 0)
+            return null;
+
+        long ttl = cache.devicesTtl.toMilliseconds();
+        if (config.db != null && config.db.driver.equals("redis"))
+            return new RedisDeviceCache(config.db, ttl, environment.metrics());
 
-        environment.lifecycle().manage(app);
+        return new MemDeviceCache(cache.maxSize, ttl, environment.metrics());
+    }
+
+    protected void preKeyReplenisher(Configuration.PreKeys preKeys) {
+        ScheduledExecutorService scheduler = environment.lifecycle()
+                .scheduledExecutorService("prekeys-%d")
+                .threads(1)
+                .build();
+
+        PreKeyReplenisher replenisher = new PreKeyReplenisher(repo, scheduler, preKeys);
+        environment.lifecycle().manage(replenisher);
+        repo.addPreKeyReplenisher(replenisher);
     }
 
     protected void messageResource() {
-        addResource(new MessageResource(messageHandler, repo));
+        Configuration.Inbound inbound = config.inbound != null ? config.inbound : new Configuration.Inbound();
+
+        KeyedExecutor executor = buildKeyedExecutor("inbound", inbound);
+        InboundQueue queue = inbound.async ? buildInboundQueue(executor, inbound) : null;
+
+        addResource(new MessageResource(messageHandler, repo, executor, queue, inbound.timeout));
     }
 
-    protected void botResource() {
-        StorageFactory storageFactory = getStorageFactory();
-        CryptoFactory cryptoFactory = getCryptoFactory();
+    protected KeyedExecutor buildKeyedExecutor(String name, Configuration.Inbound inbound) {
+        ExecutorService pool = environment.lifecycle()
+                .executorService(name + "-%d")
+                .minThreads(inbound.workers)
+                .maxThreads(inbound.workers)
+                .build();
+
+        return new KeyedExecutor(name, pool, inbound.queueSize, environment.metrics());
+    }
 
-        addResource(new BotsResource(messageHandler, storageFactory, cryptoFactory));
+    protected InboundQueue buildInboundQueue(KeyedExecutor executor, Configuration.Inbound inbound) {
+        InboundDAO journal = inbound.journal ? jdbi.onDemand(InboundDAO.class) : null;
+
+        InboundQueue queue = new InboundQueue(executor, journal, environment.metrics());
+        environment.lifecycle().manage(queue);
+        return queue;
+    }
+
+    protected void botResource() {
+        // Use the repo's factories so that the new state is not shadowed by a cached one
+        addResource(new BotsResource(messageHandler, repo.getSf(), repo.getCf()));
     }
 
     protected void addTask(Task task) {
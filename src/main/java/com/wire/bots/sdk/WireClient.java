@@ -21,16 +21,23 @@ package com.wire.bots.sdk;
 import com.wire.bots.cryptobox.CryptoException;
 import com.wire.bots.sdk.assets.IAsset;
 import com.wire.bots.sdk.assets.IGeneric;
+import com.wire.bots.sdk.assets.IStreamingAsset;
 import com.wire.bots.sdk.exceptions.HttpException;
 import com.wire.bots.sdk.models.AssetKey;
 import com.wire.bots.sdk.models.otr.PreKey;
 import com.wire.bots.sdk.server.model.Conversation;
 import com.wire.bots.sdk.server.model.User;
+import com.wire.bots.sdk.tools.Util;
 
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.Collection;
 import java.util.UUID;
 
@@ -216,6 +223,34 @@ public interface WireClient extends Closeable {
      */
     byte[] downloadAsset(String assetKey, String assetToken, byte[] sha256Challenge, byte[] otrKey) throws Exception;
 
+    /**
+     * Downloads the asset and decrypts it into the stream as it arrives, without holding it in memory. Interrupted
+     * downloads are resumed with range requests. The default implementation downloads the whole asset into memory
+     * first, for clients that do not stream.
+     *
+     * @param assetKey        Unique asset identifier (UUID)
+     * @param assetToken      Asset token (null in case of public assets)
+     * @param sha256Challenge SHA256 hash code for this asset
+     * @param otrKey          Encryption key to be used to decrypt the data
+     * @param out             Decrypted asset data. Must be discarded if this method throws
+     * @throws Exception
+     */
+    default void downloadAsset(String assetKey, String assetToken, byte[] sha256Challenge, byte[] otrKey,
+                               OutputStream out) throws Exception {
+        out.write(downloadAsset(assetKey, assetToken, sha256Challenge, otrKey));
+    }
+
+    /**
+     * Same as downloadAsset into an OutputStream, but the file appears only once the SHA256 check passed
+     *
+     * @param path Destination file of the decrypted asset
+     * @throws Exception
+     */
+    default void downloadAsset(String assetKey, String assetToken, byte[] sha256Challenge, byte[] otrKey, Path path)
+            throws Exception {
+        Files.write(path, downloadAsset(assetKey, assetToken, sha256Challenge, otrKey));
+    }
+
     /**
      * @return Bot ID as UUID
      */
@@ -290,6 +325,17 @@ public interface WireClient extends Closeable {
      */
     String decrypt(UUID userId, String clientId, String cypher) throws CryptoException;
 
+    /**
+     * Same as {@link #decrypt(UUID, String, String)} without the Base64 encoding on either side
+     *
+     * @param cypher Encrypted bytes
+     * @return Decrypted bytes
+     */
+    default byte[] decrypt(UUID userId, String clientId, byte[] cypher) throws CryptoException {
+        String decrypted = decrypt(userId, clientId, Base64.getEncoder().encodeToString(cypher));
+        return Base64.getDecoder().decode(decrypted);
+    }
+
     /**
      * Invoked by the sdk. Called once when the conversation is created
      *
@@ -350,5 +396,41 @@ public interface WireClient extends Closeable {
      */
     AssetKey uploadAsset(IAsset asset) throws Exception;
 
+    /**
+     * Uploads the asset as it is read from its stream, without holding it in memory. The default implementation
+     * reads the stream into memory and uploads it with uploadAsset(IAsset), for clients that do not stream.
+     *
+     * @param asset Asset to be uploaded
+     * @return Assert Key and Asset token in case of private assets
+     * @throws Exception
+     */
+    default AssetKey uploadAsset(IStreamingAsset asset) throws Exception {
+        byte[] data;
+        try (InputStream in = asset.openEncryptedStream()) {
+            data = Util.toByteArray(in);
+        }
+        return uploadAsset(new IAsset() {
+            @Override
+            public String getMimeType() {
+                return asset.getMimeType();
+            }
+
+            @Override
+            public String getRetention() {
+                return asset.getRetention();
+            }
+
+            @Override
+            public byte[] getEncryptedData() {
+                return data;
+            }
+
+            @Override
+            public boolean isPublic() {
+                return asset.isPublic();
+            }
+        });
+    }
+
     void call(String content) throws Exception;
 }
\ No newline at end of file
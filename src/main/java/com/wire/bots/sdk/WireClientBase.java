@@ -1,28 +1,57 @@
 package com.wire.bots.sdk;
 
+import com.waz.model.Messages;
 import com.wire.bots.cryptobox.CryptoException;
 import com.wire.bots.sdk.assets.IGeneric;
 import com.wire.bots.sdk.crypto.Crypto;
+import com.wire.bots.sdk.crypto.ExternalMessage;
+import com.wire.bots.sdk.devices.DeviceCache;
 import com.wire.bots.sdk.exceptions.HttpException;
 import com.wire.bots.sdk.models.otr.*;
 import com.wire.bots.sdk.server.model.NewBot;
+import com.wire.bots.sdk.tools.Futures;
 import com.wire.bots.sdk.tools.Logger;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
 
 public class WireClientBase {
     protected final Backend api;
     protected final Crypto crypto;
     protected final NewBot state;
-    protected Devices devices = null;
+    protected final DeviceCache deviceCache;
+    protected final SendOptions options;
+    // Shared by the concurrent sends of this client
+    protected volatile Devices devices = null;
 
     protected WireClientBase(Backend api, Crypto crypto, NewBot state) {
+        this(api, crypto, state, null);
+    }
+
+    /**
+     * @param deviceCache If not NULL the devices of the conversation are shared by all the clients in this process
+     */
+    protected WireClientBase(Backend api, Crypto crypto, NewBot state, @Nullable DeviceCache deviceCache) {
+        this(api, crypto, state, deviceCache, SendOptions.DEFAULT);
+    }
+
+    /**
+     * @param options Prekey fetcher and External threshold of the sends
+     */
+    protected WireClientBase(Backend api, Crypto crypto, NewBot state, @Nullable DeviceCache deviceCache,
+                             SendOptions options) {
         this.api = api;
         this.crypto = crypto;
         this.state = state;
+        this.deviceCache = deviceCache;
+        this.options = options;
     }
 
     /**
@@ -34,27 +63,17 @@ public class WireClientBase {
      * @throws Exception CryptoBox exception
      */
     protected void postGenericMessage(IGeneric generic) throws Exception {
-        byte[] content = generic.createGenericMsg().toByteArray();
-
-        // Try to encrypt the msg for those devices that we have the session already
-        Recipients encrypt = crypto.encrypt(getAllDevices(), content);
-        OtrMessage msg = new OtrMessage(getDeviceId(), encrypt);
+        Messages.GenericMessage genericMessage = generic.createGenericMsg();
+        Missing all = getAllDevices();
+        Outgoing out = outgoing(genericMessage, all);
 
-        Devices res = api.sendMessage(msg, false);
+        Devices res = api.sendMessage(out.msg, false);
+        onClientMismatch(res);
         if (!res.hasMissing()) {
-            // Fetch preKeys for the missing devices from the Backend
-            PreKeys preKeys = api.getPreKeys(res.missing);
-
-            Logger.debug("Fetched %d preKeys for %d devices. Bot: %s", preKeys.count(), res.size(), getId());
-
-            // Encrypt msg for those devices that were missing. This time using preKeys
-            encrypt = crypto.encrypt(preKeys, content);
-            msg.add(encrypt);
+            encryptMissing(out, res);
 
-            // reset devices so they could be pulled next time
-            devices = null;
-
-            res = api.sendMessage(msg, true);
+            res = api.sendMessage(out.msg, true);
+            onClientMismatch(res);
             if (!res.hasMissing()) {
                 Logger.error(String.format("Failed to send otr message to %d devices. Bot: %s",
                         res.size(),
@@ -64,36 +83,19 @@ public class WireClientBase {
     }
 
     protected void postGenericMessage(IGeneric generic, UUID userId) throws Exception {
-        byte[] content = generic.createGenericMsg().toByteArray();
+        Messages.GenericMessage genericMessage = generic.createGenericMsg();
 
         // Try to encrypt the msg for those devices that we have the session already
-        Missing all = getAllDevices();
-        Missing user = new Missing();
-        for (UUID u : all.toUserIds()) {
-            if (userId.equals(u)) {
-                Collection<String> clients = all.toClients(u);
-                user.add(u, clients);
-            }
-        }
+        Missing user = filter(getAllDevices(), userId);
+        Outgoing out = outgoing(genericMessage, user);
 
-        Recipients encrypt = crypto.encrypt(user, content);
-        OtrMessage msg = new OtrMessage(getDeviceId(), encrypt);
-
-        Devices res = api.sendPartialMessage(msg, userId);
+        Devices res = api.sendPartialMessage(out.msg, userId);
+        onClientMismatch(res);
         if (!res.hasMissing()) {
-            // Fetch preKeys for the missing devices from the Backend
-            PreKeys preKeys = api.getPreKeys(res.missing);
-
-            Logger.debug("Fetched %d preKeys for %d devices. Bot: %s", preKeys.count(), res.size(), getId());
+            encryptMissing(out, res);
 
-            // Encrypt msg for those devices that were missing. This time using preKeys
-            encrypt = crypto.encrypt(preKeys, content);
-            msg.add(encrypt);
-
-            // reset devices so they could be pulled next time
-            devices = null;
-
-            res = api.sendMessage(msg, true);
+            res = api.sendMessage(out.msg, true);
+            onClientMismatch(res);
             if (!res.hasMissing()) {
                 Logger.error(String.format("Failed to send otr message to %d devices. Bot: %s",
                         res.size(),
@@ -102,6 +104,46 @@ public class WireClientBase {
         }
     }
 
+    /**
+     * Non-blocking postGenericMessage. Device discovery, send, prekey fetch and resend are chained on the
+     * AsyncBackend instead of blocking the caller. Encryption may wait for a session lock, so it runs on the executor
+     * and never on the http client's threads that complete the calls.
+     *
+     * @param executor Runs the encryption
+     * @return Fails with HttpException or CryptoException
+     */
+    protected CompletionStage<Void> postGenericMessageAsync(IGeneric generic, Executor executor) {
+        AsyncBackend async = (AsyncBackend) api;
+        Messages.GenericMessage genericMessage;
+        try {
+            genericMessage = generic.createGenericMsg();
+        } catch (Exception e) {
+            return Futures.failed(e);
+        }
+
+        return getAllDevicesAsync(async).thenComposeAsync(all -> {
+            Outgoing out = outgoingUnchecked(genericMessage, all);
+            return async.sendMessageAsync(out.msg, false)
+                    .thenCompose(res -> resendAsync(async, out, res, executor));
+        }, executor);
+    }
+
+    protected CompletionStage<Void> postGenericMessageAsync(IGeneric generic, UUID userId, Executor executor) {
+        AsyncBackend async = (AsyncBackend) api;
+        Messages.GenericMessage genericMessage;
+        try {
+            genericMessage = generic.createGenericMsg();
+        } catch (Exception e) {
+            return Futures.failed(e);
+        }
+
+        return getAllDevicesAsync(async).thenComposeAsync(all -> {
+            Outgoing out = outgoingUnchecked(genericMessage, filter(all, userId));
+            return async.sendPartialMessageAsync(out.msg, userId)
+                    .thenCompose(res -> resendAsync(async, out, res, executor));
+        }, executor);
+    }
+
     public void send(IGeneric message) throws Exception {
         postGenericMessage(message);
     }
@@ -134,6 +176,10 @@ public class WireClientBase {
         return crypto.decrypt(userId, clientId, cypher);
     }
 
+    public byte[] decrypt(UUID userId, String clientId, byte[] cypher) throws CryptoException {
+        return crypto.decrypt(userId, clientId, cypher);
+    }
+
     public PreKey newLastPreKey() throws CryptoException {
         return crypto.newLastPreKey();
     }
@@ -143,7 +189,182 @@ public class WireClientBase {
     }
 
     private Missing getAllDevices() throws HttpException {
-        return getDevices().missing;
+        UUID convId = getConversationId();
+        if (deviceCache == null || convId == null)
+            return getDevices().missing;
+
+        Missing ret = deviceCache.get(convId);
+        if (ret == null) {
+            ret = getDevices().missing;
+            deviceCache.put(convId, ret);
+        }
+
+        return withoutSelf(ret);
+    }
+
+    private CompletionStage<Missing> getAllDevicesAsync(AsyncBackend async) {
+        UUID convId = getConversationId();
+        if (deviceCache == null || convId == null)
+            return getDevicesAsync(async).thenApply(res -> res.missing);
+
+        Missing cached = deviceCache.get(convId);
+        if (cached != null)
+            return CompletableFuture.completedFuture(withoutSelf(cached));
+
+        return getDevicesAsync(async).thenApply(res -> {
+            deviceCache.put(convId, res.missing);
+            return withoutSelf(res.missing);
+        });
+    }
+
+    // The cached list is shared with other clients in this conversation. Never encrypt for ourselves
+    private Missing withoutSelf(Missing devices) {
+        Collection<String> self = devices.toClients(getId());
+        if (self != null && self.remove(getDeviceId()) && self.isEmpty())
+            devices.remove(getId());
+        return devices;
+    }
+
+    private static Missing filter(Missing all, UUID userId) {
+        Missing user = new Missing();
+        for (UUID u : all.toUserIds()) {
+            if (userId.equals(u)) {
+                Collection<String> clients = all.toClients(u);
+                user.add(u, clients);
+            }
+        }
+        return user;
+    }
+
+    /**
+     * Encrypts the message for the devices we already have a session with
+     */
+    private Outgoing outgoing(Messages.GenericMessage genericMessage, Missing devices) throws Exception {
+        byte[] content = genericMessage.toByteArray();
+
+        // Large message for many devices: encrypt it only once and send the key to each device
+        ExternalMessage external = null;
+        if (ExternalMessage.isExternal(content.length, count(devices), options.getExternalThreshold())) {
+            external = ExternalMessage.wrap(genericMessage);
+            content = external.getContent();
+        }
+
+        Recipients encrypt = crypto.encrypt(devices, content);
+        OtrMessage msg = new OtrMessage(getDeviceId(), encrypt);
+        if (external != null)
+            msg.setData(external.getData());
+
+        return new Outgoing(content, msg);
+    }
+
+    private Outgoing outgoingUnchecked(Messages.GenericMessage genericMessage, Missing devices) {
+        try {
+            return outgoing(genericMessage, devices);
+        } catch (Exception e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * The 412 fallback of postGenericMessage: fetch prekeys for the missing devices, encrypt for them and resend
+     */
+    private CompletionStage<Void> resendAsync(AsyncBackend async, Outgoing out, Devices res, Executor executor) {
+        onClientMismatch(res);
+        if (res.hasMissing())
+            return CompletableFuture.completedFuture(null);
+
+        CompletionStage<PreKeyFetcher.Claims> fetched = options.getPreKeyFetcher().fetchAsync(getId(), res.missing, async);
+
+        // Attached right away so the owned devices are released on every path, also when the executor rejects the
+        // encryption. Otherwise concurrent senders would wait for a dead flight until the owner timeout
+        CompletableFuture<Missing> encrypted = new CompletableFuture<>();
+        fetched.whenComplete((claims, t) -> {
+            if (t != null) {
+                encrypted.completeExceptionally(t);
+                return;
+            }
+            try {
+                executor.execute(() -> {
+                    try {
+                        encryptOwned(out, res, claims);
+                    } catch (Throwable e) {
+                        encrypted.completeExceptionally(e);
+                        return;
+                    }
+                    claims.others().whenComplete((others, e) -> {
+                        if (e != null)
+                            encrypted.completeExceptionally(e);
+                        else
+                            encrypted.complete(others);
+                    });
+                });
+            } catch (RuntimeException e) {
+                claims.close();
+                encrypted.completeExceptionally(e);
+            }
+        });
+
+        return encrypted
+                .thenComposeAsync(others -> {
+                    try {
+                        out.msg.add(crypto.encrypt(others, out.content));
+                    } catch (CryptoException e) {
+                        throw new CompletionException(e);
+                    }
+                    return async.sendMessageAsync(out.msg, true);
+                }, executor)
+                .thenAccept(again -> {
+                    onClientMismatch(again);
+                    if (!again.hasMissing()) {
+                        Logger.error(String.format("Failed to send otr message to %d devices. Bot: %s",
+                                again.size(),
+                                getId()));
+                    }
+                });
+    }
+
+    /**
+     * Encrypts for the devices the Backend reported missing. Prekeys are fetched only for the devices no concurrent
+     * send is already creating the session for, the rest are encrypted from the session that send created
+     */
+    private void encryptMissing(Outgoing out, Devices res) throws Exception {
+        PreKeyFetcher.Claims claims = options.getPreKeyFetcher().fetch(getId(), res.missing, api);
+        encryptOwned(out, res, claims);
+        out.msg.add(crypto.encrypt(claims.others().get(), out.content));
+    }
+
+    private void encryptOwned(Outgoing out, Devices res, PreKeyFetcher.Claims claims) throws CryptoException {
+        try {
+            PreKeys preKeys = claims.getPreKeys();
+
+            Logger.debug("Fetched %d preKeys for %d devices. Bot: %s", preKeys.count(), res.size(), getId());
+
+            // Encrypt msg for those devices that were missing. This time using preKeys
+            out.msg.add(crypto.encrypt(preKeys, out.content));
+            claims.used();
+        } finally {
+            claims.close();
+        }
+    }
+
+    private static int count(Missing devices) {
+        int ret = 0;
+        for (Collection<String> clients : devices.values())
+            ret += clients.size();
+        return ret;
+    }
+
+    /**
+     * Keep the list of devices up to date with the client mismatch the Backend returned for the sent message
+     */
+    private void onClientMismatch(Devices res) {
+        UUID convId = getConversationId();
+        if (deviceCache != null && convId != null) {
+            deviceCache.update(convId, res);
+        } else if (!res.hasMissing()) {
+            // reset devices so they could be pulled next time
+            devices = null;
+        }
     }
 
     /**
@@ -153,11 +374,43 @@ public class WireClientBase {
      * @return List of all participants in this conversation and their clientIds
      */
     private Devices getDevices() throws HttpException {
-        if (devices == null || devices.hasMissing()) {
+        Devices current = devices;
+        if (current == null || current.hasMissing()) {
             String deviceId = getDeviceId();
             OtrMessage msg = new OtrMessage(deviceId, new Recipients());
-            devices = api.sendMessage(msg);
+            current = api.sendMessage(msg);
+            publish(current);
+        }
+        return current;
+    }
+
+    private CompletionStage<Devices> getDevicesAsync(AsyncBackend async) {
+        Devices current = devices;
+        if (current != null && !current.hasMissing())
+            return CompletableFuture.completedFuture(current);
+
+        OtrMessage msg = new OtrMessage(getDeviceId(), new Recipients());
+        return async.sendMessageAsync(msg, null).thenApply(res -> {
+            publish(res);
+            return res;
+        });
+    }
+
+    /**
+     * Concurrent sends may discover the devices at the same time: keep only a complete list, the last one wins
+     */
+    private void publish(Devices res) {
+        if (!res.hasMissing())
+            devices = res;
+    }
+
+    private static class Outgoing {
+        final byte[] content;
+        final OtrMessage msg;
+
+        Outgoing(byte[] content, OtrMessage msg) {
+            this.content = content;
+            this.msg = msg;
         }
-        return devices;
     }
 }
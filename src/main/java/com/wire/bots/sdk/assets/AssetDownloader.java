@@ -0,0 +1,148 @@
+//
+// Wire
+// Copyright (C) 2016 Wire Swiss GmbH
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see http://www.gnu.org/licenses/.
+//
+
+package com.wire.bots.sdk.assets;
+
+import com.wire.bots.sdk.tools.Logger;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Downloads an encrypted asset and decrypts it while it is read, so the asset is never held in memory.
+ * The SHA-256 of the cipher is computed on the way and checked before the last block is written. If the connection
+ * breaks, the download is resumed from the last received byte with an HTTP range request.
+ */
+public final class AssetDownloader {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int RETRIES = 3;
+
+    private AssetDownloader() {
+    }
+
+    /**
+     * Decrypted asset goes to path.part first and is moved to path only when the SHA-256 check passed
+     */
+    public static void download(Source source, byte[] sha256Challenge, byte[] otrKey, Path path) throws Exception {
+        Path part = path.resolveSibling(path.getFileName() + ".part");
+        try (OutputStream out = Files.newOutputStream(part)) {
+            download(source, sha256Challenge, otrKey, out);
+        } catch (Exception e) {
+            Files.deleteIfExists(part);
+            throw e;
+        }
+        Files.move(part, path, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Most of the decrypted data is written before the SHA-256 can be checked. If this throws, whatever was written
+     * to out must be discarded
+     */
+    public static void download(Source source, byte[] sha256Challenge, byte[] otrKey, OutputStream out)
+            throws Exception {
+        MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        byte[] iv = new byte[16];
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long received = 0;
+        long resumedAt = 0;
+        int retries = 0;
+
+        while (true) {
+            try (InputStream input = source.open(received)) {
+                int n;
+                while ((n = input.read(buffer)) != -1) {
+                    sha256.update(buffer, 0, n);
+                    int offset = 0;
+                    if (received < iv.length) {
+                        offset = (int) Math.min(iv.length - received, n);
+                        System.arraycopy(buffer, 0, iv, (int) received, offset);
+                        if (received + offset == iv.length)
+                            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(otrKey, "AES"), new IvParameterSpec(iv));
+                    }
+                    received += n;
+                    if (offset < n)
+                        write(out, cipher.update(buffer, offset, n - offset));
+                }
+                break;
+            } catch (WriteException e) {
+                // The decrypted chunk is lost. Resuming would skip it and still pass the SHA-256 check of the cipher
+                throw e.getCause();
+            } catch (IOException e) {
+                // Only attempts that made no progress count towards the limit
+                if (received > resumedAt)
+                    retries = 0;
+                resumedAt = received;
+                if (++retries > RETRIES)
+                    throw e;
+                Logger.warning("AssetDownloader: resuming at %d bytes, attempt %d. %s", received, retries, e);
+            }
+        }
+
+        if (received < iv.length)
+            throw new IOException("Asset too short: " + received);
+        if (!Arrays.equals(sha256.digest(), sha256Challenge))
+            throw new Exception("Failed sha256 check");
+
+        byte[] last = cipher.doFinal();
+        if (last.length > 0)
+            out.write(last);
+        out.flush();
+    }
+
+    /**
+     * Failures of out are thrown as WriteException, so they are not taken for a broken connection and retried
+     */
+    private static void write(OutputStream out, byte[] bytes) throws WriteException {
+        if (bytes == null || bytes.length == 0)
+            return;
+        try {
+            out.write(bytes);
+        } catch (IOException e) {
+            throw new WriteException(e);
+        }
+    }
+
+    private static class WriteException extends IOException {
+        WriteException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+
+    public interface Source {
+        /**
+         * @param offset Number of bytes already received. The returned stream starts at this offset
+         * @return Stream of the encrypted asset. Closed by the caller
+         */
+        InputStream open(long offset) throws Exception;
+    }
+}
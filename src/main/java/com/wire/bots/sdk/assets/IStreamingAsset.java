@@ -0,0 +1,48 @@
+//
+// Wire
+// Copyright (C) 2016 Wire Swiss GmbH
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see http://www.gnu.org/licenses/.
+//
+
+package com.wire.bots.sdk.assets;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Asset that is uploaded from a stream, so the encrypted data never has to be held in memory
+ */
+public interface IStreamingAsset {
+    String getMimeType();
+
+    String getRetention();
+
+    boolean isPublic();
+
+    /**
+     * @return Size of the encrypted data in bytes
+     */
+    long getEncryptedLength();
+
+    /**
+     * @return Base64 MD5 of the encrypted data
+     */
+    String getMd5();
+
+    /**
+     * @return New stream of the encrypted data. The caller closes it
+     */
+    InputStream openEncryptedStream() throws IOException;
+}
@@ -0,0 +1,79 @@
+//
+// Wire
+// Copyright (C) 2016 Wire Swiss GmbH
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see http://www.gnu.org/licenses/.
+//
+
+package com.wire.bots.sdk.assets;
+
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Multipart body of an asset upload (metadata and data) that copies the asset data straight from its stream
+ * into the request, so it can be sent with chunked encoding without buffering the body
+ */
+public class MultipartStream implements StreamingOutput {
+    public static final String MEDIA_TYPE = "multipart/mixed; boundary=frontier";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final IStreamingAsset asset;
+
+    public MultipartStream(IStreamingAsset asset) {
+        this.asset = asset;
+    }
+
+    @Override
+    public void write(OutputStream os) throws IOException {
+        StringBuilder sb = new StringBuilder();
+
+        // Part 1
+        String strMetadata = String.format("{\"public\": %s, \"retention\": \"%s\"}",
+                asset.isPublic(),
+                asset.getRetention());
+        sb.append("--frontier\r\n");
+        sb.append("Content-Type: application/json; charset=utf-8\r\n");
+        sb.append("Content-Length: ")
+                .append(strMetadata.length())
+                .append("\r\n\r\n");
+        sb.append(strMetadata)
+                .append("\r\n");
+
+        // Part 2
+        sb.append("--frontier\r\n");
+        sb.append("Content-Type: ")
+                .append(asset.getMimeType())
+                .append("\r\n");
+        sb.append("Content-Length: ")
+                .append(asset.getEncryptedLength())
+                .append("\r\n");
+        sb.append("Content-MD5: ")
+                .append(asset.getMd5())
+                .append("\r\n\r\n");
+
+        os.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+        try (InputStream input = asset.openEncryptedStream()) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = input.read(buffer)) != -1)
+                os.write(buffer, 0, n);
+        }
+        os.write("\r\n--frontier--\r\n".getBytes(StandardCharsets.UTF_8));
+        os.flush();
+    }
+}
@@ -0,0 +1,160 @@
+//
+// Wire
+// Copyright (C) 2016 Wire Swiss GmbH
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see http://www.gnu.org/licenses/.
+//
+
+package com.wire.bots.sdk.assets;
+
+import com.google.protobuf.ByteString;
+import com.waz.model.Messages;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.UUID;
+
+/**
+ * File asset that is encrypted on the fly while it is read, instead of being read and encrypted into memory like
+ * FileAsset. The upload needs Content-MD5 before the data, so the file is streamed twice: once here to compute the
+ * MD5, the SHA-256 and the size, and once more when it is uploaded. Both passes use a small buffer only.
+ * The file must not change until it is uploaded.
+ */
+public class StreamingFileAsset implements IGeneric, IStreamingAsset {
+    static private final SecureRandom random = new SecureRandom();
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File file;
+    private final String mimeType;
+    private final UUID messageId;
+    private final byte[] otrKey;
+    private final byte[] iv;
+    private final byte[] sha256;
+    private final String md5;
+    private final long encryptedLength;
+
+    private String assetKey;
+    private String assetToken;
+
+    public StreamingFileAsset(File file, String mimeType, UUID messageId) throws Exception {
+        this.file = file;
+        this.mimeType = mimeType;
+        this.messageId = messageId;
+
+        otrKey = new byte[32];
+        random.nextBytes(otrKey);
+        iv = new byte[16];
+        random.nextBytes(iv);
+
+        MessageDigest md5 = MessageDigest.getInstance("MD5");
+        MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+        long length = 0;
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream input = openEncryptedStream()) {
+            int n;
+            while ((n = input.read(buffer)) != -1) {
+                md5.update(buffer, 0, n);
+                sha256.update(buffer, 0, n);
+                length += n;
+            }
+        }
+        this.md5 = Base64.getEncoder().encodeToString(md5.digest());
+        this.sha256 = sha256.digest();
+        this.encryptedLength = length;
+    }
+
+    @Override
+    public Messages.GenericMessage createGenericMsg() {
+        // Remote
+        Messages.Asset.RemoteData.Builder remote = Messages.Asset.RemoteData.newBuilder()
+                .setOtrKey(ByteString.copyFrom(otrKey))
+                .setSha256(ByteString.copyFrom(sha256))
+                .setAssetId(assetKey)
+                .setAssetToken(assetToken);
+
+        Messages.Asset.Builder asset = Messages.Asset.newBuilder()
+                .setUploaded(remote);
+
+        return Messages.GenericMessage.newBuilder()
+                .setMessageId(getMessageId().toString())
+                .setAsset(asset)
+                .build();
+    }
+
+    /**
+     * Same layout as Util.encrypt: the iv followed by the AES/CBC/PKCS5Padding cipher text
+     */
+    @Override
+    public InputStream openEncryptedStream() throws IOException {
+        Cipher cipher;
+        try {
+            cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(otrKey, "AES"), new IvParameterSpec(iv));
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+        return new SequenceInputStream(new ByteArrayInputStream(iv),
+                new CipherInputStream(new FileInputStream(file), cipher));
+    }
+
+    public void setAssetKey(String assetKey) {
+        this.assetKey = assetKey;
+    }
+
+    public void setAssetToken(String assetToken) {
+        this.assetToken = assetToken;
+    }
+
+    @Override
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    @Override
+    public String getRetention() {
+        return "expiring";
+    }
+
+    @Override
+    public boolean isPublic() {
+        return false;
+    }
+
+    @Override
+    public long getEncryptedLength() {
+        return encryptedLength;
+    }
+
+    @Override
+    public String getMd5() {
+        return md5;
+    }
+
+    @Override
+    public UUID getMessageId() {
+        return messageId;
+    }
+}
@@ -9,6 +9,7 @@ import com.wire.bots.sdk.models.otr.Recipients;
 import java.io.Closeable;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.UUID;
 
 public interface Crypto extends Closeable {
@@ -42,6 +43,17 @@ public interface Crypto extends Closeable {
      */
     String decrypt(UUID userId, String clientId, String cypher) throws CryptoException;
 
+    /**
+     * Same as {@link #decrypt(UUID, String, String)} without the Base64 encoding on either side
+     *
+     * @param cypher Encrypted bytes
+     * @return Decrypted bytes
+     */
+    default byte[] decrypt(UUID userId, String clientId, byte[] cypher) throws CryptoException {
+        String decrypted = decrypt(userId, clientId, Base64.getEncoder().encodeToString(cypher));
+        return Base64.getDecoder().decode(decrypted);
+    }
+
     boolean isClosed();
 
     void purge() throws IOException;
@@ -34,6 +34,7 @@ import java.util.UUID;
  * Wrapper for the Crypto Box. This class is thread safe.
  */
 abstract class CryptoBase implements Crypto {
+    private volatile ParallelEncryption parallel = ParallelEncryption.DISABLED;
 
     private static com.wire.bots.cryptobox.PreKey toPreKey(PreKey preKey) {
         return new com.wire.bots.cryptobox.PreKey(preKey.id, Base64.getDecoder().decode(preKey.key));
@@ -52,6 +53,17 @@ abstract class CryptoBase implements Crypto {
 
     public abstract ICryptobox box();
 
+    void setParallelEncryption(ParallelEncryption parallel) {
+        this.parallel = parallel;
+    }
+
+    /**
+     * Runs one box operation on a session, on the thread that calls it
+     */
+    protected byte[] session(SessionOp op) throws CryptoException {
+        return op.run();
+    }
+
     @Override
     public byte[] getIdentity() throws CryptoException {
         return box().getIdentity();
@@ -101,20 +113,27 @@ abstract class CryptoBase implements Crypto {
      */
     @Override
     public Recipients encrypt(PreKeys preKeys, byte[] content) throws CryptoException {
-        Recipients recipients = new Recipients();
+        ArrayList<UUID> userIds = new ArrayList<>();
+        ArrayList<String> clientIds = new ArrayList<>();
+        ArrayList<PreKey> keys = new ArrayList<>();
         for (UUID userId : preKeys.keySet()) {
             HashMap<String, PreKey> clients = preKeys.get(userId);
             for (String clientId : clients.keySet()) {
                 PreKey pk = clients.get(clientId);
                 if (pk != null && pk.key != null) {
-                    String id = createId(userId, clientId);
-                    byte[] cipher = box().encryptFromPreKeys(id, toPreKey(pk), content);
-                    String s = Base64.getEncoder().encodeToString(cipher);
-                    recipients.add(userId, clientId, s);
+                    userIds.add(userId);
+                    clientIds.add(clientId);
+                    keys.add(pk);
                 }
             }
         }
-        return recipients;
+
+        byte[][] ciphers = parallel.encrypt(keys.size(), i -> {
+            String id = createId(userIds.get(i), clientIds.get(i));
+            return session(() -> box().encryptFromPreKeys(id, toPreKey(keys.get(i)), content));
+        });
+
+        return toRecipients(userIds, clientIds, ciphers);
     }
 
     /**
@@ -126,17 +145,29 @@ abstract class CryptoBase implements Crypto {
      */
     @Override
     public Recipients encrypt(Missing missing, byte[] content) throws CryptoException {
-        Recipients recipients = new Recipients();
+        ArrayList<UUID> userIds = new ArrayList<>();
+        ArrayList<String> clientIds = new ArrayList<>();
         for (UUID userId : missing.toUserIds()) {
             for (String clientId : missing.toClients(userId)) {
-                String id = createId(userId, clientId);
-                byte[] cipher = box().encryptFromSession(id, content);
-                if (cipher != null) {
-                    String s = Base64.getEncoder().encodeToString(cipher);
-                    recipients.add(userId, clientId, s);
-                }
+                userIds.add(userId);
+                clientIds.add(clientId);
             }
         }
+
+        byte[][] ciphers = parallel.encrypt(clientIds.size(), i -> {
+            String id = createId(userIds.get(i), clientIds.get(i));
+            return session(() -> box().encryptFromSession(id, content));
+        });
+
+        return toRecipients(userIds, clientIds, ciphers);
+    }
+
+    private static Recipients toRecipients(ArrayList<UUID> userIds, ArrayList<String> clientIds, byte[][] ciphers) {
+        Recipients recipients = new Recipients();
+        for (int i = 0; i < ciphers.length; i++) {
+            if (ciphers[i] != null)
+                recipients.add(userIds.get(i), clientIds.get(i), ciphers[i]);
+        }
         return recipients;
     }
 
@@ -151,14 +182,16 @@ abstract class CryptoBase implements Crypto {
      */
     @Override
     public String decrypt(UUID userId, String clientId, String cypher) throws CryptoException {
-        byte[] decode = Base64.getDecoder().decode(cypher);
-        String id = createId(userId, clientId);
-
-        ICryptobox cryptobox = box();
-        byte[] decrypt = cryptobox.decrypt(id, decode);
+        byte[] decrypt = decrypt(userId, clientId, Base64.getDecoder().decode(cypher));
         return Base64.getEncoder().encodeToString(decrypt);
     }
 
+    @Override
+    public byte[] decrypt(UUID userId, String clientId, byte[] cypher) throws CryptoException {
+        String id = createId(userId, clientId);
+        return session(() -> box().decrypt(id, cypher));
+    }
+
     /**
      * Closes CryptoBox object. After this method is invoked no more operations on this object can be done
      */
@@ -171,4 +204,8 @@ abstract class CryptoBase implements Crypto {
     public boolean isClosed() {
         return box().isClosed();
     }
+
+    protected interface SessionOp {
+        byte[] run() throws CryptoException;
+    }
 }
@@ -22,8 +22,14 @@ import com.wire.bots.cryptobox.CryptoDb;
 import com.wire.bots.cryptobox.CryptoException;
 import com.wire.bots.cryptobox.ICryptobox;
 import com.wire.bots.cryptobox.IStorage;
+import com.wire.bots.cryptobox.StorageException;
+import com.wire.bots.sdk.crypto.storage.BatchingStorage;
+import com.wire.bots.sdk.crypto.storage.IBatchStorage;
+import com.wire.bots.sdk.crypto.storage.ReleasingStorage;
+import com.wire.bots.sdk.models.otr.PreKey;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.UUID;
 
 /**
@@ -31,6 +37,8 @@ import java.util.UUID;
  */
 public class CryptoDatabase extends CryptoBase {
     private final CryptoDb box;
+    private final BatchingStorage batching;
+    private final ReleasingStorage sessions;
 
     /**
      * Opens the CryptoBox using given directory path
@@ -44,21 +52,69 @@ public class CryptoDatabase extends CryptoBase {
      * @throws Exception
      */
     public CryptoDatabase(UUID botId, IStorage storage) throws CryptoException {
+        batching = batching(storage);
+        sessions = new ReleasingStorage(batching != null ? batching : storage);
         try {
-            box = new CryptoDb(botId.toString(), storage);
+            box = new CryptoDb(botId.toString(), sessions);
         } catch (IOException e) {
             throw new CryptoException(e);
         }
     }
 
     public CryptoDatabase(UUID botId, IStorage storage, String dir) throws CryptoException {
+        batching = batching(storage);
+        sessions = new ReleasingStorage(batching != null ? batching : storage);
         try {
-            box = new CryptoDb(botId.toString(), storage, dir);
+            box = new CryptoDb(botId.toString(), sessions, dir);
         } catch (IOException e) {
             throw new CryptoException(e);
         }
     }
 
+    private static BatchingStorage batching(IStorage storage) {
+        return storage instanceof IBatchStorage ? new BatchingStorage((IBatchStorage) storage) : null;
+    }
+
+    /**
+     * When the storage supports it the generated prekeys are written in one batch instead of one insert per key
+     */
+    @Override
+    public ArrayList<PreKey> newPreKeys(int from, int count) throws CryptoException {
+        if (batching == null)
+            return super.newPreKeys(from, count);
+
+        batching.begin();
+        try {
+            ArrayList<PreKey> ret = super.newPreKeys(from, count);
+            batching.flush();
+            return ret;
+        } catch (StorageException e) {
+            throw new CryptoException(e);
+        } finally {
+            batching.abort();
+        }
+    }
+
+    /**
+     * Session Records the operation did not persist, because it failed, are closed so the session is not kept locked
+     */
+    @Override
+    protected byte[] session(SessionOp op) throws CryptoException {
+        try {
+            return op.run();
+        } finally {
+            sessions.release();
+        }
+    }
+
+    /**
+     * @param parallel Fans the encryption for many recipients out over a pool
+     */
+    public CryptoDatabase addParallelEncryption(ParallelEncryption parallel) {
+        setParallelEncryption(parallel);
+        return this;
+    }
+
     @Override
     public ICryptobox box() {
         return box;
@@ -79,6 +79,14 @@ public class CryptoFile extends CryptoBase {
         box = CryptoBox.open(root);
     }
 
+    /**
+     * @param parallel Fans the encryption for many recipients out over a pool
+     */
+    public CryptoFile addParallelEncryption(ParallelEncryption parallel) {
+        setParallelEncryption(parallel);
+        return this;
+    }
+
     @Override
     public ICryptobox box() {
         return box;
@@ -0,0 +1,105 @@
+package com.wire.bots.sdk.crypto;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.waz.model.Messages;
+import com.wire.bots.sdk.tools.Util;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * External message: the GenericMessage is encrypted once with a random AES key and sent as the data field of the
+ * OtrMessage. Only the small External wrapper (AES key + sha256 of the blob) is encrypted with Proteus for every
+ * device. Used when the payload times the number of devices gets large.
+ */
+public class ExternalMessage {
+    /**
+     * Min number of bytes (payload size x number of devices) for a message to be sent as External, unless the client
+     * was given another one
+     */
+    public static final int DEFAULT_THRESHOLD = 256 * 1024;
+    private static final SecureRandom random = new SecureRandom();
+
+    private final byte[] content;
+    private final String data;
+
+    private ExternalMessage(byte[] content, String data) {
+        this.content = content;
+        this.data = data;
+    }
+
+    public static boolean isExternal(int size, int devices) {
+        return isExternal(size, devices, DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * @param threshold Min number of bytes (payload size x number of devices) for a message to be sent as External
+     */
+    public static boolean isExternal(int size, int devices, int threshold) {
+        return (long) size * devices >= threshold;
+    }
+
+    /**
+     * @param generic Message to be sent
+     * @return External wrapper and the AES encrypted message
+     */
+    public static ExternalMessage wrap(Messages.GenericMessage generic) throws Exception {
+        byte[] key = new byte[32];
+        byte[] iv = new byte[16];
+        random.nextBytes(key);
+        random.nextBytes(iv);
+
+        byte[] encrypted = Util.encrypt(key, generic.toByteArray(), iv);
+        byte[] sha256 = MessageDigest.getInstance("SHA-256").digest(encrypted);
+
+        Messages.External external = Messages.External.newBuilder()
+                .setOtrKey(ByteString.copyFrom(key))
+                .setSha256(ByteString.copyFrom(sha256))
+                .build();
+
+        Messages.GenericMessage wrapper = Messages.GenericMessage.newBuilder()
+                .setMessageId(generic.getMessageId())
+                .setExternal(external)
+                .build();
+
+        return new ExternalMessage(wrapper.toByteArray(), Base64.getEncoder().encodeToString(encrypted));
+    }
+
+    /**
+     * @param external External wrapper as decrypted with Proteus
+     * @param data     Base64 encoded data field of the OtrMessage
+     * @return The original GenericMessage
+     */
+    public static Messages.GenericMessage unwrap(Messages.External external, String data) throws Exception {
+        if (data == null)
+            throw new InvalidProtocolBufferException("External message without data");
+
+        byte[] encrypted = Base64.getDecoder().decode(data);
+        if (external.hasSha256()) {
+            byte[] sha256 = MessageDigest.getInstance("SHA-256").digest(encrypted);
+            if (!Arrays.equals(sha256, external.getSha256().toByteArray()))
+                throw new GeneralSecurityException("External message: failed sha256 check");
+        }
+
+        byte[] decrypted = Util.decrypt(external.getOtrKey().toByteArray(), encrypted);
+        return Messages.GenericMessage.parseFrom(decrypted);
+    }
+
+    /**
+     * @return Serialized External wrapper. This is what gets encrypted for every device
+     */
+    public byte[] getContent() {
+        return content;
+    }
+
+    /**
+     * @return Base64 encoded, AES encrypted GenericMessage
+     */
+    public String getData() {
+        return data;
+    }
+}
@@ -0,0 +1,70 @@
+package com.wire.bots.sdk.crypto;
+
+import com.wire.bots.cryptobox.CryptoException;
+
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Fans the per recipient encryption out over a fork-join pool. Every session appears only once in one encrypt call so
+ * no session is ever encrypted from two threads at the same time. Ciphers are written into a plain array indexed by
+ * recipient and assembled afterwards by the calling thread, so the workers never contend on a shared map.
+ * Given to the crypto boxes with addParallelEncryption. Boxes without one encrypt on the calling thread.
+ */
+public final class ParallelEncryption {
+    public static final ParallelEncryption DISABLED = new ParallelEncryption(null, Integer.MAX_VALUE);
+
+    private final ForkJoinPool pool;
+    private final int threshold;
+
+    /**
+     * @param pool      Pool that runs the encryption
+     * @param threshold Min number of recipients to go parallel. Below it the overhead is higher than the gain
+     */
+    public ParallelEncryption(ForkJoinPool pool, int threshold) {
+        this.pool = pool;
+        this.threshold = threshold;
+    }
+
+    /**
+     * @param count  Number of recipients
+     * @param cipher Encrypts for the i-th recipient. Returns NULL if there is nothing to encrypt for this recipient
+     * @return Ciphers indexed by recipient. NULL where the cipher returned NULL
+     */
+    byte[][] encrypt(int count, Cipher cipher) throws CryptoException {
+        byte[][] ret = new byte[count][];
+
+        if (pool == null || count < threshold) {
+            for (int i = 0; i < count; i++)
+                ret[i] = cipher.encrypt(i);
+            return ret;
+        }
+
+        try {
+            pool.submit(() -> IntStream.range(0, count).parallel().forEach(i -> {
+                try {
+                    ret[i] = cipher.encrypt(i);
+                } catch (CryptoException e) {
+                    throw new CompletionException(e);
+                }
+            })).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CryptoException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof CompletionException)
+                cause = cause.getCause();
+            if (cause instanceof CryptoException)
+                throw (CryptoException) cause;
+            throw new CryptoException(e);
+        }
+        return ret;
+    }
+
+    interface Cipher {
+        byte[] encrypt(int i) throws CryptoException;
+    }
+}
@@ -0,0 +1,144 @@
+package com.wire.bots.sdk.crypto;
+
+import com.wire.bots.cryptobox.CryptoException;
+import com.wire.bots.sdk.models.otr.Missing;
+import com.wire.bots.sdk.models.otr.PreKey;
+import com.wire.bots.sdk.models.otr.PreKeys;
+import com.wire.bots.sdk.models.otr.Recipients;
+import com.wire.bots.sdk.tools.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.UUID;
+
+/**
+ * Reference counted Crypto that is shared by many WireClients. Every client gets its own lease by calling
+ * {@link #acquire()}: closing the lease does not close the underlying box. The box is closed once it has been evicted
+ * and the last lease has been closed.
+ * Calls on the underlying box are serialized.
+ */
+public class SharedCrypto {
+    private final Crypto crypto;
+    private int refs;
+    private boolean evicted;
+
+    public SharedCrypto(Crypto crypto) {
+        this.crypto = crypto;
+    }
+
+    /**
+     * @return new lease or NULL if this box has already been evicted
+     */
+    public synchronized Crypto acquire() {
+        if (evicted || crypto.isClosed())
+            return null;
+        refs++;
+        return new Lease();
+    }
+
+    /**
+     * No new leases are given out after this call. The box is closed as soon as it is no longer in use
+     */
+    public synchronized void evict() {
+        evicted = true;
+        if (refs == 0)
+            closeQuietly();
+    }
+
+    private synchronized void release() {
+        refs--;
+        if (evicted && refs == 0)
+            closeQuietly();
+    }
+
+    private void closeQuietly() {
+        try {
+            crypto.close();
+        } catch (Exception e) {
+            Logger.warning("SharedCrypto: close: %s", e);
+        }
+    }
+
+    private class Lease implements Crypto {
+        private boolean closed;
+
+        @Override
+        public byte[] getIdentity() throws CryptoException {
+            synchronized (crypto) {
+                return crypto.getIdentity();
+            }
+        }
+
+        @Override
+        public byte[] getLocalFingerprint() throws CryptoException {
+            synchronized (crypto) {
+                return crypto.getLocalFingerprint();
+            }
+        }
+
+        @Override
+        public PreKey newLastPreKey() throws CryptoException {
+            synchronized (crypto) {
+                return crypto.newLastPreKey();
+            }
+        }
+
+        @Override
+        public ArrayList<PreKey> newPreKeys(int from, int count) throws CryptoException {
+            synchronized (crypto) {
+                return crypto.newPreKeys(from, count);
+            }
+        }
+
+        @Override
+        public Recipients encrypt(PreKeys preKeys, byte[] content) throws CryptoException {
+            synchronized (crypto) {
+                return crypto.encrypt(preKeys, content);
+            }
+        }
+
+        @Override
+        public Recipients encrypt(Missing missing, byte[] content) throws CryptoException {
+            synchronized (crypto) {
+                return crypto.encrypt(missing, content);
+            }
+        }
+
+        @Override
+        public String decrypt(UUID userId, String clientId, String cypher) throws CryptoException {
+            synchronized (crypto) {
+                return crypto.decrypt(userId, clientId, cypher);
+            }
+        }
+
+        @Override
+        public byte[] decrypt(UUID userId, String clientId, byte[] cypher) throws CryptoException {
+            synchronized (crypto) {
+                return crypto.decrypt(userId, clientId, cypher);
+            }
+        }
+
+        @Override
+        public boolean isClosed() {
+            return closed || crypto.isClosed();
+        }
+
+        @Override
+        public void purge() throws IOException {
+            evict();
+            synchronized (crypto) {
+                crypto.purge();
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (closed)
+                    return;
+                closed = true;
+            }
+            release();
+        }
+    }
+}
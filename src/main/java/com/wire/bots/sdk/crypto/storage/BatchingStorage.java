@@ -0,0 +1,87 @@
+package com.wire.bots.sdk.crypto.storage;
+
+import com.wire.bots.cryptobox.IRecord;
+import com.wire.bots.cryptobox.IStorage;
+import com.wire.bots.cryptobox.PreKey;
+import com.wire.bots.cryptobox.StorageException;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Buffers the prekeys cryptobox inserts one by one between {@link #begin()} and {@link #flush()} and writes them with
+ * a single {@link IBatchStorage#insertPrekeys} call. Batches are per thread. Everything else goes straight through.
+ */
+public class BatchingStorage implements IStorage {
+    private final IBatchStorage storage;
+    private final ThreadLocal<Map<String, List<PreKey>>> batch = new ThreadLocal<>();
+
+    public BatchingStorage(IBatchStorage storage) {
+        this.storage = storage;
+    }
+
+    public void begin() {
+        batch.set(new LinkedHashMap<>());
+    }
+
+    public void flush() throws StorageException {
+        Map<String, List<PreKey>> pending = batch.get();
+        batch.remove();
+        if (pending == null)
+            return;
+
+        for (Map.Entry<String, List<PreKey>> entry : pending.entrySet())
+            storage.insertPrekeys(entry.getKey(), entry.getValue());
+    }
+
+    /**
+     * Drops whatever was not flushed
+     */
+    public void abort() {
+        batch.remove();
+    }
+
+    @Override
+    public void insertPrekey(String id, int kid, byte[] data) throws StorageException {
+        Map<String, List<PreKey>> pending = batch.get();
+        if (pending == null) {
+            storage.insertPrekey(id, kid, data);
+            return;
+        }
+        pending.computeIfAbsent(id, k -> new ArrayList<>()).add(new PreKey(kid, data));
+    }
+
+    @Override
+    public PreKey[] fetchPrekeys(String id) throws StorageException {
+        // Read your own writes
+        List<PreKey> pending = batch.get() == null ? null : batch.get().remove(id);
+        if (pending != null)
+            storage.insertPrekeys(id, pending);
+        return storage.fetchPrekeys(id);
+    }
+
+    @Override
+    public IRecord fetchSession(String id, String sid) throws StorageException {
+        return storage.fetchSession(id, sid);
+    }
+
+    @Override
+    public byte[] fetchIdentity(String id) throws StorageException {
+        return storage.fetchIdentity(id);
+    }
+
+    @Override
+    public void insertIdentity(String id, byte[] data) throws StorageException {
+        storage.insertIdentity(id, data);
+    }
+
+    @Override
+    public void purge(String id) throws StorageException {
+        Map<String, List<PreKey>> pending = batch.get();
+        if (pending != null)
+            pending.remove(id);
+        storage.purge(id);
+    }
+}
@@ -0,0 +1,14 @@
+package com.wire.bots.sdk.crypto.storage;
+
+import com.wire.bots.cryptobox.IStorage;
+import com.wire.bots.cryptobox.PreKey;
+import com.wire.bots.cryptobox.StorageException;
+
+import java.util.List;
+
+/**
+ * Storage that can insert many prekeys in one round-trip
+ */
+public interface IBatchStorage extends IStorage {
+    void insertPrekeys(String id, List<PreKey> preKeys) throws StorageException;
+}
@@ -1,28 +1,59 @@
 package com.wire.bots.sdk.crypto.storage;
 
 import com.wire.bots.cryptobox.IRecord;
-import com.wire.bots.cryptobox.IStorage;
 import com.wire.bots.cryptobox.PreKey;
+import com.wire.bots.cryptobox.StorageException;
+import com.wire.bots.sdk.tools.Logger;
+import io.dropwizard.util.Duration;
 import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
 
 import javax.annotation.Nullable;
+import java.util.ArrayList;
 import java.util.List;
 
-public class JdbiStorage implements IStorage {
+public class JdbiStorage implements IBatchStorage {
+    private static final Duration DEFAULT_LOCK_TIMEOUT = Duration.seconds(5);
+
+    private final DBI jdbi;
+    private final long lockTimeout;
     private final SessionsDAO sessionsDAO;
     private final IdentitiesDAO identitiesDAO;
     private final PrekeysDAO prekeysDAO;
 
     public JdbiStorage(DBI jdbi) {
+        this(jdbi, DEFAULT_LOCK_TIMEOUT);
+    }
+
+    /**
+     * @param jdbi        DBI
+     * @param lockTimeout Max time to wait for the session row lock held by another decrypt
+     */
+    public JdbiStorage(DBI jdbi, Duration lockTimeout) {
+        this.jdbi = jdbi;
+        this.lockTimeout = lockTimeout.toMilliseconds();
         sessionsDAO = jdbi.onDemand(SessionsDAO.class);
         identitiesDAO = jdbi.onDemand(IdentitiesDAO.class);
         prekeysDAO = jdbi.onDemand(PrekeysDAO.class);
     }
 
+    /**
+     * Opens a transaction and locks the session row. The transaction stays open until the Record is persisted, so a
+     * concurrent decrypt for the same session waits for this one to finish instead of reading a stale ratchet
+     */
     @Override
-    public IRecord fetchSession(String id, String sid) {
-        Session session = sessionsDAO.get(id, sid);
-        return new Record(id, sid, session == null ? null : session.data); //todo implement commit on UPDATE
+    public IRecord fetchSession(String id, String sid) throws StorageException {
+        Handle handle = jdbi.open();
+        try {
+            handle.begin();
+            handle.execute(String.format("SET LOCAL lock_timeout = %d", lockTimeout));
+            SessionsDAO dao = handle.attach(SessionsDAO.class);
+            Session session = dao.get(id, sid);
+            return new Record(id, sid, session == null ? null : session.data, handle, dao);
+        } catch (Exception e) {
+            close(handle, false);
+            throw new StorageException(String.format("fetchSession: %s %s", sid, e));
+        }
     }
 
     @Override
@@ -51,6 +82,31 @@ public class JdbiStorage implements IStorage {
         prekeysDAO.insert(id, kid, data);
     }
 
+    /**
+     * One JDBC batch in one transaction. Large batches go through COPY
+     */
+    @Override
+    public void insertPrekeys(String id, List<PreKey> preKeys) {
+        if (preKeys.isEmpty())
+            return;
+
+        if (preKeys.size() >= PrekeysCopy.THRESHOLD) {
+            jdbi.inTransaction((handle, status) -> {
+                PrekeysCopy.copy(handle.getConnection(), id, preKeys);
+                return null;
+            });
+            return;
+        }
+
+        List<Integer> kids = new ArrayList<>(preKeys.size());
+        List<byte[]> data = new ArrayList<>(preKeys.size());
+        for (PreKey preKey : preKeys) {
+            kids.add(preKey.id);
+            data.add(preKey.data);
+        }
+        prekeysDAO.insertAll(id, kids, data);
+    }
+
     @Override
     public void purge(String id) {
         sessionsDAO.delete(id);
@@ -58,15 +114,33 @@ public class JdbiStorage implements IStorage {
         prekeysDAO.delete(id);
     }
 
-    class Record implements IRecord {
+    private static void close(Handle handle, boolean commit) {
+        try {
+            if (commit)
+                handle.commit();
+            else
+                handle.rollback();
+        } catch (Exception e) {
+            Logger.error("JdbiStorage: %s %s", commit ? "commit" : "rollback", e);
+        } finally {
+            handle.close();
+        }
+    }
+
+    class Record implements IRecord, AutoCloseable {
         private final String id;
         private final String sid;
         private final byte[] data;
+        private final Handle handle;
+        private final SessionsDAO dao;
+        private boolean closed;
 
-        Record(String id, String sid, byte[] data) {
+        Record(String id, String sid, byte[] data, Handle handle, SessionsDAO dao) {
             this.id = id;
             this.sid = sid;
             this.data = data;
+            this.handle = handle;
+            this.dao = dao;
         }
 
         @Override
@@ -76,9 +150,31 @@ public class JdbiStorage implements IStorage {
 
         @Override
         public void persist(byte[] update) {
-            if (update != null) {
-                sessionsDAO.insert(id, sid, update);
-                //todo implement commits
+            if (closed)
+                return;
+
+            closed = true;
+            try {
+                if (update != null)
+                    dao.insert(id, sid, update);
+                // Commit releases the row lock taken in fetchSession
+                handle.commit();
+            } catch (RuntimeException e) {
+                // Thrown to the caller: the ratchet was not saved
+                close(handle, false);
+                throw e;
+            }
+            handle.close();
+        }
+
+        /**
+         * Rolls back and releases the lock if the Record was never persisted
+         */
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                JdbiStorage.close(handle, false);
             }
         }
     }
@@ -0,0 +1,142 @@
+package com.wire.bots.sdk.crypto.storage;
+
+import com.wire.bots.cryptobox.IRecord;
+import com.wire.bots.cryptobox.PreKey;
+import com.wire.bots.cryptobox.StorageException;
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVStore;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Crypto storage in an embedded H2 MVStore file (db.driver: mvstore), for deployments without Postgres or Redis.
+ * <p>
+ * Every write is committed before the call returns. MVStore commits are serialized, so concurrent writers are
+ * grouped: the first commit stores the changes of all of them and the others return without writing. Prekeys
+ * inserted through insertPrekeys go in one commit. Sessions are locked in process from fetchSession until the
+ * Record is persisted or closed, so one file must not be opened by more than one process.
+ */
+public class MVStorage implements IBatchStorage {
+    private static final ConcurrentHashMap<String, MVStore> stores = new ConcurrentHashMap<>();
+    private static final SessionLock locks = new SessionLock();
+
+    private final MVStore store;
+    private final MVMap<String, byte[]> identities;
+    private final MVMap<String, byte[]> prekeys;
+    private final MVMap<String, byte[]> sessions;
+
+    public MVStorage(MVStore store) {
+        this.store = store;
+        this.identities = store.openMap("identities");
+        this.prekeys = store.openMap("prekeys");
+        this.sessions = store.openMap("sessions");
+    }
+
+    public MVStorage(String fileName) {
+        this(open(fileName));
+    }
+
+    /**
+     * @return The store in this file. Opened on first use and shared by all the storages of this file
+     */
+    public static MVStore open(String fileName) {
+        File file = new File(fileName).getAbsoluteFile();
+        return stores.computeIfAbsent(file.getPath(), path -> {
+            File dir = file.getParentFile();
+            if (dir != null)
+                dir.mkdirs();
+            return new MVStore.Builder()
+                    .fileName(path)
+                    .autoCommitDisabled()
+                    .compress()
+                    .open();
+        });
+    }
+
+    public static void close(MVStore store) {
+        stores.values().remove(store);
+        store.close();
+    }
+
+    @Override
+    public IRecord fetchSession(String id, String sid) throws StorageException {
+        String key = String.format("%s/%s", id, sid);
+        return locks.lock(key, sid, () -> sessions.get(key), data -> {
+            sessions.put(key, data);
+            store.commit();
+        });
+    }
+
+    @Override
+    public byte[] fetchIdentity(String id) {
+        return identities.get(id);
+    }
+
+    @Override
+    public void insertIdentity(String id, byte[] data) {
+        identities.put(id, data);
+        store.commit();
+    }
+
+    @Override
+    public PreKey[] fetchPrekeys(String id) {
+        String prefix = prefix(id);
+        ArrayList<PreKey> ret = new ArrayList<>();
+        Iterator<String> it = prekeys.keyIterator(prefix);
+        while (it.hasNext()) {
+            String key = it.next();
+            if (!key.startsWith(prefix))
+                break;
+            int kid = Integer.parseInt(key.substring(prefix.length()), 16);
+            ret.add(new PreKey(kid, prekeys.get(key)));
+        }
+        return ret.isEmpty() ? null : ret.toArray(new PreKey[0]);
+    }
+
+    @Override
+    public void insertPrekey(String id, int kid, byte[] data) {
+        prekeys.put(prekey(id, kid), data);
+        store.commit();
+    }
+
+    @Override
+    public void insertPrekeys(String id, List<PreKey> preKeys) {
+        for (PreKey preKey : preKeys)
+            prekeys.put(prekey(id, preKey.id), preKey.data);
+        store.commit();
+    }
+
+    @Override
+    public void purge(String id) {
+        identities.remove(id);
+        removePrefix(prekeys, prefix(id));
+        removePrefix(sessions, String.format("%s/", id));
+        store.commit();
+    }
+
+    private static void removePrefix(MVMap<String, byte[]> map, String prefix) {
+        List<String> keys = new ArrayList<>();
+        Iterator<String> it = map.keyIterator(prefix);
+        while (it.hasNext()) {
+            String key = it.next();
+            if (!key.startsWith(prefix))
+                break;
+            keys.add(key);
+        }
+        for (String key : keys)
+            map.remove(key);
+    }
+
+    private static String prefix(String id) {
+        return String.format("%s/", id);
+    }
+
+    private static String prekey(String id, int kid) {
+        // Fixed width so that the keys iterate in kid order
+        return String.format("%s/%08x", id, kid);
+    }
+}
@@ -1,206 +1,327 @@
 package com.wire.bots.sdk.crypto.storage;
 
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Timer;
 import com.wire.bots.cryptobox.IRecord;
-import com.wire.bots.cryptobox.IStorage;
 import com.wire.bots.cryptobox.PreKey;
 import com.wire.bots.cryptobox.StorageException;
 import com.wire.bots.sdk.tools.Logger;
+import io.dropwizard.db.DataSourceFactory;
+import io.dropwizard.db.ManagedDataSource;
+import io.dropwizard.util.Duration;
 
+import javax.sql.DataSource;
 import java.io.ByteArrayInputStream;
-import java.sql.*;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.Properties;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Postgres storage on top of a pooled DataSource. Build the DataSource once with {@link #buildDataSource} and share it
+ * between all the PgStorage instances. Statements are prepared on the server on first use and cached per pooled
+ * connection by the driver. Sessions are locked with SELECT ... FOR UPDATE until the Record is persisted.
+ */
 @Deprecated
-public class PgStorage implements IStorage {
-    private final String user;
-    private final String password;
-    private final String url;
-    private final String db;
-    private final String host;
-    private final int port;
+public class PgStorage implements IBatchStorage {
+    private static final String SELECT_SESSION = "SELECT data FROM sessions WHERE id = ? AND sid = ? FOR UPDATE";
+    private static final String UPSERT_SESSION = "INSERT INTO sessions (id, sid, data) VALUES (?, ?, ?) " +
+            "ON CONFLICT (id, sid) DO UPDATE SET data = EXCLUDED.data";
+    private static final String SELECT_IDENTITY = "SELECT data FROM identities WHERE id = ?";
+    private static final String UPSERT_IDENTITY = "INSERT INTO identities (id, data) VALUES (?, ?) " +
+            "ON CONFLICT (id) DO UPDATE SET data = EXCLUDED.data";
+    private static final String SELECT_PREKEYS = "SELECT kid, data FROM prekeys WHERE id = ?";
+    private static final String UPSERT_PREKEY = "INSERT INTO prekeys (id, kid, data) VALUES (?, ?, ?) " +
+            "ON CONFLICT (id, kid) DO UPDATE SET data = EXCLUDED.data";
+    private static final String DELETE_IDENTITY = "DELETE FROM identities WHERE id = ?";
+    private static final String DELETE_PREKEYS = "DELETE FROM prekeys WHERE id = ?";
+    private static final String DELETE_SESSIONS = "DELETE FROM sessions WHERE id = ?";
+
+    private static final int RETRIES = 5;
+    private static final long BACKOFF_MS = 100;
+    private static final long MAX_BACKOFF_MS = 2000;
+
+    // Pools for the legacy constructors, one per url and user
+    private static final ConcurrentHashMap<String, ManagedDataSource> pools = new ConcurrentHashMap<>();
+
+    private final DataSource dataSource;
+    private final Timer acquire;
+    private final Meter retries;
+
+    /**
+     * @param dataSource Pooled DataSource shared by all the instances. See {@link #buildDataSource}
+     * @param metrics    Registry for the connection acquire timer and the retry meter
+     */
+    public PgStorage(DataSource dataSource, MetricRegistry metrics) {
+        this.dataSource = dataSource;
+        this.acquire = metrics.timer(MetricRegistry.name(PgStorage.class, "acquire"));
+        this.retries = metrics.meter(MetricRegistry.name(PgStorage.class, "retries"));
+    }
 
     public PgStorage() {
-        this.user = null;
-        this.password = null;
-        this.db = "postgres";
-        this.host = "localhost";
-        this.port = 5432;
-        this.url = "jdbc:postgresql://localhost:5432/postgres";
+        this(null, null, "jdbc:postgresql://localhost:5432/postgres");
     }
 
     public PgStorage(String user, String password, String db, String host, int port) {
-        this.user = user;
-        this.password = password;
-        this.db = db;
-        this.host = host;
-        this.port = port;
-        this.url = null;
+        this(user, password, String.format("jdbc:postgresql://%s:%d/%s", host, port, db));
     }
 
     public PgStorage(String user, String password, String url) {
-        this.user = user;
-        this.password = password;
-        this.url = url;
-        this.db = null;
-        this.host = null;
-        this.port = 0;
+        this(legacyPool(user, password, url), SharedMetricRegistries.getOrCreate(PgStorage.class.getName()));
+    }
+
+    /**
+     * Builds the connection pool. Pool gauges (active, idle, waiting, size...) are registered in the given registry
+     *
+     * @param factory Usually Configuration.Database
+     * @param metrics Registry for the pool gauges
+     * @param name    Name of the pool
+     * @return DataSource to be shared by all the PgStorage instances
+     */
+    public static ManagedDataSource buildDataSource(DataSourceFactory factory, MetricRegistry metrics, String name) {
+        // Prepare on the server at the first execution. The driver caches the prepared statements per connection
+        factory.getProperties().putIfAbsent("prepareThreshold", "1");
+        factory.getProperties().putIfAbsent("preparedStatementCacheQueries", "256");
+        // Send batched inserts as multi-row INSERTs
+        factory.getProperties().putIfAbsent("reWriteBatchedInserts", "true");
+        return factory.build(metrics, name);
+    }
+
+    private static ManagedDataSource legacyPool(String user, String password, String url) {
+        return pools.computeIfAbsent(url + "|" + user, k -> {
+            DataSourceFactory factory = new DataSourceFactory();
+            factory.setDriverClass("org.postgresql.Driver");
+            factory.setUrl(url);
+            if (user != null && !user.isEmpty())
+                factory.setUser(user);
+            if (password != null && !password.isEmpty())
+                factory.setPassword(password);
+            factory.setMaxWaitForConnection(Duration.seconds(5));
+            return buildDataSource(factory, SharedMetricRegistries.getOrCreate(PgStorage.class.getName()), "crypto");
+        });
     }
 
     @Override
     public IRecord fetchSession(String id, String sid) throws StorageException {
-        try {
-            Connection c = newConnection();
-            PreparedStatement stmt = c.prepareStatement("SELECT data FROM sessions WHERE id = ? AND sid = ? FOR UPDATE");
+        Connection c = newConnection();
+        try (PreparedStatement stmt = c.prepareStatement(SELECT_SESSION)) {
             stmt.setString(1, id);
             stmt.setString(2, sid);
-            ResultSet rs = stmt.executeQuery();
             byte[] data = null;
-            if (rs.next()) {
-                data = rs.getBytes("data");
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (rs.next()) {
+                    data = rs.getBytes("data");
+                }
             }
+            // The connection, and so the row lock, is held until the Record is persisted
             return new Record(id, sid, data, c);
         } catch (Exception e) {
+            release(c, false);
             throw new StorageException(String.format("fetchSession: %s %s", sid, e));
         }
     }
 
     @Override
     public byte[] fetchIdentity(String id) throws StorageException {
-        try (Connection c = newConnection()) {
-            PreparedStatement stmt = c.prepareStatement("SELECT data FROM identities WHERE id = ?");
+        Connection c = newConnection();
+        try (PreparedStatement stmt = c.prepareStatement(SELECT_IDENTITY)) {
             stmt.setString(1, id);
-            ResultSet rs = stmt.executeQuery();
-            if (rs.next()) {
-                return rs.getBytes("data");
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (rs.next()) {
+                    return rs.getBytes("data");
+                }
             }
         } catch (Exception e) {
             throw new StorageException(String.format("fetchIdentity: %s %s", id, e));
+        } finally {
+            release(c, false);
         }
         return null;
     }
 
     @Override
     public void insertIdentity(String id, byte[] data) throws StorageException {
-        String sql = "INSERT INTO identities (id, data) VALUES (?, ?) ON CONFLICT (id) DO UPDATE SET data = EXCLUDED.data";
-        Connection c = null;
-        try {
-            c = newConnection();
-            PreparedStatement stmt = c.prepareStatement(sql);
+        Connection c = newConnection();
+        boolean ok = false;
+        try (PreparedStatement stmt = c.prepareStatement(UPSERT_IDENTITY)) {
             stmt.setString(1, id);
             try (ByteArrayInputStream stream = new ByteArrayInputStream(data)) {
                 stmt.setBinaryStream(2, stream);
             }
             stmt.executeUpdate();
+            ok = true;
         } catch (Exception e) {
             throw new StorageException(String.format("insertIdentity: %s %s", id, e));
         } finally {
-            commit(c);
+            release(c, ok);
         }
     }
 
     @Override
     public PreKey[] fetchPrekeys(String id) throws StorageException {
         ArrayList<PreKey> ret = null;
-        try (Connection c = newConnection()) {
-            PreparedStatement stmt = c.prepareStatement("SELECT kid, data FROM prekeys WHERE id = ?");
+        Connection c = newConnection();
+        try (PreparedStatement stmt = c.prepareStatement(SELECT_PREKEYS)) {
             stmt.setString(1, id);
-            ResultSet rs = stmt.executeQuery();
-            while (rs.next()) {
-                if (ret == null)
-                    ret = new ArrayList<>();
-
-                int kid = rs.getInt("kid");
-                byte[] data = rs.getBytes("data");
-                PreKey preKey = new PreKey(kid, data);
-                ret.add(preKey);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    if (ret == null)
+                        ret = new ArrayList<>();
+
+                    int kid = rs.getInt("kid");
+                    byte[] data = rs.getBytes("data");
+                    ret.add(new PreKey(kid, data));
+                }
             }
         } catch (Exception e) {
             throw new StorageException(String.format("fetchPrekeys: %s %s", id, e));
+        } finally {
+            release(c, false);
         }
         return ret == null ? null : ret.toArray(new PreKey[0]);
     }
 
     @Override
     public void insertPrekey(String id, int kid, byte[] data) throws StorageException {
-        String sql = "INSERT INTO prekeys (id, kid, data) VALUES (?, ?, ?) ON CONFLICT (id, kid) DO UPDATE SET data = EXCLUDED.data";
-        Connection c = null;
-        try {
-            c = newConnection();
-            PreparedStatement stmt = c.prepareStatement(sql);
+        Connection c = newConnection();
+        boolean ok = false;
+        try (PreparedStatement stmt = c.prepareStatement(UPSERT_PREKEY)) {
             stmt.setString(1, id);
             stmt.setInt(2, kid);
             try (ByteArrayInputStream stream = new ByteArrayInputStream(data)) {
                 stmt.setBinaryStream(3, stream);
             }
             stmt.executeUpdate();
+            ok = true;
         } catch (Exception e) {
             throw new StorageException(String.format("insertPrekey: %s key: %d %s", id, kid, e));
         } finally {
-            commit(c);
+            release(c, ok);
+        }
+    }
+
+    /**
+     * All the keys in one transaction: a JDBC batch, or COPY for large batches
+     */
+    @Override
+    public void insertPrekeys(String id, List<PreKey> preKeys) throws StorageException {
+        if (preKeys.isEmpty())
+            return;
+
+        Connection c = newConnection();
+        boolean ok = false;
+        try {
+            if (preKeys.size() >= PrekeysCopy.THRESHOLD) {
+                PrekeysCopy.copy(c, id, preKeys);
+            } else {
+                try (PreparedStatement stmt = c.prepareStatement(UPSERT_PREKEY)) {
+                    for (PreKey preKey : preKeys) {
+                        stmt.setString(1, id);
+                        stmt.setInt(2, preKey.id);
+                        stmt.setBytes(3, preKey.data);
+                        stmt.addBatch();
+                    }
+                    stmt.executeBatch();
+                }
+            }
+            ok = true;
+        } catch (Exception e) {
+            throw new StorageException(String.format("insertPrekeys: %s count: %d %s", id, preKeys.size(), e));
+        } finally {
+            release(c, ok);
         }
     }
 
     @Override
     public void purge(String id) throws StorageException {
-        Connection c = null;
+        Connection c = newConnection();
+        boolean ok = false;
         try {
-            c = newConnection();
-            PreparedStatement stmt = c.prepareStatement("DELETE FROM identities WHERE id = ?");
-            stmt.setString(1, id);
-            stmt.executeUpdate();
-            stmt = c.prepareStatement("DELETE FROM prekeys WHERE id = ?");
-            stmt.setString(1, id);
-            stmt.executeUpdate();
-            stmt = c.prepareStatement("DELETE FROM sessions WHERE id = ?");
-            stmt.setString(1, id);
-            stmt.executeUpdate();
+            delete(c, DELETE_IDENTITY, id);
+            delete(c, DELETE_PREKEYS, id);
+            delete(c, DELETE_SESSIONS, id);
+            ok = true;
         } catch (Exception e) {
             throw new StorageException(String.format("purge: %s %s", id, e));
         } finally {
-            commit(c);
+            release(c, ok);
         }
     }
 
-    private Connection newConnection() throws InterruptedException {
-        while (true) {
-            try {
-                String url = this.url != null
-                        ? this.url
-                        : String.format("jdbc:postgresql://%s:%d/%s", host, port, db);
-                Connection connection;
-                Properties info = new java.util.Properties();
-                if (user != null && !user.isEmpty()) {
-                    info.put("user", user);
-                }
-                if (password != null && !password.isEmpty()) {
-                    info.put("password", password);
+    private static void delete(Connection c, String sql, String id) throws SQLException {
+        try (PreparedStatement stmt = c.prepareStatement(sql)) {
+            stmt.setString(1, id);
+            stmt.executeUpdate();
+        }
+    }
+
+    /**
+     * Borrows a connection from the pool. Retries with exponential backoff and gives up after RETRIES attempts
+     */
+    private Connection newConnection() throws StorageException {
+        long backoff = BACKOFF_MS;
+        SQLException last = null;
+        for (int attempt = 0; attempt < RETRIES; attempt++) {
+            if (attempt > 0) {
+                retries.mark();
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new StorageException("newConnection: interrupted");
                 }
-                connection = DriverManager.getConnection(url, info);
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+            }
+
+            try (Timer.Context ignored = acquire.time()) {
+                Connection connection = dataSource.getConnection();
                 connection.setAutoCommit(false);
                 return connection;
-            } catch (Exception e) {
-                Thread.sleep(1000);
+            } catch (SQLException e) {
+                last = e;
             }
         }
+        throw new StorageException(String.format("newConnection: giving up after %d attempts: %s", RETRIES, last));
     }
 
-    private void commit(Connection c) {
+    /**
+     * Commits or rolls back and returns the connection to the pool
+     *
+     * @return False if the commit or rollback failed
+     */
+    private static boolean release(Connection c, boolean commit) {
         try {
-            if (c != null) {
+            if (commit)
                 c.commit();
+            else
+                c.rollback();
+            return true;
+        } catch (SQLException e) {
+            Logger.error("PgStorage: %s %s", commit ? "commit" : "rollback", e);
+            return false;
+        } finally {
+            try {
+                c.setAutoCommit(true);
                 c.close();
+            } catch (SQLException e) {
+                Logger.error("PgStorage: close %s", e);
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
         }
     }
 
-    class Record implements IRecord {
+    class Record implements IRecord, AutoCloseable {
         private final String id;
         private final String sid;
         private final byte[] data;
         private final Connection connection;
+        private boolean closed;
 
         Record(String id, String sid, byte[] data, Connection connection) {
             this.id = id;
@@ -214,11 +335,16 @@ public class PgStorage implements IStorage {
             return data;
         }
 
+        /**
+         * A failed write or commit is rolled back and thrown to the caller: the ratchet was not saved
+         */
         @Override
         public void persist(byte[] data) {
-            final String sql = "INSERT INTO sessions (id, sid, data) VALUES (?, ?, ?) " +
-                    "ON CONFLICT (id, sid) DO UPDATE SET data = EXCLUDED.data";
-            try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            if (closed)
+                return;
+            closed = true;
+
+            try (PreparedStatement stmt = connection.prepareStatement(UPSERT_SESSION)) {
                 if (data != null) {
                     stmt.setString(1, id);
                     stmt.setString(2, sid);
@@ -227,10 +353,28 @@ public class PgStorage implements IStorage {
                     }
                     stmt.executeUpdate();
                 }
-            } catch (Exception e) {
+            } catch (SQLException | IOException e) {
                 Logger.error("persist: %s %s", sid, e);
-            } finally {
-                commit(connection);
+                release(connection, false);
+                throw new UncheckedIOException(new IOException("Session not saved: " + sid, e));
+            } catch (RuntimeException e) {
+                release(connection, false);
+                throw e;
+            }
+
+            // Commit releases the row lock taken in fetchSession
+            if (!release(connection, true))
+                throw new UncheckedIOException(new IOException("Session not saved, commit failed: " + sid));
+        }
+
+        /**
+         * Rolls back and returns the connection if the Record was never persisted
+         */
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                release(connection, false);
             }
         }
     }
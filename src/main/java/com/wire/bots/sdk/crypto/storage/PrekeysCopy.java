@@ -0,0 +1,52 @@
+package com.wire.bots.sdk.crypto.storage;
+
+import com.wire.bots.cryptobox.PreKey;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+/**
+ * Bulk prekey insert with Postgres COPY. COPY cannot resolve conflicts, so the rows are copied into a temp table and
+ * upserted from there. Runs in the caller's transaction.
+ */
+class PrekeysCopy {
+    // Below this many keys a batched INSERT is as fast
+    static final int THRESHOLD = 500;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    static void copy(Connection c, String id, List<PreKey> preKeys) throws SQLException {
+        try (Statement stmt = c.createStatement()) {
+            stmt.execute("CREATE TEMP TABLE IF NOT EXISTS prekeys_copy (id varchar, kid integer, data bytea) " +
+                    "ON COMMIT DELETE ROWS");
+        }
+
+        StringBuilder csv = new StringBuilder();
+        for (PreKey preKey : preKeys) {
+            csv.append(id).append(',').append(preKey.id).append(",\\x");
+            for (byte b : preKey.data)
+                csv.append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+            csv.append('\n');
+        }
+
+        CopyManager copyManager = c.unwrap(PGConnection.class).getCopyAPI();
+        try {
+            copyManager.copyIn("COPY prekeys_copy (id, kid, data) FROM STDIN WITH (FORMAT csv)",
+                    new StringReader(csv.toString()));
+        } catch (IOException e) {
+            throw new SQLException(e);
+        }
+
+        try (Statement stmt = c.createStatement()) {
+            stmt.executeUpdate("INSERT INTO prekeys (id, kid, data) SELECT id, kid, data FROM prekeys_copy " +
+                    "ON CONFLICT (id, kid) DO UPDATE SET data = EXCLUDED.data");
+            stmt.executeUpdate("DELETE FROM prekeys_copy");
+        }
+    }
+}
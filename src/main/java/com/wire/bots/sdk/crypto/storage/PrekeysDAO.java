@@ -3,6 +3,7 @@ package com.wire.bots.sdk.crypto.storage;
 import com.wire.bots.cryptobox.PreKey;
 import org.skife.jdbi.v2.StatementContext;
 import org.skife.jdbi.v2.sqlobject.Bind;
+import org.skife.jdbi.v2.sqlobject.SqlBatch;
 import org.skife.jdbi.v2.sqlobject.SqlQuery;
 import org.skife.jdbi.v2.sqlobject.SqlUpdate;
 import org.skife.jdbi.v2.sqlobject.customizers.RegisterMapper;
@@ -18,6 +19,11 @@ public interface PrekeysDAO {
                @Bind("kid") int kid,
                @Bind("data") byte[] data);
 
+    @SqlBatch("INSERT INTO Prekeys (id, kid, data) VALUES (:id, :kid, :data) ON CONFLICT (id, kid) DO UPDATE SET data = EXCLUDED.data")
+    void insertAll(@Bind("id") String id,
+                   @Bind("kid") List<Integer> kids,
+                   @Bind("data") List<byte[]> data);
+
     @SqlQuery("SELECT kid, data FROM Prekeys WHERE id = :id")
     @RegisterMapper(_Mapper.class)
     List<PreKey> get(@Bind("id") String id);
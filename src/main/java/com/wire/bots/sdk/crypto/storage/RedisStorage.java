@@ -1,117 +1,136 @@
 package com.wire.bots.sdk.crypto.storage;
 
 import com.wire.bots.cryptobox.IRecord;
-import com.wire.bots.cryptobox.IStorage;
 import com.wire.bots.cryptobox.PreKey;
 import com.wire.bots.cryptobox.StorageException;
+import com.wire.bots.sdk.Configuration;
+import com.wire.bots.sdk.redis.LegacyKeys;
+import com.wire.bots.sdk.redis.RedisKeys;
+import com.wire.bots.sdk.redis.RedisPool;
 import com.wire.bots.sdk.tools.Logger;
 import com.wire.bots.sdk.tools.Util;
 import redis.clients.jedis.Jedis;
-import redis.clients.jedis.JedisPool;
-import redis.clients.jedis.JedisPoolConfig;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
 
-public class RedisStorage implements IStorage {
-    private static final byte[] EMPTY = new byte[0];
-    private static int timeout = 5000;
-    private static JedisPool pool;
-    private final String host;
-    private final Integer port;
-    private final String password;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
+public class RedisStorage implements IBatchStorage {
+    // Writes the session only if the lock is still held with our token, then releases the lock
+    private static final byte[] PERSIST = ("if redis.call('GET', KEYS[2]) == ARGV[1] then " +
+            "redis.call('SET', KEYS[1], ARGV[2]) " +
+            "redis.call('DEL', KEYS[2]) " +
+            "return 1 end return 0").getBytes(UTF_8);
+    // Releases the lock only if it is still held with our token
+    private static final byte[] UNLOCK = ("if redis.call('GET', KEYS[1]) == ARGV[1] then " +
+            "return redis.call('DEL', KEYS[1]) end return 0").getBytes(UTF_8);
+    private static final long LOCK_TTL = 10_000;
+    private static final long LOCK_WAIT = 5_000;
+    private static final long MIN_BACKOFF = 2;
+    private static final long MAX_BACKOFF = 100;
+
+    private final RedisPool pool;
+    private final LegacyKeys legacy;
+
+    public RedisStorage(Configuration.DB conf) {
+        this(RedisPool.get(conf), conf);
+    }
+
+    public RedisStorage(RedisPool pool, Configuration.DB conf) {
+        this.pool = pool;
+        this.legacy = new LegacyKeys(conf, pool);
+    }
+
+    // The constructors below share the pool the Server opened for this host, whatever its sizing
     public RedisStorage(String host, Integer port, String password, int timeout) {
-        this.host = host;
-        this.port = port;
-        this.password = password;
-        RedisStorage.timeout = timeout;
+        this(RedisPool.shared(conf(host, port, password, timeout)));
     }
 
     public RedisStorage(String host, Integer port, String password) {
-        this.host = host;
-        this.port = port;
-        this.password = password;
+        this(RedisPool.shared(conf(host, port, password, null)));
     }
 
     public RedisStorage(String host, Integer port) {
-        this.host = host;
-        this.port = port;
-        this.password = null;
+        this(RedisPool.shared(conf(host, port, null, null)));
     }
 
     public RedisStorage(String host) {
-        this.host = host;
-        this.password = null;
-        this.port = null;
-    }
-
-    private static JedisPoolConfig buildPoolConfig() {
-        final JedisPoolConfig poolConfig = new JedisPoolConfig();
-        poolConfig.setMaxTotal(1100);
-        poolConfig.setMaxIdle(16);
-        poolConfig.setMinIdle(16);
-        poolConfig.setTestOnBorrow(true);
-        poolConfig.setTestOnReturn(true);
-        poolConfig.setTestWhileIdle(true);
-        poolConfig.setMinEvictableIdleTimeMillis(Duration.ofSeconds(60).toMillis());
-        poolConfig.setTimeBetweenEvictionRunsMillis(Duration.ofSeconds(30).toMillis());
-        poolConfig.setNumTestsPerEvictionRun(3);
-        poolConfig.setBlockWhenExhausted(true);
-        return poolConfig;
-    }
-
-    private static JedisPool pool(String host, Integer port, String password) {
-        if (pool == null) {
-            JedisPoolConfig poolConfig = buildPoolConfig();
-            if (password != null && port != null)
-                pool = new JedisPool(poolConfig, host, port, timeout, password);
-            else if (port != null)
-                pool = new JedisPool(poolConfig, host, port, timeout);
-            else
-                pool = new JedisPool(poolConfig, host);
-        }
-        return pool;
+        this(RedisPool.shared(conf(host, null, null, null)));
+    }
+
+    private RedisStorage(RedisPool pool) {
+        this(pool, new Configuration.DB());
+    }
+
+    private static Configuration.DB conf(String host, Integer port, String password, Integer timeout) {
+        Configuration.DB conf = new Configuration.DB();
+        conf.host = host;
+        conf.port = port;
+        conf.password = password;
+        if (timeout != null)
+            conf.timeout = timeout;
+        return conf;
     }
 
+    /**
+     * Locks the session with SET NX PX and a fencing token and reads it. Waiters back off without holding a pooled
+     * connection. The lock expires after LOCK_TTL so a crashed holder cannot wedge the session
+     */
     @Override
     public IRecord fetchSession(String id, String sid) throws StorageException {
-        Jedis jedis = getConnection();
         String key = key(id, sid);
-        byte[] data = jedis.getSet(key.getBytes(), EMPTY);
-        if (data == null) {
-            Logger.debug("fetchSession: %s missing", sid);
-            return new Record(id, sid, null, jedis);
-        }
+        String lock = lockKey(id, sid);
+        long deadline = System.currentTimeMillis() + LOCK_WAIT;
+        long backoff = MIN_BACKOFF;
+        String token = call(id, jedis -> jedis.incr(RedisKeys.fence(id)).toString());
 
-        for (int i = 0; i < 200 && data.length == 0; i++) {
-            sleep(10);
-            data = jedis.getSet(key.getBytes(), EMPTY);
-        }
+        while (true) {
+            Record record = call(id, jedis -> {
+                if (!"OK".equals(jedis.set(lock, token, "NX", "PX", LOCK_TTL)))
+                    return null;
+                byte[] data = jedis.get(key.getBytes());
+                if (data == null && legacy.migrate(jedis, key, RedisKeys.legacySession(id, sid)))
+                    data = jedis.get(key.getBytes());
+                if (data != null && data.length == 0)
+                    data = null; // placeholder left by the old GETSET lock
+                Logger.debug("fetchSession: %s size: %d", sid, data == null ? 0 : data.length);
+                return new Record(id, sid, data, token);
+            });
+            if (record != null)
+                return record;
 
-        if (data.length == 0) {
-            Logger.warning("fetchSession: WARNING %s timeout", sid);
-            jedis.del(key);
-            throw new StorageException("Redis Timeout when fetching Session: " + sid);
-        }
+            if (System.currentTimeMillis() + backoff > deadline) {
+                Logger.warning("fetchSession: WARNING %s timeout", sid);
+                throw new StorageException("Redis Timeout when locking Session: " + sid);
+            }
 
-        Logger.debug("fetchSession: %s size: %d", sid, data.length);
-        return new Record(id, sid, data, jedis);
+            sleep(ThreadLocalRandom.current().nextLong(backoff / 2, backoff + 1));
+            backoff = Math.min(backoff * 2, MAX_BACKOFF);
+        }
     }
 
     @Override
     public byte[] fetchIdentity(String id) {
-        byte[] bytes = null;
-        try (Jedis jedis = getConnection()) {
-            String key = String.format("id_%s", id);
+        String key = RedisKeys.identity(id);
+        byte[] bytes = call(id, jedis -> {
             Boolean exists = jedis.exists(key.getBytes());
-            if (!exists) {
-                Logger.debug("fetchIdentity: %s, missing", key);
+            if (!exists && !legacy.migrate(jedis, key, RedisKeys.legacyIdentity(id)))
                 return null;
-            }
-            bytes = jedis.get(key.getBytes());
+            return jedis.get(key.getBytes());
+        });
+        if (bytes == null) {
+            Logger.debug("fetchIdentity: %s, missing", key);
+            return null;
+        }
+        try {
             MessageDigest md = MessageDigest.getInstance("SHA1");
             Logger.debug("fetchIdentity: %s hash: %s", key, Util.digest(md, bytes));
         } catch (NoSuchAlgorithmException ignore) {
@@ -122,38 +141,70 @@ public class RedisStorage implements IStorage {
 
     @Override
     public void insertIdentity(String id, byte[] data) {
-        try (Jedis jedis = getConnection()) {
-            String key = String.format("id_%s", id);
+        call(id, jedis -> {
+            String key = RedisKeys.identity(id);
             Boolean exists = jedis.exists(key.getBytes());
-            if (!exists)
+            if (!exists && !legacy.migrate(jedis, key, RedisKeys.legacyIdentity(id)))
                 jedis.set(key.getBytes(), data);
-            Logger.debug("insertIdentity: %s len: %d", id, data.length);
-        }
+            return null;
+        });
+        Logger.debug("insertIdentity: %s len: %d", id, data.length);
     }
 
-    private void sleep(int millis) {
+    private void sleep(long millis) throws StorageException {
         try {
             Thread.sleep(millis);
-        } catch (InterruptedException ignored) {
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageException("Interrupted while waiting for the Session lock");
         }
     }
 
     private String key(String id, String sid) {
-        return String.format("ses_%s-%s", id, sid);
+        return RedisKeys.session(id, sid);
+    }
+
+    private String lockKey(String id, String sid) {
+        return RedisKeys.sessionLock(id, sid);
+    }
+
+    private static List<byte[]> list(byte[]... items) {
+        return Arrays.asList(items);
     }
 
-    private Jedis getConnection() {
-        return pool(host, port, password).getResource();
+    private <T> T call(String id, Function<Jedis, T> command) {
+        return pool.call(RedisKeys.tag(id), command);
     }
 
     @Override
     public void insertPrekey(String id, int kid, byte[] data) {
-        try (Jedis jedis = getConnection()) {
-            String key = String.format("pk_%s", id);
-            PreKey preKey = new PreKey(kid, data);
-            ByteBuffer byteBuffer = toByteBuffer(preKey);
-            jedis.lpush(key.getBytes(), byteBuffer.array());
-        }
+        PreKey preKey = new PreKey(kid, data);
+        ByteBuffer byteBuffer = toByteBuffer(preKey);
+        call(id, jedis -> {
+            String key = RedisKeys.prekeys(id);
+            // Pushed onto the old list, if any, so it is not dropped when the old key is moved
+            legacy.migrate(jedis, key, RedisKeys.legacyPrekeys(id));
+            return jedis.lpush(key.getBytes(), byteBuffer.array());
+        });
+    }
+
+    /**
+     * All the keys with one multi-value LPUSH
+     */
+    @Override
+    public void insertPrekeys(String id, List<PreKey> preKeys) {
+        if (preKeys.isEmpty())
+            return;
+
+        byte[][] values = new byte[preKeys.size()][];
+        for (int i = 0; i < values.length; i++)
+            values[i] = toByteBuffer(preKeys.get(i)).array();
+
+        call(id, jedis -> {
+            String key = RedisKeys.prekeys(id);
+            legacy.migrate(jedis, key, RedisKeys.legacyPrekeys(id));
+            return jedis.lpush(key.getBytes(), values);
+        });
     }
 
     @Override
@@ -163,18 +214,20 @@ public class RedisStorage implements IStorage {
 
     @Override
     public PreKey[] fetchPrekeys(String id) {
-        try (Jedis jedis = getConnection()) {
-            String key = String.format("pk_%s", id);
-            Long llen = jedis.llen(key);
-            PreKey[] ret = new PreKey[llen.intValue()];
-            for (int i = 0; i < llen.intValue(); i++) {
-                byte[] raw = jedis.lindex(key.getBytes(), i);
-                ByteBuffer byteBuffer = ByteBuffer.wrap(raw);
-                PreKey preKey = toPreKey(byteBuffer);
-                ret[i] = preKey;
-            }
-            return ret.length == 0 ? null : ret;
-        }
+        List<byte[]> raw = call(id, jedis -> {
+            String key = RedisKeys.prekeys(id);
+            List<byte[]> ret = jedis.lrange(key.getBytes(), 0, -1);
+            if (ret.isEmpty() && legacy.migrate(jedis, key, RedisKeys.legacyPrekeys(id)))
+                ret = jedis.lrange(key.getBytes(), 0, -1);
+            return ret;
+        });
+        if (raw.isEmpty())
+            return null;
+
+        PreKey[] ret = new PreKey[raw.size()];
+        for (int i = 0; i < ret.length; i++)
+            ret[i] = toPreKey(ByteBuffer.wrap(raw.get(i)));
+        return ret;
     }
 
     private PreKey toPreKey(ByteBuffer byteBuffer) {
@@ -192,17 +245,18 @@ public class RedisStorage implements IStorage {
         return byteBuffer;
     }
 
-    private class Record implements IRecord {
+    private class Record implements IRecord, AutoCloseable {
         private final byte[] data;
-        private final Jedis connection;
         private final String id;
         private final String sid;
+        private final String token;
+        private boolean closed;
 
-        Record(String id, String sid, byte[] data, Jedis connection) {
+        Record(String id, String sid, byte[] data, String token) {
             this.id = id;
             this.sid = sid;
             this.data = data;
-            this.connection = connection;
+            this.token = token;
         }
 
         @Override
@@ -210,17 +264,44 @@ public class RedisStorage implements IStorage {
             return data;
         }
 
+        /**
+         * Throws if the lock expired (or was taken over) in the meantime: the ratchet was not saved, so the box
+         * operation must not report success
+         */
         @Override
         public void persist(byte[] data) {
-            String key = key(id, sid);
-            if (data != null) {
-                connection.set(key.getBytes(), data);
-                Logger.debug("persistSession: %s size: %d", sid, data.length);
-            } else {
-                connection.del(key);
-                Logger.debug("persistSession: %s deleted", sid);
+            if (closed)
+                return;
+            closed = true;
+
+            if (data == null) {
+                unlock();
+                return;
+            }
+
+            Object ok = call(id, jedis -> jedis.eval(PERSIST,
+                    list(key(id, sid).getBytes(), lockKey(id, sid).getBytes()),
+                    list(token.getBytes(UTF_8), data)));
+            if (!Long.valueOf(1).equals(ok)) {
+                Logger.error("persistSession: %s lock expired, token: %s. Session not saved", sid, token);
+                throw new UncheckedIOException(new IOException("Session lock expired, not saved: " + sid));
+            }
+            Logger.debug("persistSession: %s size: %d", sid, data.length);
+        }
+
+        /**
+         * Releases the lock if the Record was never persisted
+         */
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                unlock();
             }
-            connection.close();
+        }
+
+        private void unlock() {
+            call(id, jedis -> jedis.eval(UNLOCK, list(lockKey(id, sid).getBytes()), list(token.getBytes(UTF_8))));
         }
     }
-}
\ No newline at end of file
+}
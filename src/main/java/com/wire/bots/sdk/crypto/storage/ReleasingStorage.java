@@ -0,0 +1,109 @@
+package com.wire.bots.sdk.crypto.storage;
+
+import com.wire.bots.cryptobox.IRecord;
+import com.wire.bots.cryptobox.IStorage;
+import com.wire.bots.cryptobox.PreKey;
+import com.wire.bots.cryptobox.StorageException;
+import com.wire.bots.sdk.tools.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps track of the session Records fetched on this thread and not persisted yet. cryptobox only ever calls persist,
+ * so a box operation that fails in between would keep the session locked (a row lock and its connection, a permit)
+ * for good. {@link #release()} closes whatever the operation left open. Everything else goes straight through.
+ */
+public class ReleasingStorage implements IStorage {
+    private final IStorage storage;
+    private final ThreadLocal<List<Record>> open = ThreadLocal.withInitial(ArrayList::new);
+
+    public ReleasingStorage(IStorage storage) {
+        this.storage = storage;
+    }
+
+    /**
+     * Closes the Records fetched on this thread that were not persisted
+     */
+    public void release() {
+        List<Record> records = open.get();
+        if (records.isEmpty())
+            return;
+
+        for (Record record : new ArrayList<>(records))
+            record.close();
+        records.clear();
+    }
+
+    /**
+     * @return Number of Records fetched on this thread and not persisted or closed yet
+     */
+    public int pending() {
+        return open.get().size();
+    }
+
+    @Override
+    public IRecord fetchSession(String id, String sid) throws StorageException {
+        IRecord record = storage.fetchSession(id, sid);
+        if (!(record instanceof AutoCloseable))
+            return record;
+
+        Record ret = new Record(record);
+        open.get().add(ret);
+        return ret;
+    }
+
+    @Override
+    public byte[] fetchIdentity(String id) throws StorageException {
+        return storage.fetchIdentity(id);
+    }
+
+    @Override
+    public void insertIdentity(String id, byte[] data) throws StorageException {
+        storage.insertIdentity(id, data);
+    }
+
+    @Override
+    public PreKey[] fetchPrekeys(String id) throws StorageException {
+        return storage.fetchPrekeys(id);
+    }
+
+    @Override
+    public void insertPrekey(String id, int kid, byte[] data) throws StorageException {
+        storage.insertPrekey(id, kid, data);
+    }
+
+    @Override
+    public void purge(String id) throws StorageException {
+        storage.purge(id);
+    }
+
+    private class Record implements IRecord, AutoCloseable {
+        private final IRecord record;
+
+        Record(IRecord record) {
+            this.record = record;
+        }
+
+        @Override
+        public byte[] getData() {
+            return record.getData();
+        }
+
+        @Override
+        public void persist(byte[] data) {
+            open.get().remove(this);
+            record.persist(data);
+        }
+
+        @Override
+        public void close() {
+            open.get().remove(this);
+            try {
+                ((AutoCloseable) record).close();
+            } catch (Exception e) {
+                Logger.error("ReleasingStorage: close %s", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.wire.bots.sdk.crypto.storage;
+
+import com.wire.bots.cryptobox.IRecord;
+import com.wire.bots.cryptobox.PreKey;
+import com.wire.bots.cryptobox.StorageException;
+import com.wire.bots.sdk.mmap.SegmentStore;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Crypto storage in the memory-mapped SegmentStore (db.driver: mmap). Sessions are locked in process from
+ * fetchSession until the Record is persisted or closed, so this store must not be shared between processes.
+ * CryptoDatabase closes the Records a failed box operation did not persist.
+ */
+public class SegmentStorage implements IBatchStorage {
+    private static final SessionLock locks = new SessionLock();
+
+    private final SegmentStore store;
+
+    public SegmentStorage(SegmentStore store) {
+        this.store = store;
+    }
+
+    @Override
+    public IRecord fetchSession(String id, String sid) throws StorageException {
+        String key = String.format("ses/%s/%s", id, sid);
+        return locks.lock(key, sid, () -> store.get(key), data -> store.put(key, data));
+    }
+
+    @Override
+    public byte[] fetchIdentity(String id) {
+        return store.get(String.format("id/%s", id));
+    }
+
+    @Override
+    public void insertIdentity(String id, byte[] data) throws StorageException {
+        try {
+            store.put(String.format("id/%s", id), data);
+        } catch (IOException e) {
+            throw new StorageException(String.format("insertIdentity: %s %s", id, e));
+        }
+    }
+
+    @Override
+    public PreKey[] fetchPrekeys(String id) {
+        Map<String, byte[]> raw = store.scan(prefix(id));
+        if (raw.isEmpty())
+            return null;
+
+        PreKey[] ret = new PreKey[raw.size()];
+        int i = 0;
+        for (Map.Entry<String, byte[]> entry : raw.entrySet()) {
+            String key = entry.getKey();
+            int kid = Integer.parseInt(key.substring(key.lastIndexOf('/') + 1), 16);
+            ret[i++] = new PreKey(kid, entry.getValue());
+        }
+        return ret;
+    }
+
+    @Override
+    public void insertPrekey(String id, int kid, byte[] data) throws StorageException {
+        try {
+            store.put(prekey(id, kid), data);
+        } catch (IOException e) {
+            throw new StorageException(String.format("insertPrekey: %s key: %d %s", id, kid, e));
+        }
+    }
+
+    @Override
+    public void insertPrekeys(String id, List<PreKey> preKeys) throws StorageException {
+        Map<String, byte[]> values = new LinkedHashMap<>();
+        for (PreKey preKey : preKeys)
+            values.put(prekey(id, preKey.id), preKey.data);
+        try {
+            store.putAll(values);
+        } catch (IOException e) {
+            throw new StorageException(String.format("insertPrekeys: %s %s", id, e));
+        }
+    }
+
+    @Override
+    public void purge(String id) throws StorageException {
+        try {
+            store.delete(String.format("id/%s", id));
+            store.deletePrefix(prefix(id));
+            store.deletePrefix(String.format("ses/%s/", id));
+        } catch (IOException e) {
+            throw new StorageException(String.format("purge: %s %s", id, e));
+        }
+    }
+
+    private static String prefix(String id) {
+        return String.format("pk/%s/", id);
+    }
+
+    private static String prekey(String id, int kid) {
+        // Fixed width so that the keys scan in kid order
+        return String.format("pk/%s/%08x", id, kid);
+    }
+}
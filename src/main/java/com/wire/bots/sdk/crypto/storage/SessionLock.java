@@ -0,0 +1,96 @@
+package com.wire.bots.sdk.crypto.storage;
+
+import com.google.common.util.concurrent.Striped;
+import com.wire.bots.cryptobox.IRecord;
+import com.wire.bots.cryptobox.StorageException;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * In process session locks for the stores that cannot lock in the database (SegmentStorage, MVStorage). A session is
+ * locked from fetchSession until its Record is persisted or closed.
+ */
+class SessionLock {
+    private static final long TIMEOUT = 5;
+
+    private final Striped<Semaphore> locks = Striped.semaphore(1024, 1);
+
+    /**
+     * Locks the session and reads it
+     *
+     * @param key    Key of the session in the store
+     * @param sid    Session id, for the error message
+     * @param reader Reads the session while it is locked
+     * @param writer Writes the session when the Record is persisted
+     * @return Record that holds the lock
+     */
+    Record lock(String key, String sid, Supplier<byte[]> reader, Writer writer) throws StorageException {
+        Semaphore lock = locks.get(key);
+        try {
+            if (!lock.tryAcquire(TIMEOUT, TimeUnit.SECONDS))
+                throw new StorageException("Timeout when locking Session: " + sid);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageException("Interrupted when locking Session: " + sid);
+        }
+
+        try {
+            return new Record(reader.get(), lock, writer);
+        } catch (RuntimeException e) {
+            lock.release();
+            throw e;
+        }
+    }
+
+    interface Writer {
+        void write(byte[] data) throws IOException;
+    }
+
+    static class Record implements IRecord, AutoCloseable {
+        private final byte[] data;
+        private final Semaphore lock;
+        private final Writer writer;
+        private boolean closed;
+
+        Record(byte[] data, Semaphore lock, Writer writer) {
+            this.data = data;
+            this.lock = lock;
+            this.writer = writer;
+        }
+
+        @Override
+        public byte[] getData() {
+            return data;
+        }
+
+        /**
+         * A failed write is thrown to the caller: the ratchet was not saved. The lock is released either way
+         */
+        @Override
+        public void persist(byte[] data) {
+            if (closed)
+                return;
+            closed = true;
+            try {
+                if (data != null)
+                    writer.write(data);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                lock.release();
+            }
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                lock.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.wire.bots.sdk.devices;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.wire.bots.sdk.models.otr.Devices;
+import com.wire.bots.sdk.models.otr.Missing;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * Devices of all participants in a conversation, shared by all the clients in this process. It saves the empty
+ * OtrMessage round-trip that is otherwise needed before every outbound message. The list is kept up to date from the
+ * client mismatch the Backend returns for every sent message and from member join/leave events.
+ * This class is thread safe.
+ */
+public abstract class DeviceCache {
+    private final Meter hits;
+    private final Meter misses;
+    private final Meter stale;
+
+    protected DeviceCache(MetricRegistry metrics) {
+        hits = metrics.meter(MetricRegistry.name(DeviceCache.class, "hits"));
+        misses = metrics.meter(MetricRegistry.name(DeviceCache.class, "misses"));
+        stale = metrics.meter(MetricRegistry.name(DeviceCache.class, "stale"));
+    }
+
+    /**
+     * @param convId Conversation id
+     * @return Copy of the cached devices or NULL if the conversation is not cached (or expired)
+     */
+    @Nullable
+    public Missing get(UUID convId) {
+        Missing ret = load(convId);
+        if (ret == null) {
+            misses.mark();
+            return null;
+        }
+        hits.mark();
+        return ret;
+    }
+
+    /**
+     * @param convId  Conversation id
+     * @param devices All devices as returned by the Backend
+     */
+    public void put(UUID convId, Missing devices) {
+        store(convId, copy(devices));
+    }
+
+    /**
+     * Apply the client mismatch returned for a sent message. Missing devices are added, redundant and deleted ones
+     * are removed. Missing devices that were not cached mean that the list was stale and the message needed another
+     * round-trip
+     *
+     * @param convId   Conversation id
+     * @param mismatch Client mismatch as returned by the Backend
+     */
+    public void update(UUID convId, Devices mismatch) {
+        if (mismatch.missing.isEmpty() && mismatch.redundant.isEmpty() && mismatch.deleted.isEmpty())
+            return;
+
+        final boolean[] added = new boolean[1];
+        modify(convId, devices -> {
+            for (Map.Entry<UUID, Collection<String>> entry : mismatch.missing.entrySet()) {
+                Collection<String> clients = devices.computeIfAbsent(entry.getKey(), k -> new ArrayList<>());
+                for (String clientId : entry.getValue()) {
+                    if (!clients.contains(clientId)) {
+                        clients.add(clientId);
+                        added[0] = true;
+                    }
+                }
+            }
+            remove(devices, mismatch.redundant);
+            remove(devices, mismatch.deleted);
+        });
+
+        // Devices we had no session with are reported missing too. Only the unknown ones are caused by the cache
+        if (added[0])
+            stale.mark();
+    }
+
+    /**
+     * @param convId Conversation id
+     * @param userId User that left the conversation
+     */
+    public void removeUser(UUID convId, UUID userId) {
+        modify(convId, devices -> devices.remove(userId));
+    }
+
+    /**
+     * Drop the cached devices so the list is fetched again on the next send
+     *
+     * @param convId Conversation id
+     */
+    public abstract void invalidate(UUID convId);
+
+    /**
+     * @return Devices that the caller owns (a copy) or NULL
+     */
+    @Nullable
+    protected abstract Missing load(UUID convId);
+
+    protected abstract void store(UUID convId, Missing devices);
+
+    /**
+     * Apply the change to the cached devices. Does nothing if the conversation is not cached
+     */
+    protected abstract void modify(UUID convId, Consumer<Missing> change);
+
+    static Missing copy(Missing devices) {
+        Missing ret = new Missing();
+        for (Map.Entry<UUID, Collection<String>> entry : devices.entrySet())
+            ret.add(entry.getKey(), entry.getValue());
+        return ret;
+    }
+
+    private static void remove(Missing devices, Missing remove) {
+        for (Map.Entry<UUID, Collection<String>> entry : remove.entrySet()) {
+            Collection<String> clients = devices.get(entry.getKey());
+            if (clients == null)
+                continue;
+            clients.removeAll(entry.getValue());
+            if (clients.isEmpty())
+                devices.remove(entry.getKey());
+        }
+    }
+}
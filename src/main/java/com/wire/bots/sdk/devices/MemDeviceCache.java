@@ -0,0 +1,54 @@
+package com.wire.bots.sdk.devices;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.wire.bots.sdk.models.otr.Missing;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * In-process device cache. Entries are never modified in place, every change stores a new copy
+ */
+public class MemDeviceCache extends DeviceCache {
+    private final Cache<UUID, Missing> cache;
+
+    /**
+     * @param maxSize Max number of conversations
+     * @param ttl     Time to live of an entry in milliseconds
+     */
+    public MemDeviceCache(long maxSize, long ttl, MetricRegistry metrics) {
+        super(metrics);
+        cache = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttl, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    @Override
+    public void invalidate(UUID convId) {
+        cache.invalidate(convId);
+    }
+
+    @Override
+    protected Missing load(UUID convId) {
+        Missing devices = cache.getIfPresent(convId);
+        return devices != null ? copy(devices) : null;
+    }
+
+    @Override
+    protected void store(UUID convId, Missing devices) {
+        cache.put(convId, devices);
+    }
+
+    @Override
+    protected void modify(UUID convId, Consumer<Missing> change) {
+        cache.asMap().computeIfPresent(convId, (k, old) -> {
+            Missing devices = copy(old);
+            change.accept(devices);
+            return devices;
+        });
+    }
+}
@@ -0,0 +1,130 @@
+package com.wire.bots.sdk.devices;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.wire.bots.sdk.Configuration;
+import com.wire.bots.sdk.models.otr.Missing;
+import com.wire.bots.sdk.redis.RedisPool;
+import com.wire.bots.sdk.tools.Logger;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.exceptions.JedisException;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * Device cache shared by all the instances that use the same Redis. Entries expire after the TTL. Concurrent
+ * modifications of the same conversation are resolved with WATCH/MULTI. Redis errors are logged and never reach the
+ * sender: a conversation that cannot be loaded is a miss
+ */
+public class RedisDeviceCache extends DeviceCache {
+    private final static ObjectMapper mapper = new ObjectMapper();
+    private static final int RETRIES = 3;
+
+    private final RedisPool pool;
+    private final long ttl;
+
+    /**
+     * @param conf Redis connection
+     * @param ttl  Time to live of an entry in milliseconds
+     */
+    public RedisDeviceCache(Configuration.DB conf, long ttl, MetricRegistry metrics) {
+        super(metrics);
+        this.ttl = ttl;
+
+        this.pool = RedisPool.get(conf);
+    }
+
+    @Override
+    public void invalidate(UUID convId) {
+        String key = key(convId);
+        try {
+            pool.call(key, jedis -> jedis.del(key));
+        } catch (JedisException e) {
+            Logger.warning("RedisDeviceCache.invalidate: conv: %s %s", convId, e);
+        }
+    }
+
+    /**
+     * @return NULL if Redis is not reachable: the devices are fetched from the Backend as if there was no cache
+     */
+    @Override
+    protected Missing load(UUID convId) {
+        String key = key(convId);
+        try {
+            String json = pool.call(key, jedis -> jedis.get(key));
+            return json != null ? mapper.readValue(json, Missing.class) : null;
+        } catch (IOException | JedisException e) {
+            Logger.warning("RedisDeviceCache.load: conv: %s %s", convId, e);
+            return null;
+        }
+    }
+
+    @Override
+    protected void store(UUID convId, Missing devices) {
+        String key = key(convId);
+        try {
+            String json = mapper.writeValueAsString(devices);
+            pool.call(key, jedis -> jedis.psetex(key, ttl, json));
+        } catch (IOException | JedisException e) {
+            Logger.warning("RedisDeviceCache.store: conv: %s %s", convId, e);
+        }
+    }
+
+    @Override
+    protected void modify(UUID convId, Consumer<Missing> change) {
+        String key = key(convId);
+        try {
+            pool.call(key, jedis -> {
+                for (int i = 0; i < RETRIES; i++) {
+                    jedis.watch(key);
+                    String json = jedis.get(key);
+                    if (json == null) {
+                        jedis.unwatch();
+                        return null;
+                    }
+
+                    Missing devices = read(json);
+                    change.accept(devices);
+
+                    Transaction transaction = jedis.multi();
+                    transaction.psetex(key, ttl, write(devices));
+                    List<Object> result = transaction.exec();
+                    if (result != null && !result.isEmpty())
+                        return null;
+                }
+                // Too much contention. Let it be fetched again
+                return jedis.del(key);
+            });
+        } catch (UncheckedIOException e) {
+            Logger.warning("RedisDeviceCache.modify: conv: %s %s", convId, e.getCause());
+            invalidate(convId);
+        } catch (JedisException e) {
+            // The cached list may be stale now. It expires with the TTL if Redis does not come back before
+            Logger.warning("RedisDeviceCache.modify: conv: %s %s", convId, e);
+        }
+    }
+
+    private static Missing read(String json) {
+        try {
+            return mapper.readValue(json, Missing.class);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String write(Missing devices) {
+        try {
+            return mapper.writeValueAsString(devices);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String key(UUID convId) {
+        return String.format("dev_%s", convId);
+    }
+}
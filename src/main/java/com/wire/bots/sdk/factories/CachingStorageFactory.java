@@ -0,0 +1,148 @@
+package com.wire.bots.sdk.factories;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.wire.bots.sdk.server.model.NewBot;
+import com.wire.bots.sdk.state.State;
+
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps the state of the most active bots in memory in front of any StorageFactory. Saves write through and update
+ * the cache, removes invalidate it. The backing State is only created on a miss, a save or a remove. Entries live at most ttl, so changes made by other replicas are picked up in the
+ * end even without a listener. See RedisStateListener and PostgresStateListener for picking them up right away.
+ * <p>
+ * The listeners report the saves of this replica too. With listen on, every save is counted until its notification
+ * comes back, and {@link #onChange(UUID)} skips it instead of evicting the state that was just put. Saves whose
+ * notification does not come back within 10s (lost while the listener was disconnected) are forgotten. Until then
+ * a change by another replica may be skipped in their place; the ttl covers that.
+ */
+public class CachingStorageFactory implements StorageFactory {
+    private static final long OWN_SAVES_WINDOW = 10;
+
+    private final StorageFactory sf;
+    private final Cache<UUID, NewBot> states;
+    // Saves of this replica not reported by the listener yet. NULL if there is no listener
+    private final Cache<UUID, AtomicInteger> ownSaves;
+
+    /**
+     * @param sf      Backing storage
+     * @param maxSize Max number of cached states
+     * @param idle    Evict states not read for this long, in ms
+     * @param ttl     Evict states this long after they were loaded, in ms
+     */
+    public CachingStorageFactory(StorageFactory sf, long maxSize, long idle, long ttl) {
+        this(sf, maxSize, idle, ttl, false);
+    }
+
+    /**
+     * @param listen True if a state listener calls {@link #onChange(UUID)}
+     */
+    public CachingStorageFactory(StorageFactory sf, long maxSize, long idle, long ttl, boolean listen) {
+        this.sf = sf;
+        this.states = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterAccess(idle, TimeUnit.MILLISECONDS)
+                .expireAfterWrite(ttl, TimeUnit.MILLISECONDS)
+                .recordStats()
+                .build();
+        this.ownSaves = !listen ? null : CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(OWN_SAVES_WINDOW, TimeUnit.SECONDS)
+                .<UUID, AtomicInteger>build();
+    }
+
+    @Override
+    public State create(UUID botId) throws IOException {
+        return new CachedState(botId);
+    }
+
+    public void invalidate(UUID botId) {
+        states.invalidate(botId);
+    }
+
+    /**
+     * Called by the state listener: the state of this bot was changed. Drops the cached state, unless this is the
+     * notification of a save made here, whose state is cached already
+     */
+    public void onChange(UUID botId) {
+        AtomicInteger pending = ownSaves != null ? ownSaves.getIfPresent(botId) : null;
+        if (pending != null && pending.getAndUpdate(n -> Math.max(n - 1, 0)) > 0)
+            return;
+        states.invalidate(botId);
+    }
+
+    public long size() {
+        return states.size();
+    }
+
+    public CacheStats stats() {
+        return states.stats();
+    }
+
+    private class CachedState implements State {
+        private final UUID botId;
+        private State state;
+
+        CachedState(UUID botId) {
+            this.botId = botId;
+        }
+
+        private State backing() throws IOException {
+            if (state == null)
+                state = sf.create(botId);
+            return state;
+        }
+
+        @Override
+        public boolean saveState(NewBot newBot) throws IOException {
+            // Counted before the save: the notification can come back before saveState returns
+            AtomicInteger pending = null;
+            if (ownSaves != null) {
+                pending = ownSaves.asMap().computeIfAbsent(botId, k -> new AtomicInteger());
+                pending.incrementAndGet();
+            }
+
+            boolean saved = false;
+            try {
+                saved = backing().saveState(newBot);
+                if (saved)
+                    states.put(botId, newBot);
+                return saved;
+            } finally {
+                if (!saved) {
+                    if (pending != null)
+                        pending.getAndUpdate(n -> Math.max(n - 1, 0));
+                    states.invalidate(botId);
+                }
+            }
+        }
+
+        @Override
+        public NewBot getState() throws IOException {
+            try {
+                return states.get(botId, () -> backing().getState());
+            } catch (ExecutionException | UncheckedExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException)
+                    throw (IOException) cause;
+                throw new IOException(cause);
+            }
+        }
+
+        @Override
+        public boolean removeState() throws IOException {
+            try {
+                return backing().removeState();
+            } finally {
+                states.invalidate(botId);
+            }
+        }
+    }
+}
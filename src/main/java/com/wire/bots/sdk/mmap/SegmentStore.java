@@ -0,0 +1,399 @@
+package com.wire.bots.sdk.mmap;
+
+import com.wire.bots.sdk.tools.Logger;
+import io.dropwizard.lifecycle.Managed;
+
+import javax.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only key-value store kept in a few memory-mapped segment files, with the whole index in memory.
+ * <p>
+ * Record: crc32 (int), key length (int), value length (int, -1 for a delete), key, value. The crc covers everything
+ * after it and is written last, so a torn write is detected and dropped when the segments are replayed on open.
+ * <p>
+ * Writes go to the active segment; when it is full a new one is started. Segments where most of the records were
+ * overwritten or deleted are compacted oldest first: the live records are appended again and the file is removed.
+ * Deletes survive compaction until the oldest segment is compacted, so an old value can never come back on replay.
+ * <p>
+ * syncInterval 0 forces every write to disk before returning. Larger values force the active segment periodically,
+ * so a crash loses at most that many ms of writes, but never corrupts the store.
+ */
+public class SegmentStore implements Managed {
+    private static final ConcurrentHashMap<String, SegmentStore> stores = new ConcurrentHashMap<>();
+
+    private static final int HEADER = 12;
+    private static final int DELETED = -1;
+    private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static final double COMPACT_RATIO = 0.5;
+    private static final long COMPACT_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+
+    private final File dir;
+    private final int segmentSize;
+    private final long syncInterval;
+    private final ConcurrentSkipListMap<String, Location> index = new ConcurrentSkipListMap<>();
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private final ScheduledExecutorService scheduler;
+    private Segment active;
+
+    SegmentStore(File dir, int segmentSize, long syncInterval) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.syncInterval = syncInterval;
+
+        if (!dir.exists() && !dir.mkdirs())
+            throw new IOException("Cannot create " + dir);
+
+        File[] files = dir.listFiles((d, name) -> name.startsWith("seg-") && name.endsWith(".log"));
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files)
+                replay(open(file));
+        }
+        active = segments.isEmpty() ? roll() : segments.lastEntry().getValue();
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "segment-store");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (syncInterval > 0)
+            scheduler.scheduleWithFixedDelay(this::sync, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(this::compact, COMPACT_INTERVAL, COMPACT_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return The store in this directory. Opened (and replayed) on first use
+     */
+    public static SegmentStore get(String dir, long syncInterval) {
+        File file = new File(dir).getAbsoluteFile();
+        return stores.computeIfAbsent(file.getPath(), k -> {
+            try {
+                return new SegmentStore(file, SEGMENT_SIZE, syncInterval);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    public byte[] get(String key) {
+        Location location = index.get(key);
+        return location != null ? location.value() : null;
+    }
+
+    /**
+     * @return Values of all the keys starting with prefix, in key order
+     */
+    public Map<String, byte[]> scan(String prefix) {
+        Map<String, byte[]> ret = new LinkedHashMap<>();
+        for (Map.Entry<String, Location> entry : index.subMap(prefix, prefix + Character.MAX_VALUE).entrySet())
+            ret.put(entry.getKey(), entry.getValue().value());
+        return ret;
+    }
+
+    /**
+     * @param after NULL to start at the first key with this prefix
+     * @return Up to limit keys with this prefix after the given key, in key order
+     */
+    public List<String> keys(String prefix, @Nullable String after, int limit) {
+        String from = after != null ? after : prefix;
+        List<String> ret = new ArrayList<>();
+        for (String key : index.subMap(from, after == null, prefix + Character.MAX_VALUE, false).keySet()) {
+            if (ret.size() == limit)
+                break;
+            ret.add(key);
+        }
+        return ret;
+    }
+
+    public void put(String key, byte[] value) throws IOException {
+        synchronized (this) {
+            append(key, value);
+            syncIfNeeded();
+        }
+    }
+
+    /**
+     * All the values with a single fsync
+     */
+    public void putAll(Map<String, byte[]> values) throws IOException {
+        synchronized (this) {
+            for (Map.Entry<String, byte[]> entry : values.entrySet())
+                append(entry.getKey(), entry.getValue());
+            syncIfNeeded();
+        }
+    }
+
+    public void delete(String key) throws IOException {
+        synchronized (this) {
+            if (index.containsKey(key)) {
+                append(key, null);
+                syncIfNeeded();
+            }
+        }
+    }
+
+    public void deletePrefix(String prefix) throws IOException {
+        synchronized (this) {
+            for (String key : new ArrayList<>(index.subMap(prefix, prefix + Character.MAX_VALUE).keySet()))
+                append(key, null);
+            syncIfNeeded();
+        }
+    }
+
+    public synchronized void sync() {
+        active.buffer.force();
+    }
+
+    /**
+     * Rewrites the live records of the segments that are mostly garbage and removes their files
+     */
+    public void compact() {
+        try {
+            List<Segment> candidates;
+            synchronized (this) {
+                candidates = new ArrayList<>();
+                for (Segment segment : segments.values()) {
+                    if (segment != active && segment.dead.get() >= segment.position * COMPACT_RATIO)
+                        candidates.add(segment);
+                }
+            }
+            for (Segment segment : candidates)
+                compact(segment);
+        } catch (Exception e) {
+            Logger.error("SegmentStore.compact: %s %s", dir, e);
+        }
+    }
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public synchronized void stop() {
+        scheduler.shutdown();
+        for (Segment segment : segments.values()) {
+            segment.buffer.force();
+            try {
+                segment.channel.close();
+            } catch (IOException e) {
+                Logger.warning("SegmentStore.stop: %s %s", segment.file, e);
+            }
+        }
+        stores.remove(dir.getPath(), this);
+    }
+
+    private void compact(Segment segment) throws IOException {
+        synchronized (this) {
+            boolean oldest = segments.firstKey() == segment.id;
+            ByteBuffer buf = segment.buffer.duplicate();
+            int offset = 0;
+            while (offset < segment.position) {
+                Record record = Record.read(buf, offset);
+                Location location = index.get(record.key);
+                if (record.value != null) {
+                    if (location != null && location.segment == segment && location.offset == offset)
+                        append(record.key, record.value);
+                } else if (!oldest && location == null) {
+                    // Older segments may still hold a value for this key
+                    append(record.key, null);
+                }
+                offset += record.size;
+            }
+            active.buffer.force();
+
+            segments.remove(segment.id);
+            segment.channel.close();
+            if (!segment.file.delete())
+                Logger.warning("SegmentStore.compact: cannot delete %s", segment.file);
+        }
+    }
+
+    private void append(String key, byte[] value) throws IOException {
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        int size = HEADER + k.length + (value != null ? value.length : 0);
+        if (size > segmentSize)
+            throw new IOException(String.format("Record too large: %s %d bytes", key, size));
+        if (active.position + size > segmentSize) {
+            active.buffer.force();
+            active = roll();
+        }
+
+        int offset = active.position;
+        Record.write(active.buffer.duplicate(), offset, k, value);
+        active.position += size;
+
+        Location old = value != null
+                ? index.put(key, new Location(active, offset, HEADER + k.length, value.length))
+                : index.remove(key);
+        if (old != null)
+            old.segment.dead.addAndGet(old.size());
+        if (value == null)
+            active.dead.addAndGet(size);
+    }
+
+    private void syncIfNeeded() {
+        if (syncInterval <= 0)
+            active.buffer.force();
+    }
+
+    private Segment roll() throws IOException {
+        int id = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+        return open(new File(dir, String.format("seg-%08d.log", id)));
+    }
+
+    private Segment open(File file) throws IOException {
+        String name = file.getName();
+        int id = Integer.parseInt(name.substring(4, name.length() - 4));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        if (raf.length() < segmentSize)
+            raf.setLength(segmentSize);
+        FileChannel channel = raf.getChannel();
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        Segment segment = new Segment(id, file, channel, buffer);
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private void replay(Segment segment) {
+        ByteBuffer buf = segment.buffer.duplicate();
+        int offset = 0;
+        while (true) {
+            Record record = Record.read(buf, offset);
+            if (record == null)
+                break;
+
+            Location old = record.value != null
+                    ? index.put(record.key, new Location(segment, offset, record.size - record.value.length, record.value.length))
+                    : index.remove(record.key);
+            if (old != null)
+                old.segment.dead.addAndGet(old.size());
+            if (record.value == null)
+                segment.dead.addAndGet(record.size);
+            offset += record.size;
+        }
+        segment.position = offset;
+    }
+
+    private static class Segment {
+        final int id;
+        final File file;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        final AtomicLong dead = new AtomicLong();
+        int position;
+
+        Segment(int id, File file, FileChannel channel, MappedByteBuffer buffer) {
+            this.id = id;
+            this.file = file;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+    }
+
+    private static class Location {
+        final Segment segment;
+        final int offset;
+        final int valueOffset;
+        final int length;
+
+        Location(Segment segment, int offset, int valueOffset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.valueOffset = valueOffset;
+            this.length = length;
+        }
+
+        int size() {
+            return valueOffset + length;
+        }
+
+        byte[] value() {
+            ByteBuffer buf = segment.buffer.duplicate();
+            buf.position(offset + valueOffset);
+            byte[] ret = new byte[length];
+            buf.get(ret);
+            return ret;
+        }
+    }
+
+    private static class Record {
+        final String key;
+        final byte[] value;
+        final int size;
+
+        Record(String key, byte[] value, int size) {
+            this.key = key;
+            this.value = value;
+            this.size = size;
+        }
+
+        static void write(ByteBuffer buf, int offset, byte[] key, byte[] value) {
+            int valueLength = value != null ? value.length : DELETED;
+            buf.position(offset + HEADER);
+            buf.put(key);
+            if (value != null)
+                buf.put(value);
+            buf.putInt(offset + 4, key.length);
+            buf.putInt(offset + 8, valueLength);
+            buf.putInt(offset, crc(buf, offset, HEADER + key.length + Math.max(valueLength, 0)));
+        }
+
+        /**
+         * @return NULL at the end of the written part of the segment, or at a torn write
+         */
+        static Record read(ByteBuffer buf, int offset) {
+            if (offset + HEADER > buf.capacity())
+                return null;
+
+            int crc = buf.getInt(offset);
+            int keyLength = buf.getInt(offset + 4);
+            int valueLength = buf.getInt(offset + 8);
+            if (keyLength <= 0 || valueLength < DELETED)
+                return null;
+
+            int size = HEADER + keyLength + Math.max(valueLength, 0);
+            if (offset + size > buf.capacity() || crc != crc(buf, offset, size))
+                return null;
+
+            byte[] key = new byte[keyLength];
+            buf.position(offset + HEADER);
+            buf.get(key);
+            byte[] value = null;
+            if (valueLength != DELETED) {
+                value = new byte[valueLength];
+                buf.get(value);
+            }
+            return new Record(new String(key, StandardCharsets.UTF_8), value, size);
+        }
+
+        private static int crc(ByteBuffer buf, int offset, int size) {
+            ByteBuffer slice = buf.duplicate();
+            slice.limit(offset + size);
+            slice.position(offset + 4);
+            CRC32 crc = new CRC32();
+            crc.update(slice);
+            return (int) crc.getValue();
+        }
+    }
+}
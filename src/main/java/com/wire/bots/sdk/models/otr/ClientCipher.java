@@ -3,9 +3,10 @@ package com.wire.bots.sdk.models.otr;
 import java.util.HashMap;
 
 // <ClientId, Cipher> // cipher is base64 encoded
-class ClientCipher extends HashMap<String, String> {
+// Raw cipher bytes. Jackson writes them as Base64 strings
+class ClientCipher extends HashMap<String, byte[]> {
 
-    public String get(String clientId) {
+    public byte[] get(String clientId) {
         return super.get(clientId);
     }
 }
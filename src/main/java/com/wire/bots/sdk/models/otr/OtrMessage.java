@@ -18,6 +18,7 @@
 
 package com.wire.bots.sdk.models.otr;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 import javax.validation.constraints.NotNull;
@@ -31,6 +32,9 @@ public class OtrMessage {
     @JsonProperty
     private final Recipients recipients;
 
+    @JsonProperty
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String data; // Base64 encoded External message blob
 
     public OtrMessage(String clientId, Recipients recipients) {
         this.sender = clientId;
@@ -56,4 +60,16 @@ public class OtrMessage {
     public String getSender() {
         return sender;
     }
+
+    public Recipients getRecipients() {
+        return recipients;
+    }
+
+    public String getData() {
+        return data;
+    }
+
+    public void setData(String data) {
+        this.data = data;
+    }
 }
@@ -1,18 +1,34 @@
 package com.wire.bots.sdk.models.otr;
 
+import java.util.Base64;
 import java.util.HashMap;
 import java.util.Set;
 import java.util.UUID;
 
-//<UserId, ClientCipher> //Base64 encoded cipher
+//<UserId, ClientCipher> //Raw cipher, Base64 encoded in JSON
 public class Recipients extends HashMap<UUID, ClientCipher> {
 
+    /**
+     * @return Base64 encoded cipher
+     */
     public String get(UUID userId, String clientId) {
-        HashMap<String, String> clients = toClients(userId);
+        byte[] cipher = getCipher(userId, clientId);
+        return cipher != null ? Base64.getEncoder().encodeToString(cipher) : null;
+    }
+
+    public byte[] getCipher(UUID userId, String clientId) {
+        HashMap<String, byte[]> clients = toClients(userId);
         return clients.get(clientId);
     }
 
+    /**
+     * @param cipher Base64 encoded cipher
+     */
     public void add(UUID userId, String clientId, String cipher) {
+        add(userId, clientId, Base64.getDecoder().decode(cipher));
+    }
+
+    public void add(UUID userId, String clientId, byte[] cipher) {
         ClientCipher clients = toClients(userId);
         clients.put(clientId, cipher);
     }
@@ -21,7 +37,7 @@ public class Recipients extends HashMap<UUID, ClientCipher> {
     public void add(UUID userId, ClientCipher clients) {
         Set<String> clientIds = clients.keySet();
         for (String clientId : clientIds) {
-            String bytes = clients.get(clientId);
+            byte[] bytes = clients.get(clientId);
             add(userId, clientId, bytes);
         }
     }
@@ -0,0 +1,48 @@
+package com.wire.bots.sdk.redis;
+
+import com.wire.bots.sdk.Configuration;
+import redis.clients.jedis.Jedis;
+
+/**
+ * Fallback to the keys of the old single node layout (ses_id-sid, id_id, pk_id, botId), so an upgraded deployment
+ * keeps its sessions, identities, prekeys and states before the redis-migrate task ran. A key that is missing in the
+ * {botId} layout is looked up in the old one and renamed on first access. The old layout never ran on a cluster, and
+ * its keys live in other slots, so cluster deployments skip the lookup. Disabled with db.legacyKeys: false.
+ * <p>
+ * Resolved once per storage or state instance, not on every key.
+ */
+public final class LegacyKeys {
+    // Renames the old key unless the new one exists already. That copy is newer, the old one is dropped
+    private static final String MIGRATE = "if redis.call('EXISTS', KEYS[2]) == 0 then return 0 end " +
+            "if redis.call('RENAMENX', KEYS[2], KEYS[1]) == 0 then redis.call('DEL', KEYS[2]) return 0 end " +
+            "return 1";
+
+    private final boolean enabled;
+
+    public LegacyKeys(Configuration.DB conf, RedisPool pool) {
+        this.enabled = conf.legacyKeys && !pool.isCluster();
+    }
+
+    public boolean enabled() {
+        return enabled;
+    }
+
+    /**
+     * @param key    Key in the {botId} layout
+     * @param legacy The same key in the old layout
+     * @return True if the old key was moved to key
+     */
+    public boolean migrate(Jedis jedis, String key, String legacy) {
+        if (!enabled)
+            return false;
+        return Long.valueOf(1).equals(jedis.eval(MIGRATE, 2, key, legacy));
+    }
+
+    /**
+     * Drops the old key, so a removed value can not come back through the fallback
+     */
+    public void delete(Jedis jedis, String legacy) {
+        if (enabled)
+            jedis.del(legacy);
+    }
+}
@@ -0,0 +1,84 @@
+package com.wire.bots.sdk.redis;
+
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Key layout. Everything that belongs to one bot carries the {botId} hash tag so it lands in the same cluster slot,
+ * which lets a script or a pipeline touch the session, its lock and the prekeys of a bot in one go.
+ */
+public final class RedisKeys {
+    private static final String UUID_REGEX = "[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}";
+    private static final Pattern LEGACY_SESSION = Pattern.compile("^ses_(" + UUID_REGEX + ")-(.+)$");
+    private static final Pattern LEGACY_IDENTITY = Pattern.compile("^id_([^{]+)$");
+    private static final Pattern LEGACY_PREKEYS = Pattern.compile("^pk_([^{]+)$");
+    private static final Pattern LEGACY_STATE = Pattern.compile("^(" + UUID_REGEX + ")$");
+
+    private RedisKeys() {
+    }
+
+    public static String tag(String id) {
+        return "{" + id + "}";
+    }
+
+    public static String session(String id, String sid) {
+        return String.format("ses_{%s}-%s", id, sid);
+    }
+
+    public static String sessionLock(String id, String sid) {
+        return String.format("lock_ses_{%s}-%s", id, sid);
+    }
+
+    public static String fence(String id) {
+        return String.format("fence_{%s}", id);
+    }
+
+    public static String identity(String id) {
+        return String.format("id_{%s}", id);
+    }
+
+    public static String prekeys(String id) {
+        return String.format("pk_{%s}", id);
+    }
+
+    public static String state(UUID botId) {
+        return String.format("bot_{%s}", botId);
+    }
+
+    public static String legacySession(String id, String sid) {
+        return String.format("ses_%s-%s", id, sid);
+    }
+
+    public static String legacyIdentity(String id) {
+        return String.format("id_%s", id);
+    }
+
+    public static String legacyPrekeys(String id) {
+        return String.format("pk_%s", id);
+    }
+
+    public static String legacyState(UUID botId) {
+        return botId.toString();
+    }
+
+    /**
+     * @param key Key in the old single node layout: ses_id-sid, id_id, pk_id or the bare botId
+     * @return The same key in the hash tag layout. NULL if this is not a legacy key
+     */
+    public static String migrate(String key) {
+        Matcher m = LEGACY_SESSION.matcher(key);
+        if (m.matches())
+            return session(m.group(1), m.group(2));
+        m = LEGACY_IDENTITY.matcher(key);
+        if (m.matches())
+            return identity(m.group(1));
+        m = LEGACY_PREKEYS.matcher(key);
+        if (m.matches())
+            return prekeys(m.group(1));
+        m = LEGACY_STATE.matcher(key);
+        if (m.matches())
+            return state(UUID.fromString(m.group(1)));
+        return null;
+    }
+}
@@ -0,0 +1,255 @@
+package com.wire.bots.sdk.redis;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.wire.bots.sdk.Configuration;
+import io.dropwizard.lifecycle.Managed;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisCluster;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.JedisSentinelPool;
+import redis.clients.jedis.exceptions.JedisMovedDataException;
+import redis.clients.jedis.exceptions.JedisRedirectionException;
+import redis.clients.util.JedisClusterCRC16;
+import redis.clients.util.Pool;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+/**
+ * Redis connections shared by RedisState, RedisStorage and RedisDeviceCache. Sized from Configuration.DB. Idle
+ * connections are checked by the evictor instead of a PING on every borrow and return. There is one pool per
+ * deployment (host and port, sentinel master, or set of cluster nodes); every config that names it must carry the
+ * same connection settings.
+ * <p>
+ * Three modes: a single node (host, port), sentinel (master and the sentinels in nodes) and cluster (nodes). Callers
+ * pass the hash tag of the keys they are about to use and get a connection to the node that owns them, see
+ * {@link RedisKeys}. Use {@link #call} rather than {@link #getResource} so that the commands follow the slots while
+ * the cluster is resharded.
+ */
+public class RedisPool implements Managed {
+    private static final ConcurrentHashMap<String, RedisPool> pools = new ConcurrentHashMap<>();
+
+    private final String name;
+    private final List<Object> settings;
+    private final Pool<Jedis> pool;
+    private final Cluster cluster;
+
+    private RedisPool(String name, Configuration.DB conf) {
+        this.name = name;
+        this.settings = settings(conf);
+
+        JedisPoolConfig poolConfig = new JedisPoolConfig();
+        poolConfig.setMaxTotal(conf.poolSize);
+        poolConfig.setMaxIdle(conf.maxIdle);
+        poolConfig.setMinIdle(conf.minIdle);
+        poolConfig.setMaxWaitMillis(conf.maxWait);
+        poolConfig.setTestOnBorrow(conf.testOnBorrow);
+        poolConfig.setTestOnReturn(false);
+        poolConfig.setTestWhileIdle(true);
+        poolConfig.setMinEvictableIdleTimeMillis(Duration.ofSeconds(60).toMillis());
+        poolConfig.setTimeBetweenEvictionRunsMillis(Duration.ofSeconds(30).toMillis());
+        poolConfig.setNumTestsPerEvictionRun(3);
+        poolConfig.setBlockWhenExhausted(true);
+
+        int timeout = conf.timeout != null ? conf.timeout : 5000;
+        String password = conf.password != null && !conf.password.isEmpty() ? conf.password : null;
+
+        if (conf.nodes != null && !conf.nodes.isEmpty() && conf.master == null) {
+            Set<HostAndPort> nodes = new HashSet<>();
+            for (String node : conf.nodes)
+                nodes.add(HostAndPort.parseString(node));
+            cluster = new Cluster(nodes, timeout, password, poolConfig);
+            pool = null;
+        } else if (conf.master != null) {
+            if (conf.nodes == null || conf.nodes.isEmpty())
+                throw new IllegalArgumentException("Redis sentinel: db.master is set but db.nodes lists no sentinels");
+            pool = new JedisSentinelPool(conf.master, new HashSet<>(conf.nodes), poolConfig, timeout, password);
+            cluster = null;
+        } else {
+            if (conf.host == null)
+                throw new IllegalArgumentException("Redis: set db.host, db.nodes for a cluster or db.master for sentinel");
+            int port = conf.port != null ? conf.port : 6379;
+            pool = new JedisPool(poolConfig, conf.host, port, timeout, password);
+            cluster = null;
+        }
+    }
+
+    /**
+     * @return The pool for this Redis deployment. Created on first use
+     * @throws IllegalArgumentException If the pool of this deployment was created with other connection settings
+     */
+    public static RedisPool get(Configuration.DB conf) {
+        RedisPool ret = pools.computeIfAbsent(name(conf), k -> new RedisPool(k, conf));
+        if (!ret.settings.equals(settings(conf)))
+            throw new IllegalArgumentException(String.format("Redis %s is already in use with other connection settings",
+                    ret.name));
+        return ret;
+    }
+
+    /**
+     * For callers that only know where Redis is, like the RedisStorage(host, port) constructors: they share the pool
+     * of this deployment as it was configured, and only create one with conf if there is none yet
+     *
+     * @return The pool for this Redis deployment, whatever its connection settings
+     */
+    public static RedisPool shared(Configuration.DB conf) {
+        RedisPool ret = pools.get(name(conf));
+        return ret != null ? ret : get(conf);
+    }
+
+    private static String name(Configuration.DB conf) {
+        if (conf.master != null)
+            return conf.master;
+        if (conf.nodes != null && !conf.nodes.isEmpty())
+            return String.join(",", new TreeSet<>(conf.nodes));
+        return String.format("%s:%d", conf.host, conf.port != null ? conf.port : 6379);
+    }
+
+    /**
+     * Everything else the pool is built from. Configs that name the same deployment must agree on all of it
+     */
+    private static List<Object> settings(Configuration.DB conf) {
+        Set<String> nodes = conf.nodes != null ? new TreeSet<>(conf.nodes) : null;
+        return Arrays.asList(nodes, conf.password, conf.timeout, conf.poolSize, conf.maxIdle, conf.minIdle,
+                conf.maxWait, conf.testOnBorrow);
+    }
+
+    /**
+     * Runs command on the node that owns the tag. In cluster mode a MOVED reply (the slot has moved) refreshes the slot
+     * map and runs the command again on the new owner, an ASK reply (the slot is being moved) runs it again on the
+     * importing node. A redirected command was not run, but the ones before it in command were: command must be safe
+     * to run again
+     *
+     * @param tag Hash tag of the keys command uses
+     */
+    public <T> T call(String tag, Function<Jedis, T> command) {
+        HostAndPort ask = null;
+        for (int i = 0; ; i++) {
+            try (Jedis jedis = ask != null ? cluster.forNode(ask) : getResource(tag)) {
+                if (ask != null)
+                    jedis.asking();
+                return command.apply(jedis);
+            } catch (JedisRedirectionException e) {
+                if (cluster == null || i >= Cluster.MAX_ATTEMPTS)
+                    throw e;
+                if (e instanceof JedisMovedDataException) {
+                    cluster.renewSlotCache();
+                    ask = null;
+                } else {
+                    ask = e.getTargetNode();
+                }
+            }
+        }
+    }
+
+    /**
+     * Does not follow MOVED and ASK redirects, see {@link #call}
+     *
+     * @param tag Hash tag of the keys this connection is going to be used for
+     * @return Connection to the node that owns the tag. Must be closed
+     */
+    public Jedis getResource(String tag) {
+        if (cluster != null)
+            return cluster.forSlot(JedisClusterCRC16.getSlot(tag));
+        return pool.getResource();
+    }
+
+    public boolean isCluster() {
+        return cluster != null;
+    }
+
+    /**
+     * @return Pools of all the master nodes. For tools that need to SCAN the whole keyspace
+     */
+    public List<Pool<Jedis>> masters() {
+        List<Pool<Jedis>> ret = new ArrayList<>();
+        if (cluster == null) {
+            ret.add(pool);
+            return ret;
+        }
+
+        for (JedisPool node : cluster.getClusterNodes().values()) {
+            try (Jedis jedis = node.getResource()) {
+                if (jedis.info("replication").contains("role:master"))
+                    ret.add(node);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Registers active, idle, waiters and borrow wait time (mean and max, in ms) gauges. In cluster mode the counts
+     * are summed over all the nodes and the wait times are those of the slowest node
+     */
+    public RedisPool registerMetrics(MetricRegistry metrics) {
+        metrics.register(MetricRegistry.name(RedisPool.class, name, "active"),
+                (Gauge<Integer>) () -> sum(Pool::getNumActive));
+        metrics.register(MetricRegistry.name(RedisPool.class, name, "idle"),
+                (Gauge<Integer>) () -> sum(Pool::getNumIdle));
+        metrics.register(MetricRegistry.name(RedisPool.class, name, "waiters"),
+                (Gauge<Integer>) () -> sum(Pool::getNumWaiters));
+        metrics.register(MetricRegistry.name(RedisPool.class, name, "wait-mean"),
+                (Gauge<Long>) () -> pools().stream().mapToLong(Pool::getMeanBorrowWaitTimeMillis).max().orElse(0));
+        metrics.register(MetricRegistry.name(RedisPool.class, name, "wait-max"),
+                (Gauge<Long>) () -> pools().stream().mapToLong(Pool::getMaxBorrowWaitTimeMillis).max().orElse(0));
+        return this;
+    }
+
+    private int sum(ToIntFunction<Pool<Jedis>> f) {
+        return pools().stream().mapToInt(f).sum();
+    }
+
+    private List<Pool<Jedis>> pools() {
+        List<Pool<Jedis>> ret = new ArrayList<>();
+        if (cluster != null)
+            ret.addAll(cluster.getClusterNodes().values());
+        else
+            ret.add(pool);
+        return ret;
+    }
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public void stop() throws Exception {
+        pools.remove(name, this);
+        if (cluster != null)
+            cluster.close();
+        else
+            pool.close();
+    }
+
+    // Exposes the slot routing of JedisCluster so that one connection can run a pipeline or a script per bot
+    private static class Cluster extends JedisCluster {
+        private static final int MAX_ATTEMPTS = 5;
+
+        Cluster(Set<HostAndPort> nodes, int timeout, String password, JedisPoolConfig poolConfig) {
+            super(nodes, timeout, timeout, MAX_ATTEMPTS, password, poolConfig);
+        }
+
+        Jedis forSlot(int slot) {
+            return connectionHandler.getConnectionFromSlot(slot);
+        }
+
+        Jedis forNode(HostAndPort node) {
+            return connectionHandler.getConnectionFromNode(node);
+        }
+
+        void renewSlotCache() {
+            connectionHandler.renewSlotCache();
+        }
+    }
+}
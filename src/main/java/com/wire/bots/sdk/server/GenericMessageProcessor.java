@@ -21,6 +21,7 @@ package com.wire.bots.sdk.server;
 import com.waz.model.Messages;
 import com.wire.bots.sdk.MessageHandlerBase;
 import com.wire.bots.sdk.WireClient;
+import com.wire.bots.sdk.crypto.ExternalMessage;
 import com.wire.bots.sdk.models.*;
 import com.wire.bots.sdk.tools.Logger;
 
@@ -43,6 +44,19 @@ public class GenericMessageProcessor {
         this.handler = handler;
     }
 
+    /**
+     * Decode the External message: the original message is AES encrypted in the data field of the OtrMessage
+     *
+     * @param generic Message as decrypted by Proteus
+     * @param data    Base64 encoded data field of the OtrMessage
+     * @return The original message or the same message if it is not External
+     */
+    public static Messages.GenericMessage decodeExternal(Messages.GenericMessage generic, String data) throws Exception {
+        if (!generic.hasExternal())
+            return generic;
+        return ExternalMessage.unwrap(generic.getExternal(), data);
+    }
+
     public void cleanUp(UUID messageId) {
         remotes.remove(messageId);
         originals.remove(messageId);
@@ -0,0 +1,44 @@
+package com.wire.bots.sdk.server;
+
+import org.skife.jdbi.v2.StatementContext;
+import org.skife.jdbi.v2.sqlobject.Bind;
+import org.skife.jdbi.v2.sqlobject.SqlQuery;
+import org.skife.jdbi.v2.sqlobject.SqlUpdate;
+import org.skife.jdbi.v2.sqlobject.customizers.RegisterMapper;
+import org.skife.jdbi.v2.tweak.ResultSetMapper;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.UUID;
+
+public interface InboundDAO {
+    @SqlUpdate("INSERT INTO Inbound (id, botId, payload) VALUES (:id, :botId, to_json(:payload::json)) ON CONFLICT (id) DO NOTHING")
+    int insert(@Bind("id") UUID id,
+               @Bind("botId") UUID botId,
+               @Bind("payload") String payload);
+
+    @SqlQuery("SELECT id, botId, payload FROM Inbound ORDER BY created")
+    @RegisterMapper(_Mapper.class)
+    List<Inbound> getAll();
+
+    @SqlUpdate("DELETE FROM Inbound WHERE id = :id")
+    int delete(@Bind("id") UUID id);
+
+    class Inbound {
+        public UUID id;
+        public UUID botId;
+        public String payload;
+    }
+
+    class _Mapper implements ResultSetMapper<Inbound> {
+        @Override
+        public Inbound map(int i, ResultSet rs, StatementContext statementContext) throws SQLException {
+            Inbound inbound = new Inbound();
+            inbound.id = (UUID) rs.getObject("id");
+            inbound.botId = (UUID) rs.getObject("botId");
+            inbound.payload = rs.getString("payload");
+            return inbound;
+        }
+    }
+}
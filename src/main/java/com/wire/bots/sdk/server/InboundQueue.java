@@ -0,0 +1,141 @@
+package com.wire.bots.sdk.server;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.wire.bots.sdk.server.model.Payload;
+import com.wire.bots.sdk.tools.Logger;
+import io.dropwizard.lifecycle.Managed;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded inbound queue that decouples the acknowledgement of the webhook from the processing of the payload.
+ * Payloads are optionally journaled into the Inbound table before they are acknowledged so that they survive a
+ * restart. Pending journal entries are replayed on start.
+ * Payloads of the same bot are handled one after another in the order they were accepted.
+ */
+public class InboundQueue implements Managed {
+    private final static ObjectMapper mapper = new ObjectMapper();
+
+    private final KeyedExecutor executor;
+    private final InboundDAO journal;
+    private final Meter rejected;
+    private final Meter failed;
+    private final Timer latency;
+    private Handler handler;
+
+    /**
+     * @param executor Keyed worker pool. Its capacity bounds the queue, a full executor rejects new payloads
+     * @param journal  Optional journal. If NULL payloads are kept in memory only
+     * @param metrics  Metric registry
+     */
+    public InboundQueue(KeyedExecutor executor, @Nullable InboundDAO journal, MetricRegistry metrics) {
+        this.executor = executor;
+        this.journal = journal;
+
+        metrics.register(MetricRegistry.name(InboundQueue.class, "depth"), (Gauge<Integer>) executor::pending);
+        rejected = metrics.meter(MetricRegistry.name(InboundQueue.class, "rejected"));
+        failed = metrics.meter(MetricRegistry.name(InboundQueue.class, "failed"));
+        latency = metrics.timer(MetricRegistry.name(InboundQueue.class, "latency"));
+    }
+
+    public InboundQueue addHandler(Handler handler) {
+        this.handler = handler;
+        return this;
+    }
+
+    /**
+     * Enqueue the payload for processing
+     *
+     * @param botId     Bot id
+     * @param messageId Unique message id. Used to discard the redeliveries of already journaled payloads
+     * @param payload   Payload as received from the Backend
+     * @return TRUE if the payload was accepted (or it had been accepted before). FALSE if the queue is full
+     */
+    public boolean offer(UUID botId, UUID messageId, Payload payload) throws Exception {
+        if (journal != null) {
+            String json = mapper.writeValueAsString(payload);
+            if (0 == journal.insert(messageId, botId, json)) {
+                Logger.debug("InboundQueue: bot: %s, id: %s already journaled", botId, messageId);
+                return true;
+            }
+        }
+
+        try {
+            submit(botId, messageId, payload);
+            return true;
+        } catch (RejectedExecutionException e) {
+            rejected.mark();
+            if (journal != null)
+                journal.delete(messageId);
+            Logger.warning("InboundQueue: rejected bot: %s, id: %s", botId, messageId);
+            return false;
+        }
+    }
+
+    /**
+     * The Backend does not send a message id yet. A redelivery carries the very same payload, so a name based UUID of
+     * the bot and the payload identifies it
+     */
+    public static UUID messageId(UUID botId, Payload payload) throws IOException {
+        byte[] json = mapper.writeValueAsBytes(payload);
+        ByteBuffer buf = ByteBuffer.allocate(16 + json.length)
+                .putLong(botId.getMostSignificantBits())
+                .putLong(botId.getLeastSignificantBits())
+                .put(json);
+        return UUID.nameUUIDFromBytes(buf.array());
+    }
+
+    @Override
+    public void start() throws Exception {
+        if (journal == null)
+            return;
+
+        List<InboundDAO.Inbound> pending = journal.getAll();
+        if (!pending.isEmpty())
+            Logger.info("InboundQueue: replaying %d journaled payloads", pending.size());
+
+        for (InboundDAO.Inbound inbound : pending) {
+            Payload payload = mapper.readValue(inbound.payload, Payload.class);
+            try {
+                submit(inbound.botId, inbound.id, payload);
+            } catch (RejectedExecutionException e) {
+                Logger.warning("InboundQueue: queue is full, %s will be replayed on the next start", inbound.id);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void stop() {
+    }
+
+    private void submit(UUID botId, UUID messageId, Payload payload) {
+        final long enqueued = System.nanoTime();
+        executor.execute(botId, () -> {
+            latency.update(System.nanoTime() - enqueued, TimeUnit.NANOSECONDS);
+            try {
+                handler.handle(botId, messageId, payload);
+            } catch (Exception e) {
+                failed.mark();
+                Logger.error("InboundQueue: bot: %s, id: %s %s", botId, messageId, e);
+            } finally {
+                if (journal != null)
+                    journal.delete(messageId);
+            }
+        });
+    }
+
+    public interface Handler {
+        void handle(UUID botId, UUID messageId, Payload payload) throws Exception;
+    }
+}
@@ -0,0 +1,165 @@
+package com.wire.bots.sdk.server;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.wire.bots.sdk.tools.Logger;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executes tasks submitted under the same key strictly one after another and in submission order, while tasks with
+ * different keys run in parallel on the underlying pool. No thread is ever blocked waiting for a busy key: a key
+ * holds at most one drain task in the pool at any time.
+ * This class is thread safe.
+ */
+public class KeyedExecutor {
+    private static final int BATCH = 32; // tasks drained for one key before yielding the thread to other keys
+
+    private final ConcurrentHashMap<Object, SerialQueue> queues = new ConcurrentHashMap<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final Executor executor;
+    private final int capacity;
+    private final Histogram keyQueueLength;
+
+    /**
+     * @param name     Name used for the metrics
+     * @param executor Pool that runs the tasks
+     * @param capacity Max number of pending tasks (over all keys). Tasks above this limit are rejected
+     * @param metrics  Metric registry
+     */
+    public KeyedExecutor(String name, Executor executor, int capacity, MetricRegistry metrics) {
+        this.executor = executor;
+        this.capacity = capacity;
+
+        keyQueueLength = metrics.histogram(MetricRegistry.name(KeyedExecutor.class, name, "key-queue-length"));
+        metrics.register(MetricRegistry.name(KeyedExecutor.class, name, "pending"), (Gauge<Integer>) pending::get);
+        metrics.register(MetricRegistry.name(KeyedExecutor.class, name, "keys"), (Gauge<Integer>) queues::size);
+    }
+
+    /**
+     * Schedule the task after all the tasks previously submitted with the same key
+     *
+     * @param key  Ordering key
+     * @param task Task
+     * @throws RejectedExecutionException if the executor is at capacity
+     */
+    public void execute(Object key, Runnable task) {
+        if (pending.incrementAndGet() > capacity) {
+            pending.decrementAndGet();
+            throw new RejectedExecutionException("KeyedExecutor is full");
+        }
+
+        final int[] length = new int[1];
+        final boolean[] schedule = new boolean[1];
+        SerialQueue queue = queues.compute(key, (k, q) -> {
+            SerialQueue ret = q != null ? q : new SerialQueue(k);
+            ret.tasks.add(task);
+            length[0] = ret.tasks.size();
+            if (!ret.scheduled) {
+                ret.scheduled = true;
+                schedule[0] = true;
+            }
+            return ret;
+        });
+
+        keyQueueLength.update(length[0]);
+
+        if (schedule[0]) {
+            try {
+                executor.execute(queue);
+            } catch (RuntimeException e) {
+                unschedule(key, task);
+                throw e instanceof RejectedExecutionException ? e : new RejectedExecutionException(e);
+            }
+        }
+    }
+
+    /**
+     * The pool rejected the queue of this key: take the task back out and clear the flag, so that the next task of
+     * this key schedules the queue again. Tasks other threads added meanwhile stay queued and run then
+     */
+    private void unschedule(Object key, Runnable task) {
+        queues.computeIfPresent(key, (k, q) -> {
+            q.tasks.removeLastOccurrence(task);
+            q.scheduled = false;
+            return q.tasks.isEmpty() ? null : q;
+        });
+        pending.decrementAndGet();
+    }
+
+    /**
+     * Same as {@link #execute(Object, Runnable)} but the result of the task is returned as a future
+     */
+    public <T> CompletableFuture<T> submit(Object key, Callable<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        execute(key, () -> {
+            try {
+                future.complete(task.call());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * @return Number of tasks that are waiting or running (over all keys)
+     */
+    public int pending() {
+        return pending.get();
+    }
+
+    private class SerialQueue implements Runnable {
+        // guarded by the map bin of this key: only ever touched inside queues.compute*
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        private final Object key;
+        private boolean scheduled;
+
+        SerialQueue(Object key) {
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                for (int i = 0; i < BATCH; i++) {
+                    Runnable task = next();
+                    if (task == null)
+                        return;
+
+                    try {
+                        task.run();
+                    } catch (Throwable e) {
+                        Logger.error("KeyedExecutor: key: %s %s", key, e);
+                    } finally {
+                        pending.decrementAndGet();
+                    }
+                }
+
+                // Give other keys a chance. The queue stays scheduled so the order is preserved
+                try {
+                    executor.execute(this);
+                    return;
+                } catch (RejectedExecutionException e) {
+                    // The pool is full or shutting down: keep draining on this thread rather than strand the key
+                }
+            }
+        }
+
+        private Runnable next() {
+            final Runnable[] ret = new Runnable[1];
+            queues.computeIfPresent(key, (k, q) -> {
+                ret[0] = q.tasks.poll();
+                if (ret[0] == null) {
+                    q.scheduled = false;
+                    return null;
+                }
+                return q;
+            });
+            return ret[0];
+        }
+    }
+}
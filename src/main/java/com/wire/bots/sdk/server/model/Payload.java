@@ -60,6 +60,8 @@ public class Payload {
         public String recipient;
         @JsonProperty
         public String text;
+        @JsonProperty
+        public String data; // External message blob
         @JsonProperty("user_ids")
         public List<UUID> userIds;
         @JsonProperty
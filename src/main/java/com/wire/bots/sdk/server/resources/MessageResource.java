@@ -25,9 +25,12 @@ import com.wire.bots.sdk.ClientRepo;
 import com.wire.bots.sdk.MessageHandlerBase;
 import com.wire.bots.sdk.WireClient;
 import com.wire.bots.sdk.exceptions.MissingStateException;
+import com.wire.bots.sdk.server.InboundQueue;
+import com.wire.bots.sdk.server.KeyedExecutor;
 import com.wire.bots.sdk.server.model.ErrorMessage;
 import com.wire.bots.sdk.server.model.Payload;
 import com.wire.bots.sdk.tools.Logger;
+import io.dropwizard.util.Duration;
 import io.swagger.annotations.*;
 
 import javax.validation.Valid;
@@ -37,6 +40,10 @@ import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import java.io.IOException;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 
 @Api
@@ -45,9 +52,32 @@ import java.util.logging.Level;
 @Path("/bots/{bot}/messages")
 public class MessageResource extends MessageResourceBase {
     private final ObjectMapper objectMapper = new ObjectMapper();
+    private final KeyedExecutor executor;
+    private final InboundQueue queue;
+    private final Duration timeout;
 
     public MessageResource(MessageHandlerBase handler, ClientRepo repo) {
+        this(handler, repo, null, null);
+    }
+
+    public MessageResource(MessageHandlerBase handler, ClientRepo repo, KeyedExecutor executor, InboundQueue queue) {
+        this(handler, repo, executor, queue, Duration.seconds(20));
+    }
+
+    /**
+     * @param executor If not NULL payloads of the same bot are processed one after another, in the order they arrived
+     * @param queue    If not NULL payloads are enqueued and acknowledged immediately. Otherwise they are processed
+     *                 before the response is sent
+     * @param timeout  Without a queue: how long the request thread waits for the executor before answering 503
+     */
+    public MessageResource(MessageHandlerBase handler, ClientRepo repo, KeyedExecutor executor, InboundQueue queue,
+                           Duration timeout) {
         super(handler, repo);
+        this.executor = executor;
+        this.queue = queue;
+        this.timeout = timeout;
+        if (queue != null)
+            queue.addHandler(this::process);
     }
 
     @POST
@@ -55,6 +85,7 @@ public class MessageResource extends MessageResourceBase {
     @ApiResponses(value = {
             @ApiResponse(code = 403, message = "Invalid Authorization", response = ErrorMessage.class),
             @ApiResponse(code = 503, message = "Missing bot's state object", response = ErrorMessage.class),
+            @ApiResponse(code = 429, message = "Inbound queue is full", response = ErrorMessage.class),
             @ApiResponse(code = 200, message = "Alles gute")})
     @Authorization("Bearer")
     @Metered
@@ -68,9 +99,62 @@ public class MessageResource extends MessageResourceBase {
         }
 
         if (messageID == null) {
-            messageID = UUID.randomUUID(); //todo fix this once Wire BE adds messageId into payload
+            // Stable across redeliveries so the journal can discard them
+            messageID = InboundQueue.messageId(botId, payload);
         }
 
+        if (queue != null) {
+            try {
+                if (!queue.offer(botId, messageID, payload)) {
+                    return Response.
+                            status(429).
+                            entity(new ErrorMessage("Inbound queue is full")).
+                            build();
+                }
+            } catch (Exception e) {
+                Logger.error("newMessage: %s %s", botId, e);
+                return Response.
+                        status(503).
+                        entity(new ErrorMessage(e.getMessage())).
+                        build();
+            }
+
+            return Response.
+                    ok().
+                    status(200).
+                    build();
+        }
+
+        if (executor != null) {
+            final UUID id = messageID;
+            try {
+                return executor.submit(botId, () -> process(botId, id, payload))
+                        .get(timeout.toMilliseconds(), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // A slow bot must not hold the request threads. The payload is processed when its turn comes
+                Logger.warning("newMessage: %s %s still waiting after %s", botId, id, timeout);
+                return Response.
+                        status(503).
+                        entity(new ErrorMessage("Timeout")).
+                        build();
+            } catch (RejectedExecutionException e) {
+                return Response.
+                        status(429).
+                        entity(new ErrorMessage("Inbound queue is full")).
+                        build();
+            } catch (InterruptedException | ExecutionException e) {
+                Logger.error("newMessage: %s %s", botId, e);
+                return Response.
+                        status(503).
+                        entity(new ErrorMessage(e.getMessage())).
+                        build();
+            }
+        }
+
+        return process(botId, messageID, payload);
+    }
+
+    private Response process(UUID botId, UUID messageID, Payload payload) {
         try (WireClient client = getWireClient(botId, payload)) {
             handleMessage(messageID, payload, client);
         } catch (CryptoException e) {
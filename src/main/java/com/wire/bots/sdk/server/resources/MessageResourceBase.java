@@ -1,11 +1,12 @@
 package com.wire.bots.sdk.server.resources;
 
-import com.google.protobuf.InvalidProtocolBufferException;
 import com.waz.model.Messages;
 import com.wire.bots.cryptobox.CryptoException;
 import com.wire.bots.sdk.ClientRepo;
 import com.wire.bots.sdk.MessageHandlerBase;
+import com.wire.bots.sdk.PreKeyReplenisher;
 import com.wire.bots.sdk.WireClient;
+import com.wire.bots.sdk.devices.DeviceCache;
 import com.wire.bots.sdk.server.GenericMessageProcessor;
 import com.wire.bots.sdk.server.model.Conversation;
 import com.wire.bots.sdk.server.model.Member;
@@ -14,6 +15,7 @@ import com.wire.bots.sdk.server.model.SystemMessage;
 import com.wire.bots.sdk.tools.Logger;
 import com.wire.bots.sdk.user.UserClient;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.util.Base64;
 import java.util.List;
@@ -59,6 +61,11 @@ public abstract class MessageResourceBase {
             case "conversation.member-join": {
                 Logger.debug("conversation.member-join: bot: %s", botId);
 
+                // New participants: their devices will be pulled on the next send
+                DeviceCache deviceCache = getDeviceCache();
+                if (deviceCache != null)
+                    deviceCache.invalidate(payload.convId);
+
                 // Check if this bot got added to the conversation
                 List<UUID> participants = data.userIds;
                 if (participants.remove(botId)) {
@@ -70,8 +77,13 @@ public abstract class MessageResourceBase {
                     return;
                 }
 
-                // Check if we still have some prekeys available. Upload new prekeys if needed
-                handler.validatePreKeys(client, participants.size());
+                // Bots are topped up in the background as their sessions come in. Their estimate is checked against
+                // the Backend every now and then in case it drifted
+                PreKeyReplenisher replenisher = getPreKeyReplenisher();
+                if (replenisher == null)
+                    handler.validatePreKeys(client, participants.size());
+                else
+                    replenisher.onMemberJoin(botId);
 
                 SystemMessage systemMessage = getSystemMessage(eventId, payload);
                 systemMessage.users = data.userIds;
@@ -85,6 +97,12 @@ public abstract class MessageResourceBase {
                 SystemMessage systemMessage = getSystemMessage(eventId, payload);
                 systemMessage.users = data.userIds;
 
+                DeviceCache deviceCache = getDeviceCache();
+                if (deviceCache != null) {
+                    for (UUID userId : data.userIds)
+                        deviceCache.removeUser(payload.convId, userId);
+                }
+
                 // Check if this bot got removed from the conversation
                 List<UUID> participants = data.userIds;
                 if (participants.remove(botId)) {
@@ -180,6 +198,16 @@ public abstract class MessageResourceBase {
         return repo.getClient(botId);
     }
 
+    @Nullable
+    protected DeviceCache getDeviceCache() {
+        return repo != null ? repo.getDeviceCache() : null;
+    }
+
+    @Nullable
+    protected PreKeyReplenisher getPreKeyReplenisher() {
+        return repo != null ? repo.getPreKeyReplenisher() : null;
+    }
+
     protected void handleUpdate(UUID id, Payload payload, UserClient userClient) {
         switch (payload.type) {
             case "team.member-join": {
@@ -198,14 +226,18 @@ public abstract class MessageResourceBase {
         }
     }
 
-    private Messages.GenericMessage decrypt(WireClient client, Payload payload)
-            throws CryptoException, InvalidProtocolBufferException {
+    private Messages.GenericMessage decrypt(WireClient client, Payload payload) throws Exception {
         UUID from = payload.from;
         String sender = payload.data.sender;
-        String cipher = payload.data.text;
+        byte[] cipher = Base64.getDecoder().decode(payload.data.text);
+
+        byte[] decoded = client.decrypt(from, sender, cipher);
+
+        PreKeyReplenisher replenisher = getPreKeyReplenisher();
+        if (replenisher != null)
+            replenisher.onDecrypted(client.getId(), cipher);
 
-        String encoded = client.decrypt(from, sender, cipher);
-        byte[] decoded = Base64.getDecoder().decode(encoded);
-        return Messages.GenericMessage.parseFrom(decoded);
+        Messages.GenericMessage generic = Messages.GenericMessage.parseFrom(decoded);
+        return GenericMessageProcessor.decodeExternal(generic, payload.data.data);
     }
 }
@@ -0,0 +1,54 @@
+package com.wire.bots.sdk.server.tasks;
+
+import com.google.common.collect.ImmutableMultimap;
+import com.wire.bots.sdk.Broadcaster;
+import com.wire.bots.sdk.assets.MessageText;
+import com.wire.bots.sdk.tools.Logger;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Posts text into every conversation: POST /tasks/broadcast?text=...
+ * Prints a checkpoint after every page. Pass it back as checkpoint=... to resume an interrupted broadcast
+ * <p>
+ * The request blocks until the whole broadcast is done: the sends run on the broadcast pool, but the admin thread
+ * waits for each page and streams the checkpoints. Give the client a long enough timeout. A client that hangs up
+ * does not stop the broadcast, it only loses the report
+ */
+public class BroadcastTask extends TaskBase {
+    private final Broadcaster broadcaster;
+
+    public BroadcastTask(Broadcaster broadcaster) {
+        super("broadcast");
+        this.broadcaster = broadcaster;
+    }
+
+    @Override
+    public void execute(ImmutableMultimap<String, String> parameters, PrintWriter output) {
+        String text = extractString(parameters, "text");
+        String checkpoint = extractString(parameters, "checkpoint", null);
+        if (text.isEmpty()) {
+            output.println("Missing text");
+            return;
+        }
+
+        try {
+            Broadcaster.Report report = broadcaster.broadcast(new MessageText(text), checkpoint, new Broadcaster.Listener() {
+                @Override
+                public void onCheckpoint(String checkpoint, Broadcaster.Report report) {
+                    output.printf("checkpoint: %s sent: %d failed: %d%n", checkpoint, report.getSent(), report.getFailed());
+                    output.flush();
+                }
+            });
+
+            output.printf("sent: %d failed: %d%n", report.getSent(), report.getFailed());
+            for (Map.Entry<UUID, String> failure : report.getFailures().entrySet())
+                output.printf("failed: %s %s%n", failure.getKey(), failure.getValue());
+        } catch (Exception e) {
+            Logger.error("BroadcastTask: %s", e);
+            output.println(e.getMessage());
+        }
+    }
+}
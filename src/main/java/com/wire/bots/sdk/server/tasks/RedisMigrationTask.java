@@ -0,0 +1,85 @@
+package com.wire.bots.sdk.server.tasks;
+
+import com.google.common.collect.ImmutableMultimap;
+import com.wire.bots.sdk.redis.RedisKeys;
+import com.wire.bots.sdk.redis.RedisPool;
+import com.wire.bots.sdk.tools.Logger;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.util.Pool;
+
+import java.io.PrintWriter;
+
+/**
+ * Moves the keys written in the old single node layout (ses_id-sid, id_id, pk_id, botId) to the {botId} hash tag
+ * layout. Keys are copied with DUMP/RESTORE so this works across cluster slots. The old key is deleted only once the
+ * copy is written, or when the new layout already has a newer one. Keys that fail are skipped and kept. Safe to run
+ * more than once. Pass dry=1 to only count the keys.
+ */
+public class RedisMigrationTask extends TaskBase {
+    private static final int BATCH = 1000;
+
+    private final RedisPool redis;
+
+    public RedisMigrationTask(RedisPool redis) {
+        super("redis-migrate");
+        this.redis = redis;
+    }
+
+    @Override
+    public void execute(ImmutableMultimap<String, String> parameters, PrintWriter output) {
+        boolean dry = extract(parameters, "dry") != 0;
+        int moved = 0;
+        int skipped = 0;
+
+        for (Pool<Jedis> master : redis.masters()) {
+            try (Jedis source = master.getResource()) {
+                ScanParams params = new ScanParams().count(BATCH);
+                String cursor = ScanParams.SCAN_POINTER_START;
+                do {
+                    ScanResult<String> scan = source.scan(cursor, params);
+                    for (String key : scan.getResult()) {
+                        String target = RedisKeys.migrate(key);
+                        if (target == null)
+                            continue;
+
+                        if (dry || move(source, key, target))
+                            moved++;
+                        else
+                            skipped++;
+                    }
+                    cursor = scan.getStringCursor();
+                } while (!cursor.equals(ScanParams.SCAN_POINTER_START));
+            } catch (Exception e) {
+                Logger.error("RedisMigrationTask: %s", e);
+                output.println(e.getMessage());
+            }
+        }
+
+        output.println(String.format("%s: %d, skipped: %d", dry ? "to migrate" : "migrated", moved, skipped));
+    }
+
+    private boolean move(Jedis source, String key, String target) {
+        byte[] dump = source.dump(key);
+        if (dump == null)
+            return false;
+
+        long ttl = source.pttl(key);
+        try (Jedis jedis = redis.getResource(target)) {
+            jedis.restore(target, ttl > 0 ? (int) ttl : 0, dump);
+        } catch (JedisDataException e) {
+            String error = e.getMessage();
+            if (error == null || !error.startsWith("BUSYKEY")) {
+                // The source may be the only copy: keep it
+                Logger.error("RedisMigrationTask: %s -> %s %s", key, target, error);
+                return false;
+            }
+            // Already written in the new layout, that copy is newer
+            Logger.warning("RedisMigrationTask: %s -> %s %s", key, target, error);
+        }
+        source.del(key);
+        return true;
+    }
+}
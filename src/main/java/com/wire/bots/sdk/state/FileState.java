@@ -1,18 +1,26 @@
 package com.wire.bots.sdk.state;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.wire.bots.sdk.Configuration;
 import com.wire.bots.sdk.exceptions.MissingStateException;
 import com.wire.bots.sdk.server.model.NewBot;
 
+import javax.annotation.Nullable;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.UUID;
 
 public class FileState implements State {
 
-    private static final String STATE_FILENAME = "state.json";
+    private static final String STATE_FILENAME = "state.bin";
+    private static final String LEGACY_STATE_FILENAME = "state.json";
     private final String path;
     private final UUID botId;
 
@@ -25,47 +33,127 @@ public class FileState implements State {
 
     public FileState(UUID botId, Configuration.DB db) {
         this.botId = botId;
-
-        String path;
-        try {
-            URL root = new URL(db.url);
-            path = root.getPath();
-        } catch (Exception e) {
-            path = "data";
-        }
-
-        this.path = path;
+        this.path = path(db);
         File dir = new File(String.format("%s/%s", this.path, botId));
         dir.mkdirs();
     }
 
     @Override
     public boolean saveState(NewBot newBot) throws IOException {
-        File file = getStateFile();
-        ObjectMapper mapper = new ObjectMapper();
-        mapper.writeValue(file, newBot);
+        Files.write(getStateFile().toPath(), NewBotCodec.encode(newBot));
+        getFile(LEGACY_STATE_FILENAME).delete();
         return true;
     }
 
     @Override
     public NewBot getState() throws IOException {
         File file = getStateFile();
+        if (!file.exists())
+            file = getFile(LEGACY_STATE_FILENAME);
         if (!file.exists())
             throw new MissingStateException(botId);
 
-        ObjectMapper mapper = new ObjectMapper();
-        return mapper.readValue(file, NewBot.class);
+        return NewBotCodec.decode(Files.readAllBytes(file.toPath()));
     }
 
     @Override
     public boolean removeState() {
-        File file = getStateFile();
-        return file.delete();
+        boolean legacy = getFile(LEGACY_STATE_FILENAME).delete();
+        return getStateFile().delete() || legacy;
+    }
+
+    /**
+     * Pages over the bot directories that hold a state, in the order the directory lists them. The cursor is the last
+     * directory of the page. The directory stream stays open from one page to the next, so a page only reads its own
+     * entries. Any other cursor (a stored checkpoint) reopens the directory and skips the entries up to it
+     */
+    public static StateLister lister(Configuration.DB db) {
+        return new Lister(path(db));
+    }
+
+    private static class Lister implements StateLister {
+        private final String path;
+        private DirectoryStream<Path> stream;
+        private Iterator<Path> iterator;
+        private String last;
+
+        Lister(String path) {
+            this.path = path;
+        }
+
+        @Override
+        public synchronized Page list(@Nullable String cursor, int limit) throws IOException {
+            if (!new File(path).isDirectory())
+                return new Page(new ArrayList<>(), null);
+            if (cursor == null || !cursor.equals(last))
+                open(cursor);
+
+            List<UUID> botIds = new ArrayList<>();
+            while (botIds.size() < limit && iterator.hasNext()) {
+                String name = iterator.next().getFileName().toString();
+                last = name;
+                if (isUUID(name) && hasState(path, name))
+                    botIds.add(UUID.fromString(name));
+            }
+
+            if (!iterator.hasNext()) {
+                close();
+                return new Page(botIds, null);
+            }
+            return new Page(botIds, last);
+        }
+
+        private void open(@Nullable String cursor) throws IOException {
+            close();
+            stream = Files.newDirectoryStream(Paths.get(path));
+            iterator = stream.iterator();
+            if (cursor == null)
+                return;
+
+            while (iterator.hasNext()) {
+                if (iterator.next().getFileName().toString().equals(cursor)) {
+                    last = cursor;
+                    return;
+                }
+            }
+            close();
+            throw new IOException("Cursor not found, the bot directory was removed: " + cursor);
+        }
+
+        private void close() throws IOException {
+            if (stream != null)
+                stream.close();
+            stream = null;
+            iterator = null;
+            last = null;
+        }
+    }
+
+    private static boolean isUUID(String name) {
+        try {
+            UUID.fromString(name);
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static boolean hasState(String path, String name) {
+        return new File(String.format("%s/%s/%s", path, name, STATE_FILENAME)).exists()
+                || new File(String.format("%s/%s/%s", path, name, LEGACY_STATE_FILENAME)).exists();
+    }
+
+    private static String path(Configuration.DB db) {
+        try {
+            URL root = new URL(db.url);
+            return root.getPath();
+        } catch (Exception e) {
+            return "data";
+        }
     }
 
     public boolean hasState() {
-        File stateFile = getStateFile();
-        return stateFile.exists();
+        return getStateFile().exists() || getFile(LEGACY_STATE_FILENAME).exists();
     }
 
     public boolean hasFile(String filename) {
@@ -1,15 +1,13 @@
 package com.wire.bots.sdk.state;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.wire.bots.sdk.server.model.NewBot;
 import org.skife.jdbi.v2.DBI;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.UUID;
 
 public class JdbiState implements State {
-    private final static ObjectMapper mapper = new ObjectMapper();
-
     private final UUID botId;
     private final StatesDAO statesDAO;
 
@@ -20,20 +18,32 @@ public class JdbiState implements State {
 
     @Override
     public boolean saveState(NewBot newBot) throws IOException {
-        String str = mapper.writeValueAsString(newBot);
-        return 1 == statesDAO.insert(botId, str);
+        return 1 == statesDAO.insert(botId, NewBotCodec.encode(newBot));
     }
 
     @Override
     public NewBot getState() throws IOException {
-        String str = statesDAO.get(botId);
-        if (str == null)
+        byte[] data = statesDAO.get(botId);
+        if (data == null)
             throw new IOException("Missing State");
-        return mapper.readValue(str, NewBot.class);
+        return NewBotCodec.decode(data);
     }
 
     @Override
     public boolean removeState() {
         return 1 == statesDAO.delete(botId);
     }
+
+    /**
+     * Pages in botId order. The cursor is the last botId of the page
+     */
+    public static StateLister lister(DBI jdbi) {
+        StatesDAO statesDAO = jdbi.onDemand(StatesDAO.class);
+        return (cursor, limit) -> {
+            UUID after = cursor != null ? UUID.fromString(cursor) : new UUID(0, 0);
+            List<UUID> botIds = statesDAO.list(after, limit);
+            String next = botIds.size() < limit ? null : botIds.get(botIds.size() - 1).toString();
+            return new StateLister.Page(botIds, next);
+        };
+    }
 }
@@ -0,0 +1,195 @@
+package com.wire.bots.sdk.state;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.wire.bots.sdk.server.model.Asset;
+import com.wire.bots.sdk.server.model.Conversation;
+import com.wire.bots.sdk.server.model.Member;
+import com.wire.bots.sdk.server.model.NewBot;
+import com.wire.bots.sdk.server.model.Service;
+import com.wire.bots.sdk.server.model.User;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Binary encoding of the bot state: one version byte followed by the BotState.NewBot protobuf (proto/state.proto).
+ * Decoding also accepts the JSON written by older versions, so stored states do not need to be migrated.
+ */
+public final class NewBotCodec {
+    static final byte V1 = 1;
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private NewBotCodec() {
+    }
+
+    public static byte[] encode(NewBot bot) {
+        byte[] proto = toProto(bot).toByteArray();
+        byte[] ret = new byte[proto.length + 1];
+        ret[0] = V1;
+        System.arraycopy(proto, 0, ret, 1, proto.length);
+        return ret;
+    }
+
+    /**
+     * @param data Binary state or legacy JSON
+     */
+    public static NewBot decode(byte[] data) throws IOException {
+        if (data.length == 0)
+            throw new IOException("Empty State");
+
+        switch (data[0]) {
+            case V1:
+                return fromProto(BotState.NewBot.parseFrom(Arrays.copyOfRange(data, 1, data.length)));
+            case '{':
+                return mapper.readValue(data, NewBot.class);
+            default:
+                throw new IOException("Unknown State version: " + data[0]);
+        }
+    }
+
+    private static BotState.NewBot toProto(NewBot bot) {
+        BotState.NewBot.Builder builder = BotState.NewBot.newBuilder();
+        if (bot.id != null)
+            builder.setId(uuid(bot.id));
+        if (bot.client != null)
+            builder.setClient(bot.client);
+        if (bot.token != null)
+            builder.setToken(bot.token);
+        if (bot.locale != null)
+            builder.setLocale(bot.locale);
+        if (bot.origin != null)
+            builder.setOrigin(user(bot.origin));
+        if (bot.conversation != null)
+            builder.setConversation(conversation(bot.conversation));
+        return builder.build();
+    }
+
+    private static NewBot fromProto(BotState.NewBot proto) {
+        NewBot bot = new NewBot();
+        bot.id = proto.hasId() ? uuid(proto.getId()) : null;
+        bot.client = proto.hasClient() ? proto.getClient() : null;
+        bot.token = proto.hasToken() ? proto.getToken() : null;
+        bot.locale = proto.hasLocale() ? proto.getLocale() : null;
+        bot.origin = proto.hasOrigin() ? user(proto.getOrigin()) : null;
+        bot.conversation = proto.hasConversation() ? conversation(proto.getConversation()) : null;
+        return bot;
+    }
+
+    private static BotState.User user(User user) {
+        BotState.User.Builder builder = BotState.User.newBuilder()
+                .setAccent(user.accent);
+        if (user.id != null)
+            builder.setId(uuid(user.id));
+        if (user.name != null)
+            builder.setName(user.name);
+        if (user.handle != null)
+            builder.setHandle(user.handle);
+        if (user.service != null)
+            builder.setService(service(user.service));
+        if (user.assets != null) {
+            for (Asset asset : user.assets) {
+                BotState.Asset.Builder a = BotState.Asset.newBuilder();
+                if (asset.type != null)
+                    a.setType(asset.type);
+                if (asset.key != null)
+                    a.setKey(asset.key);
+                if (asset.size != null)
+                    a.setSize(asset.size);
+                builder.addAssets(a);
+            }
+        }
+        return builder.build();
+    }
+
+    private static User user(BotState.User proto) {
+        User user = new User();
+        user.id = proto.hasId() ? uuid(proto.getId()) : null;
+        user.name = proto.hasName() ? proto.getName() : null;
+        user.accent = proto.getAccent();
+        user.handle = proto.hasHandle() ? proto.getHandle() : null;
+        user.service = proto.hasService() ? service(proto.getService()) : null;
+        if (proto.getAssetsCount() > 0) {
+            user.assets = new ArrayList<>(proto.getAssetsCount());
+            for (BotState.Asset a : proto.getAssetsList()) {
+                Asset asset = new Asset();
+                asset.type = a.hasType() ? a.getType() : null;
+                asset.key = a.hasKey() ? a.getKey() : null;
+                asset.size = a.hasSize() ? a.getSize() : null;
+                user.assets.add(asset);
+            }
+        }
+        return user;
+    }
+
+    private static BotState.Conversation conversation(Conversation conv) {
+        BotState.Conversation.Builder builder = BotState.Conversation.newBuilder();
+        if (conv.id != null)
+            builder.setId(uuid(conv.id));
+        if (conv.name != null)
+            builder.setName(conv.name);
+        if (conv.creator != null)
+            builder.setCreator(uuid(conv.creator));
+        if (conv.members != null) {
+            for (Member member : conv.members) {
+                BotState.Member.Builder m = BotState.Member.newBuilder();
+                if (member.id != null)
+                    m.setId(uuid(member.id));
+                if (member.status != null)
+                    m.setStatus(member.status);
+                if (member.service != null)
+                    m.setService(service(member.service));
+                builder.addMembers(m);
+            }
+        }
+        return builder.build();
+    }
+
+    private static Conversation conversation(BotState.Conversation proto) {
+        Conversation conv = new Conversation();
+        conv.id = proto.hasId() ? uuid(proto.getId()) : null;
+        conv.name = proto.hasName() ? proto.getName() : null;
+        conv.creator = proto.hasCreator() ? uuid(proto.getCreator()) : null;
+        if (proto.getMembersCount() > 0) {
+            List<Member> members = new ArrayList<>(proto.getMembersCount());
+            for (BotState.Member m : proto.getMembersList()) {
+                Member member = new Member();
+                member.id = m.hasId() ? uuid(m.getId()) : null;
+                member.status = m.hasStatus() ? m.getStatus() : null;
+                member.service = m.hasService() ? service(m.getService()) : null;
+                members.add(member);
+            }
+            conv.members = members;
+        }
+        return conv;
+    }
+
+    private static BotState.Service service(Service service) {
+        BotState.Service.Builder builder = BotState.Service.newBuilder();
+        if (service.id != null)
+            builder.setId(uuid(service.id));
+        if (service.providerId != null)
+            builder.setProvider(uuid(service.providerId));
+        return builder.build();
+    }
+
+    private static Service service(BotState.Service proto) {
+        Service service = new Service();
+        service.id = proto.hasId() ? uuid(proto.getId()) : null;
+        service.providerId = proto.hasProvider() ? uuid(proto.getProvider()) : null;
+        return service;
+    }
+
+    private static BotState.Uuid uuid(UUID uuid) {
+        return BotState.Uuid.newBuilder()
+                .setMost(uuid.getMostSignificantBits())
+                .setLeast(uuid.getLeastSignificantBits())
+                .build();
+    }
+
+    private static UUID uuid(BotState.Uuid proto) {
+        return new UUID(proto.getMost(), proto.getLeast());
+    }
+}
@@ -0,0 +1,81 @@
+package com.wire.bots.sdk.state;
+
+import com.wire.bots.sdk.tools.Logger;
+import io.dropwizard.lifecycle.Managed;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * LISTENs on the states channel (see the notify_states trigger) and reports every bot whose state was changed, by
+ * this or any other replica. Notifications sent while the connection is down are lost; the cache TTL covers those.
+ */
+public class PostgresStateListener implements Managed {
+    private static final String CHANNEL = "states";
+    private static final int POLL_MS = 1000;
+
+    private final DBI jdbi;
+    private final Consumer<UUID> onChange;
+    private volatile boolean running;
+    private Thread thread;
+
+    public PostgresStateListener(DBI jdbi, Consumer<UUID> onChange) {
+        this.jdbi = jdbi;
+        this.onChange = onChange;
+    }
+
+    @Override
+    public void start() {
+        running = true;
+        thread = new Thread(this::run, "states-listener");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void stop() throws InterruptedException {
+        running = false;
+        if (thread != null)
+            thread.join(2 * POLL_MS);
+    }
+
+    private void run() {
+        while (running) {
+            try (Handle handle = jdbi.open()) {
+                handle.execute("LISTEN " + CHANNEL);
+                PGConnection connection = handle.getConnection().unwrap(PGConnection.class);
+                while (running) {
+                    PGNotification[] notifications = connection.getNotifications(POLL_MS);
+                    if (notifications == null)
+                        continue;
+                    for (PGNotification notification : notifications)
+                        notify(notification.getParameter());
+                }
+            } catch (Exception e) {
+                Logger.warning("PostgresStateListener: %s", e);
+                sleep();
+            }
+        }
+    }
+
+    private void notify(String botId) {
+        try {
+            onChange.accept(UUID.fromString(botId));
+        } catch (Exception e) {
+            Logger.warning("PostgresStateListener: %s %s", botId, e);
+        }
+    }
+
+    private void sleep() {
+        try {
+            Thread.sleep(POLL_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            running = false;
+        }
+    }
+}
@@ -1,86 +1,106 @@
 package com.wire.bots.sdk.state;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.wire.bots.sdk.Configuration;
 import com.wire.bots.sdk.exceptions.MissingStateException;
+import com.wire.bots.sdk.redis.LegacyKeys;
+import com.wire.bots.sdk.redis.RedisKeys;
+import com.wire.bots.sdk.redis.RedisPool;
 import com.wire.bots.sdk.server.model.NewBot;
 import redis.clients.jedis.Jedis;
-import redis.clients.jedis.JedisPool;
-import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.util.Pool;
 
 import java.io.IOException;
-import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
+import java.util.function.Function;
 
 public class RedisState implements State {
-    private final static ObjectMapper mapper = new ObjectMapper();
-    private static final int TIMEOUT = 5000;
-    private static JedisPool pool;
-
     private final UUID botId;
-    private final Configuration.DB conf;
+    private final RedisPool pool;
+    private final LegacyKeys legacy;
 
     public RedisState(UUID botId, Configuration.DB conf) {
-        this.botId = botId;
-        this.conf = conf;
+        this(botId, RedisPool.get(conf), conf);
     }
 
-    private static JedisPoolConfig buildPoolConfig() {
-        final JedisPoolConfig poolConfig = new JedisPoolConfig();
-        poolConfig.setMaxTotal(1100);
-        poolConfig.setMaxIdle(16);
-        poolConfig.setMinIdle(16);
-        poolConfig.setTestOnBorrow(true);
-        poolConfig.setTestOnReturn(true);
-        poolConfig.setTestWhileIdle(true);
-        poolConfig.setMinEvictableIdleTimeMillis(Duration.ofSeconds(60).toMillis());
-        poolConfig.setTimeBetweenEvictionRunsMillis(Duration.ofSeconds(30).toMillis());
-        poolConfig.setNumTestsPerEvictionRun(3);
-        poolConfig.setBlockWhenExhausted(true);
-        return poolConfig;
-    }
-
-    private static JedisPool pool(Configuration.DB conf) {
-        if (pool == null) {
-            JedisPoolConfig poolConfig = buildPoolConfig();
-            if (conf.password != null && conf.port != null)
-                pool = new JedisPool(poolConfig, conf.host, conf.port, TIMEOUT, conf.password);
-            else if (conf.port != null)
-                pool = new JedisPool(poolConfig, conf.host, conf.port, TIMEOUT);
-            else
-                pool = new JedisPool(poolConfig, conf.host);
-        }
-        return pool;
+    public RedisState(UUID botId, RedisPool pool, Configuration.DB conf) {
+        this.botId = botId;
+        this.pool = pool;
+        this.legacy = new LegacyKeys(conf, pool);
     }
 
     @Override
     public boolean saveState(NewBot newBot) throws IOException {
-        try (Jedis jedis = getConnection()) {
-            String value = mapper.writeValueAsString(newBot);
-            jedis.set(botId.toString(), value);
+        byte[] data = NewBotCodec.encode(newBot);
+        return call(jedis -> {
+            jedis.set(RedisKeys.state(botId).getBytes(), data);
             return true;
-        }
+        });
     }
 
     @Override
     public NewBot getState() throws IOException {
-        try (Jedis jedis = getConnection()) {
-            String json = jedis.get(botId.toString());
-            if (json == null)
-                throw new MissingStateException(botId);
-            return mapper.readValue(json, NewBot.class);
-        }
+        byte[] data = call(jedis -> {
+            String key = RedisKeys.state(botId);
+            byte[] ret = jedis.get(key.getBytes());
+            if (ret == null && legacy.migrate(jedis, key, RedisKeys.legacyState(botId)))
+                ret = jedis.get(key.getBytes());
+            return ret;
+        });
+        if (data == null)
+            throw new MissingStateException(botId);
+        return NewBotCodec.decode(data);
     }
 
     @Override
     public boolean removeState() {
-        try (Jedis jedis = getConnection()) {
-            jedis.del(botId.toString());
+        return call(jedis -> {
+            jedis.del(RedisKeys.state(botId));
+            legacy.delete(jedis, RedisKeys.legacyState(botId));
             return true;
-        }
+        });
+    }
+
+    /**
+     * SCANs the master nodes one after the other. The cursor is the node index and its SCAN cursor. SCAN may return
+     * a bot twice if the keyspace was resized while listing
+     */
+    public static StateLister lister(Configuration.DB conf) {
+        RedisPool pool = RedisPool.get(conf);
+        return (cursor, limit) -> {
+            List<Pool<Jedis>> masters = pool.masters();
+            int node = 0;
+            String scan = ScanParams.SCAN_POINTER_START;
+            if (cursor != null) {
+                int i = cursor.indexOf(':');
+                node = Integer.parseInt(cursor.substring(0, i));
+                scan = cursor.substring(i + 1);
+            }
+
+            ScanParams params = new ScanParams()
+                    .match("bot_{*}")
+                    .count(limit);
+            List<UUID> botIds = new ArrayList<>();
+            while (botIds.isEmpty() && node < masters.size()) {
+                try (Jedis jedis = masters.get(node).getResource()) {
+                    ScanResult<String> result = jedis.scan(scan, params);
+                    for (String key : result.getResult())
+                        botIds.add(UUID.fromString(key.substring(key.indexOf('{') + 1, key.lastIndexOf('}'))));
+                    scan = result.getStringCursor();
+                }
+                if (scan.equals(ScanParams.SCAN_POINTER_START))
+                    node++;
+            }
+
+            String next = node < masters.size() ? node + ":" + scan : null;
+            return new StateLister.Page(botIds, next);
+        };
     }
 
-    private Jedis getConnection() {
-        return pool(conf).getResource();
+    private <T> T call(Function<Jedis, T> command) {
+        return pool.call(RedisKeys.tag(botId.toString()), command);
     }
 }
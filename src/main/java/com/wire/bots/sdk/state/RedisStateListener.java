@@ -0,0 +1,110 @@
+package com.wire.bots.sdk.state;
+
+import com.wire.bots.sdk.redis.RedisPool;
+import com.wire.bots.sdk.tools.Logger;
+import io.dropwizard.lifecycle.Managed;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.util.Pool;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * Subscribes to the keyspace notifications of the state keys (bot_{botId}) on every master and reports every bot
+ * whose state was changed, by this or any other replica. Turns keyspace notifications on if the server allows it.
+ * Notifications sent while disconnected are lost; the cache TTL covers those.
+ */
+public class RedisStateListener implements Managed {
+    private static final String PATTERN = "__keyspace@*__:bot_{*}";
+    private static final String EVENTS = "Kg$";
+
+    private final RedisPool redis;
+    private final Consumer<UUID> onChange;
+    private final List<Subscriber> subscribers = new ArrayList<>();
+    private volatile boolean running;
+
+    public RedisStateListener(RedisPool redis, Consumer<UUID> onChange) {
+        this.redis = redis;
+        this.onChange = onChange;
+    }
+
+    @Override
+    public void start() {
+        running = true;
+        for (Pool<Jedis> master : redis.masters()) {
+            enableNotifications(master);
+
+            Subscriber subscriber = new Subscriber(master);
+            subscribers.add(subscriber);
+            Thread thread = new Thread(subscriber, "states-listener");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        for (Subscriber subscriber : subscribers) {
+            if (subscriber.isSubscribed())
+                subscriber.punsubscribe();
+        }
+    }
+
+    private static void enableNotifications(Pool<Jedis> master) {
+        try (Jedis jedis = master.getResource()) {
+            List<String> config = jedis.configGet("notify-keyspace-events");
+            String events = config.size() > 1 ? config.get(1) : "";
+            StringBuilder sb = new StringBuilder(events);
+            for (char c : EVENTS.toCharArray()) {
+                if (events.indexOf(c) < 0 && !(c != 'K' && events.indexOf('A') >= 0))
+                    sb.append(c);
+            }
+            if (!sb.toString().equals(events))
+                jedis.configSet("notify-keyspace-events", sb.toString());
+        } catch (Exception e) {
+            Logger.warning("RedisStateListener: could not enable keyspace notifications: %s", e);
+        }
+    }
+
+    private class Subscriber extends JedisPubSub implements Runnable {
+        private final Pool<Jedis> master;
+
+        Subscriber(Pool<Jedis> master) {
+            this.master = master;
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try (Jedis jedis = master.getResource()) {
+                    jedis.psubscribe(this, PATTERN);
+                } catch (Exception e) {
+                    Logger.warning("RedisStateListener: %s", e);
+                    try {
+                        Thread.sleep(1000);
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void onPMessage(String pattern, String channel, String message) {
+            int start = channel.indexOf('{');
+            int end = channel.indexOf('}', start);
+            if (start < 0 || end < 0)
+                return;
+
+            try {
+                onChange.accept(UUID.fromString(channel.substring(start + 1, end)));
+            } catch (Exception e) {
+                Logger.warning("RedisStateListener: %s %s", channel, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.wire.bots.sdk.state;
+
+import com.wire.bots.sdk.exceptions.MissingStateException;
+import com.wire.bots.sdk.mmap.SegmentStore;
+import com.wire.bots.sdk.server.model.NewBot;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Bot state in the memory-mapped SegmentStore (db.driver: mmap)
+ */
+public class SegmentState implements State {
+    private static final String PREFIX = "st/";
+
+    private final UUID botId;
+    private final SegmentStore store;
+
+    public SegmentState(UUID botId, SegmentStore store) {
+        this.botId = botId;
+        this.store = store;
+    }
+
+    @Override
+    public boolean saveState(NewBot newBot) throws IOException {
+        store.put(key(), NewBotCodec.encode(newBot));
+        return true;
+    }
+
+    @Override
+    public NewBot getState() throws IOException {
+        byte[] data = store.get(key());
+        if (data == null)
+            throw new MissingStateException(botId);
+        return NewBotCodec.decode(data);
+    }
+
+    @Override
+    public boolean removeState() throws IOException {
+        boolean exists = store.get(key()) != null;
+        store.delete(key());
+        return exists;
+    }
+
+    /**
+     * Pages in key order. The cursor is the key of the last bot of the page
+     */
+    public static StateLister lister(SegmentStore store) {
+        return (cursor, limit) -> {
+            List<String> keys = store.keys(PREFIX, cursor, limit);
+            List<UUID> botIds = new ArrayList<>(keys.size());
+            for (String key : keys)
+                botIds.add(UUID.fromString(key.substring(PREFIX.length())));
+            String next = keys.size() < limit ? null : keys.get(keys.size() - 1);
+            return new StateLister.Page(botIds, next);
+        };
+    }
+
+    private String key() {
+        return PREFIX + botId;
+    }
+}
@@ -0,0 +1,32 @@
+package com.wire.bots.sdk.state;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Lists the bots in the state storage page by page. The cursor of a page can be stored and passed back later to
+ * resume right after that page
+ */
+public interface StateLister {
+    /**
+     * @param cursor NULL for the first page, otherwise Page.next of the previous page
+     * @param limit  Max number of bots in the page. Redis treats it as a hint
+     */
+    Page list(@Nullable String cursor, int limit) throws IOException;
+
+    class Page {
+        public final List<UUID> botIds;
+        /**
+         * NULL after the last page
+         */
+        @Nullable
+        public final String next;
+
+        public Page(List<UUID> botIds, @Nullable String next) {
+            this.botIds = botIds;
+            this.next = next;
+        }
+    }
+}
@@ -1,19 +1,53 @@
 package com.wire.bots.sdk.state;
 
+import org.skife.jdbi.v2.StatementContext;
 import org.skife.jdbi.v2.sqlobject.Bind;
 import org.skife.jdbi.v2.sqlobject.SqlQuery;
 import org.skife.jdbi.v2.sqlobject.SqlUpdate;
+import org.skife.jdbi.v2.sqlobject.customizers.RegisterMapper;
+import org.skife.jdbi.v2.tweak.ResultSetMapper;
 
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
 import java.util.UUID;
 
 public interface StatesDAO {
-    @SqlUpdate("INSERT INTO States (botId, bot) VALUES (:botId, to_json(:bot::json)) ON CONFLICT (botId) DO UPDATE SET bot = EXCLUDED.bot")
+    @SqlUpdate("INSERT INTO States (botId, data) VALUES (:botId, :data) ON CONFLICT (botId) DO UPDATE SET data = EXCLUDED.data, bot = NULL")
     int insert(@Bind("botId") UUID botId,
-               @Bind("bot") String bot);
+               @Bind("data") byte[] data);
 
-    @SqlQuery("SELECT bot FROM States WHERE botId = :botId")
-    String get(@Bind("botId") UUID botId);
+    /**
+     * @return Binary state, or the legacy JSON as UTF-8 bytes for rows written by older versions
+     */
+    @SqlQuery("SELECT bot, data FROM States WHERE botId = :botId")
+    @RegisterMapper(_Mapper.class)
+    byte[] get(@Bind("botId") UUID botId);
 
     @SqlUpdate("DELETE FROM States WHERE botId = :botId")
     int delete(@Bind("botId") UUID botId);
+
+    @SqlQuery("SELECT botId FROM States WHERE botId > :after ORDER BY botId LIMIT :limit")
+    @RegisterMapper(_IdMapper.class)
+    List<UUID> list(@Bind("after") UUID after,
+                    @Bind("limit") int limit);
+
+    class _Mapper implements ResultSetMapper<byte[]> {
+        @Override
+        public byte[] map(int i, ResultSet rs, StatementContext statementContext) throws SQLException {
+            byte[] data = rs.getBytes("data");
+            if (data != null)
+                return data;
+            String json = rs.getString("bot");
+            return json != null ? json.getBytes(StandardCharsets.UTF_8) : null;
+        }
+    }
+
+    class _IdMapper implements ResultSetMapper<UUID> {
+        @Override
+        public UUID map(int i, ResultSet rs, StatementContext statementContext) throws SQLException {
+            return (UUID) rs.getObject("botId");
+        }
+    }
 }
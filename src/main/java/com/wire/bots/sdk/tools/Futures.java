@@ -0,0 +1,49 @@
+package com.wire.bots.sdk.tools;
+
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.Invocation;
+import javax.ws.rs.client.InvocationCallback;
+import javax.ws.rs.core.Response;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+public final class Futures {
+    private Futures() {
+    }
+
+    /**
+     * Posts with Jersey's async invoker. The future completes on the client's async thread once the response is in
+     */
+    public static CompletableFuture<Response> post(Invocation.Builder req, Entity<?> entity) {
+        CompletableFuture<Response> ret = new CompletableFuture<>();
+        req.async().post(entity, new InvocationCallback<Response>() {
+            @Override
+            public void completed(Response response) {
+                ret.complete(response);
+            }
+
+            @Override
+            public void failed(Throwable throwable) {
+                ret.completeExceptionally(throwable);
+            }
+        });
+        return ret;
+    }
+
+    public static <T> CompletableFuture<T> failed(Throwable throwable) {
+        CompletableFuture<T> ret = new CompletableFuture<>();
+        ret.completeExceptionally(throwable);
+        return ret;
+    }
+
+    /**
+     * @return The exception that failed the stage, without the CompletionException wrapper
+     */
+    public static Throwable unwrap(Throwable throwable) {
+        while ((throwable instanceof CompletionException || throwable instanceof ExecutionException)
+                && throwable.getCause() != null)
+            throwable = throwable.getCause();
+        return throwable;
+    }
+}
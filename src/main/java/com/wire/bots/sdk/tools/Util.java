@@ -57,17 +57,14 @@ public class Util {
     }
 
     public static byte[] decrypt(byte[] key, byte[] encrypted) throws Exception {
-        ByteArrayInputStream is = new ByteArrayInputStream(encrypted);
-        byte[] iv = new byte[16];
-        is.read(iv);
-        byte[] bytes = toByteArray(is);
-        IvParameterSpec vec = new IvParameterSpec(iv);
+        // The first 16 bytes are the iv. Decrypt the rest in place instead of copying it out first
+        IvParameterSpec vec = new IvParameterSpec(encrypted, 0, 16);
         SecretKeySpec skeySpec = new SecretKeySpec(key, "AES");
 
         Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5PADDING");
         cipher.init(Cipher.DECRYPT_MODE, skeySpec, vec);
 
-        return cipher.doFinal(bytes);
+        return cipher.doFinal(encrypted, 16, encrypted.length - 16);
     }
 
     public static SecretKey genKey(char[] password, byte[] salt)
@@ -132,6 +129,21 @@ public class Util {
         }
     }
 
+    /**
+     * Skips exactly n bytes, or throws if the stream ends before
+     */
+    public static void skip(InputStream input, long n) throws IOException {
+        while (n > 0) {
+            long skipped = input.skip(n);
+            if (skipped <= 0) {
+                if (input.read() == -1)
+                    throw new EOFException("Stream ended before offset");
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+    }
+
     public static boolean compareAuthorizations(String auth1, String auth2) {
         if (auth1 == null || auth2 == null)
             return false;
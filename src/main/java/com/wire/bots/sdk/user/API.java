@@ -21,8 +21,11 @@ package com.wire.bots.sdk.user;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.wire.bots.sdk.AsyncBackend;
 import com.wire.bots.sdk.Backend;
 import com.wire.bots.sdk.assets.IAsset;
+import com.wire.bots.sdk.assets.IStreamingAsset;
+import com.wire.bots.sdk.assets.MultipartStream;
 import com.wire.bots.sdk.exceptions.HttpException;
 import com.wire.bots.sdk.models.AssetKey;
 import com.wire.bots.sdk.models.otr.*;
@@ -30,9 +33,12 @@ import com.wire.bots.sdk.server.model.Conversation;
 import com.wire.bots.sdk.server.model.Member;
 import com.wire.bots.sdk.server.model.Service;
 import com.wire.bots.sdk.server.model.User;
+import com.wire.bots.sdk.tools.Futures;
 import com.wire.bots.sdk.tools.Logger;
 import com.wire.bots.sdk.tools.Util;
 import com.wire.bots.sdk.user.model.Connection;
+import org.glassfish.jersey.client.ClientProperties;
+import org.glassfish.jersey.client.RequestEntityProcessing;
 import org.glassfish.jersey.logging.LoggingFeature;
 
 import javax.ws.rs.client.Client;
@@ -42,12 +48,16 @@ import javax.ws.rs.client.WebTarget;
 import javax.ws.rs.core.*;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 import java.util.logging.Level;
 import java.util.stream.Collectors;
 
-public class API extends LoginClient implements Backend {
+public class API extends LoginClient implements Backend, AsyncBackend {
     private final WebTarget conversationsPath;
     private final WebTarget usersPath;
     private final WebTarget assetsPath;
@@ -57,11 +67,20 @@ public class API extends LoginClient implements Backend {
 
     private final String token;
     private final String convId;
+    private final OtrTransport transport;
 
     public API(Client client, UUID convId, String token) {
+        this(client, convId, token, OtrTransport.JSON);
+    }
+
+    /**
+     * @param transport Wire format of the otr messages this client posts
+     */
+    public API(Client client, UUID convId, String token, OtrTransport transport) {
         super(client);
         this.convId = convId != null ? convId.toString() : null;
         this.token = token;
+        this.transport = transport;
 
         String host = host();
         WebTarget target = client
@@ -87,7 +106,7 @@ public class API extends LoginClient implements Backend {
                 queryParam("ignore_missing", ignoreMissing).
                 request(MediaType.APPLICATION_JSON).
                 header(HttpHeaders.AUTHORIZATION, bearer(token)).
-                post(Entity.entity(msg, MediaType.APPLICATION_JSON));
+                post(transport.entity(msg));
 
         int statusCode = response.getStatus();
         if (statusCode == 412) {
@@ -108,7 +127,7 @@ public class API extends LoginClient implements Backend {
                 queryParam("report_missing", userId).
                 request(MediaType.APPLICATION_JSON).
                 header(HttpHeaders.AUTHORIZATION, bearer(token)).
-                post(Entity.entity(msg, MediaType.APPLICATION_JSON));
+                post(transport.entity(msg));
 
         int statusCode = response.getStatus();
         if (statusCode == 412) {
@@ -121,6 +140,67 @@ public class API extends LoginClient implements Backend {
         return new Devices();
     }
 
+    @Override
+    public CompletionStage<Devices> sendMessageAsync(OtrMessage msg, Boolean ignoreMissing) {
+        WebTarget target = conversationsPath.
+                path(convId).
+                path("otr/messages");
+        if (ignoreMissing != null)
+            target = target.queryParam("ignore_missing", ignoreMissing);
+        Invocation.Builder req = target.
+                request(MediaType.APPLICATION_JSON).
+                header(HttpHeaders.AUTHORIZATION, bearer(token));
+
+        return Futures.post(req, transport.entity(msg)).thenApply(API::devices);
+    }
+
+    @Override
+    public CompletionStage<Devices> sendPartialMessageAsync(OtrMessage msg, UUID userId) {
+        Invocation.Builder req = conversationsPath.
+                path(convId).
+                path("otr/messages").
+                queryParam("report_missing", userId).
+                request(MediaType.APPLICATION_JSON).
+                header(HttpHeaders.AUTHORIZATION, bearer(token));
+
+        return Futures.post(req, transport.entity(msg)).thenApply(API::devices);
+    }
+
+    @Override
+    public CompletionStage<PreKeys> getPreKeysAsync(Missing missing) {
+        if (missing.isEmpty())
+            return CompletableFuture.completedFuture(new PreKeys());
+
+        Invocation.Builder req = usersPath.path("prekeys").
+                request(MediaType.APPLICATION_JSON).
+                header(HttpHeaders.AUTHORIZATION, bearer(token)).
+                accept(MediaType.APPLICATION_JSON);
+
+        return Futures.post(req, Entity.entity(missing, MediaType.APPLICATION_JSON)).thenApply(response -> {
+            if (response.getStatus() >= 400) {
+                HttpException e = new HttpException(response.getStatusInfo().getReasonPhrase(), response.getStatus());
+                throw new CompletionException(e);
+            }
+            return response.readEntity(PreKeys.class);
+        });
+    }
+
+    // Same handling as sendMessage: 412 carries the missing devices
+    private static Devices devices(Response response) {
+        int statusCode = response.getStatus();
+        if (statusCode == 412) {
+            return response.readEntity(Devices.class);
+        }
+
+        if (statusCode >= 400) {
+            HttpException e = new HttpException(response.getStatusInfo().getReasonPhrase(), response.getStatus());
+            throw new CompletionException(e);
+        }
+
+        response.close();
+        return new Devices();
+    }
+
     @Override
     public PreKeys getPreKeys(Missing missing) {
         if (missing.isEmpty())
@@ -152,6 +232,41 @@ public class API extends LoginClient implements Backend {
         return response.readEntity(byte[].class);
     }
 
+    /**
+     * @param offset Number of bytes to skip. Requested with a Range header
+     * @return Stream of the encrypted asset starting at offset. Closing it releases the connection
+     */
+    public InputStream openAsset(String assetKey, String assetToken, long offset) throws HttpException, IOException {
+        Invocation.Builder req = assetsPath
+                .path(assetKey)
+                .queryParam("access_token", token)
+                .request();
+
+        if (assetToken != null)
+            req.header("Asset-Token", assetToken);
+        if (offset > 0)
+            req.header("Range", String.format("bytes=%d-", offset));
+
+        Response response = req.get();
+
+        if (response.getStatus() >= 400) {
+            String log = String.format("%s. AssetId: %s", response.readEntity(String.class), assetKey);
+            throw new HttpException(log, response.getStatus());
+        }
+
+        try {
+            InputStream input = response.readEntity(InputStream.class);
+            // The whole asset came back, the Range header was ignored
+            if (offset > 0 && response.getStatus() != Response.Status.PARTIAL_CONTENT.getStatusCode())
+                Util.skip(input, offset);
+            return input;
+        } catch (IOException | RuntimeException e) {
+            // Nobody gets the stream to close: release the connection here
+            response.close();
+            throw e;
+        }
+    }
+
     void acceptConnection(UUID user) throws HttpException {
         Connection connection = new Connection();
         connection.setStatus("accepted");
@@ -216,6 +331,27 @@ public class API extends LoginClient implements Backend {
         return mapper.readValue(entity, AssetKey.class);
     }
 
+    /**
+     * Streams the asset with chunked encoding, so neither the asset nor the request body is held in memory
+     */
+    public AssetKey uploadAsset(IStreamingAsset asset) throws Exception {
+        Response response = assetsPath
+                .request(MediaType.APPLICATION_JSON_TYPE)
+                .header(HttpHeaders.AUTHORIZATION, bearer(token))
+                .property(ClientProperties.REQUEST_ENTITY_PROCESSING, RequestEntityProcessing.CHUNKED)
+                .post(Entity.entity(new MultipartStream(asset), MultipartStream.MEDIA_TYPE));
+
+        String entity = response.readEntity(String.class);
+
+        if (response.getStatus() >= 300) {
+            throw new HttpException(entity, response.getStatus());
+        }
+
+        Logger.debug("uploadAsset: res: %s", entity);
+        ObjectMapper mapper = new ObjectMapper();
+        return mapper.readValue(entity, AssetKey.class);
+    }
+
     Conversation getConversation() throws IOException {
         Response response = conversationsPath.
                 path(convId).
@@ -1,14 +1,20 @@
 package com.wire.bots.sdk.user;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
 import com.wire.bots.cryptobox.CryptoException;
 import com.wire.bots.sdk.Configuration;
 import com.wire.bots.sdk.MessageHandlerBase;
+import com.wire.bots.sdk.SendOptions;
 import com.wire.bots.sdk.crypto.Crypto;
+import com.wire.bots.sdk.devices.DeviceCache;
 import com.wire.bots.sdk.exceptions.HttpException;
 import com.wire.bots.sdk.factories.CryptoFactory;
 import com.wire.bots.sdk.factories.StorageFactory;
 import com.wire.bots.sdk.models.otr.PreKey;
 import com.wire.bots.sdk.server.model.NewBot;
+import com.wire.bots.sdk.server.KeyedExecutor;
 import com.wire.bots.sdk.server.model.Payload;
 import com.wire.bots.sdk.state.State;
 import com.wire.bots.sdk.tools.Logger;
@@ -32,14 +38,22 @@ import java.net.URI;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 @ClientEndpoint(decoders = EventDecoder.class)
 public class UserApplication implements Managed {
     private static final int SIZE = 100;
+    /**
+     * Seconds between access token renewals
+     */
+    static final long RENEWAL_PERIOD = 900;
     private final ScheduledExecutorService renewal;
+    private final List<ScheduledFuture<?>> scheduled = new ArrayList<>();
 
     private StorageFactory storageFactory;
     private CryptoFactory cryptoFactory;
@@ -51,13 +65,43 @@ public class UserApplication implements Managed {
     private Session session;
     private LoginClient loginClient;
     private Cookie cookie;
+    private KeyedExecutor executor;
+    private DeviceCache deviceCache;
+    private SendOptions sendOptions = SendOptions.DEFAULT;
+    private Configuration.UserMode account;
+    private ClientManager container;
+    private long renewalDelay = RENEWAL_PERIOD;
+    private MetricRegistry metrics;
+    private Meter events;
+    private Meter rejected;
+    private volatile boolean stopped;
 
     public UserApplication(Environment env) {
         renewal = env.lifecycle().scheduledExecutorService("access renewal").build();
     }
 
+    /**
+     * @param renewal Scheduler for the token renewal and the pings. Can be shared by many accounts
+     */
+    public UserApplication(ScheduledExecutorService renewal) {
+        this.renewal = renewal;
+    }
+
     @Override
     public void stop() throws Exception {
+        stopped = true;
+        for (ScheduledFuture<?> future : scheduled)
+            future.cancel(false);
+        scheduled.clear();
+
+        // Not reconnected by onClose any more
+        try {
+            if (session != null)
+                session.close();
+        } catch (IOException e) {
+            Logger.warning("Websocket close: %s", e);
+        }
+
         Logger.info("Logging out...");
         NewBot state = storageFactory.create(userId).getState();
         loginClient.logout(cookie, state.token);
@@ -65,8 +109,9 @@ public class UserApplication implements Managed {
 
     @Override
     public void start() throws Exception {
-        String email = config.userMode.email;
-        String password = config.userMode.password;
+        Configuration.UserMode account = this.account != null ? this.account : config.userMode;
+        String email = account.email;
+        String password = account.password;
 
         loginClient = new LoginClient(client);
         Access access = loginClient.login(email, password);
@@ -84,18 +129,36 @@ public class UserApplication implements Managed {
 
         Logger.info("Logged in as: %s, userId: %s, clientId: %s", email, state.id, state.client);
 
+        Meter renewals = null;
+        Meter renewalErrors = null;
+        if (metrics != null) {
+            events = metrics.meter(MetricRegistry.name(UserApplication.class, userId.toString(), "events"));
+            rejected = metrics.meter(MetricRegistry.name(UserApplication.class, userId.toString(), "rejected"));
+            renewals = metrics.meter(MetricRegistry.name(UserApplication.class, userId.toString(), "renewals"));
+            renewalErrors = metrics.meter(MetricRegistry.name(UserApplication.class, userId.toString(), "renewal-errors"));
+            String connected = MetricRegistry.name(UserApplication.class, userId.toString(), "connected");
+            metrics.remove(connected);
+            metrics.register(connected, (Gauge<Boolean>) () -> session != null && session.isOpen());
+        }
+
         final String deviceId = state.client;
-        renewal.scheduleAtFixedRate(() -> {
+        final Meter renewed = renewals;
+        final Meter failed = renewalErrors;
+        scheduled.add(renewal.scheduleAtFixedRate(() -> {
             try {
                 Access newAccess = loginClient.renewAccessToken(cookie);
                 updateState(userId, deviceId, newAccess.getToken(), null);
                 Logger.info("Updated access token. Exp in: %d sec, cookie: %s", newAccess.expire, newAccess.getCookie() != null);
+                if (renewed != null)
+                    renewed.mark();
             } catch (Exception e) {
                 Logger.warning("Token renewal error: %s", e);
+                if (failed != null)
+                    failed.mark();
             }
-        }, 900, 900, TimeUnit.SECONDS);
+        }, renewalDelay, RENEWAL_PERIOD, TimeUnit.SECONDS));
 
-        renewal.scheduleAtFixedRate(() -> {
+        scheduled.add(renewal.scheduleAtFixedRate(() -> {
             try {
                 if (session != null) {
                     session.getBasicRemote().sendBinary(ByteBuffer.wrap("ping".getBytes(StandardCharsets.UTF_8)));
@@ -103,16 +166,18 @@ public class UserApplication implements Managed {
             } catch (Exception e) {
                 Logger.warning("Ping error: %s", e);
             }
-        }, 10, 10, TimeUnit.SECONDS);
+        }, 10, 10, TimeUnit.SECONDS));
 
         userMessageResource = new UserMessageResource(handler)
                 .addUserId(userId)
                 .addClient(client)
+                .addDeviceCache(deviceCache)
+                .addSendOptions(sendOptions)
                 .addCryptoFactory(cryptoFactory)
                 .addStorageFactory(storageFactory);
 
         // Pull from notification stream
-        if (config.userMode.sync) {
+        if (account.sync) {
             NotificationList notificationList = loginClient.retrieveNotifications(state.client, since(state), state.token, SIZE);
             while (!notificationList.notifications.isEmpty()) {
                 for (Event notification : notificationList.notifications) {
@@ -137,28 +202,31 @@ public class UserApplication implements Managed {
         if (event == null)
             return;
 
+        if (events != null)
+            events.mark();
+
         for (Payload payload : event.payload) {
             try {
                 switch (payload.type) {
                     case "team.member-join":
                     case "user.update":
-                        userMessageResource.onUpdate(event.id, payload);
+                        dispatch(payload, () -> userMessageResource.onUpdate(event.id, payload));
                         break;
                     case "user.connection":
-                        userMessageResource.onNewMessage(
+                        dispatch(payload, () -> userMessageResource.onNewMessage(
                                 event.id,
                                 /* payload.connection.from, */ //todo check this!!
                                 payload.connection.convId,
-                                payload);
+                                payload));
                         break;
                     case "conversation.otr-message-add":
                     case "conversation.member-join":
                     case "conversation.member-leave":
                     case "conversation.create":
-                        userMessageResource.onNewMessage(
+                        dispatch(payload, () -> userMessageResource.onNewMessage(
                                 event.id,
                                 payload.convId,
-                                payload);
+                                payload));
                         break;
                     default:
                         Logger.info("Unknown type: %s, from: %s", payload.type, payload.from);
@@ -170,6 +238,42 @@ public class UserApplication implements Managed {
         }
     }
 
+    /**
+     * Runs the task on the keyed executor if there is one. The payloads of one conversation are processed in the order
+     * they arrived, so are the ones without a conversation (user and team updates). Different conversations run in
+     * parallel. Payloads the executor rejects are dropped, logged and counted
+     */
+    private void dispatch(Payload payload, Task task) throws Exception {
+        if (executor == null) {
+            task.run();
+            return;
+        }
+
+        try {
+            executor.execute(key(payload), () -> {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    Logger.error("Endpoint:onMessage: %s %s", payload.type, e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Logger.warning("Endpoint:onMessage: executor is full, dropped %s conv: %s", payload.type, payload.convId);
+            if (rejected != null)
+                rejected.mark();
+        }
+    }
+
+    /**
+     * The executor can be shared by many accounts: the key is this account and the conversation
+     */
+    private String key(Payload payload) {
+        UUID convId = payload.convId;
+        if (convId == null && payload.connection != null)
+            convId = payload.connection.convId;
+        return String.format("%s:%s", userId, convId);
+    }
+
     @OnOpen
     public void onOpen(Session session, EndpointConfig config) throws IOException {
         Logger.debug("Session opened: %s", session.getId());
@@ -178,7 +282,8 @@ public class UserApplication implements Managed {
     @OnClose
     public void onClose(Session closed, CloseReason reason) throws IOException, DeploymentException {
         Logger.debug("Session closed: %s, %s", closed.getId(), reason);
-        session = connectSocket();
+        if (!stopped)
+            session = connectSocket();
     }
 
     private Session connectSocket() throws IOException, DeploymentException {
@@ -194,6 +299,14 @@ public class UserApplication implements Managed {
                 .getUri();
 
         // connect the Websocket
+        ClientManager container = this.container != null ? this.container : createContainer(config);
+        return container.connectToServer(this, wss);
+    }
+
+    /**
+     * @return Websocket container. One container can connect the sockets of many accounts
+     */
+    public static ClientManager createContainer(Configuration config) {
         ClientManager container = ClientManager.createClient();
         container.getProperties().put(ClientProperties.RECONNECT_HANDLER, new SocketReconnectHandler(5));
         container.setDefaultMaxSessionIdleTimeout(-1);
@@ -205,8 +318,7 @@ public class UserApplication implements Managed {
         }
         SSLEngineConfigurator sslEngineConfigurator = new SSLEngineConfigurator(ssl, true, false, false);
         container.getProperties().put(ClientProperties.SSL_ENGINE_CONFIGURATOR, sslEngineConfigurator);
-
-        return container.connectToServer(this, wss);
+        return container;
     }
 
     public String newDevice(UUID userId, String password, String token) throws CryptoException, HttpException {
@@ -271,4 +383,56 @@ public class UserApplication implements Managed {
         this.handler = handler;
         return this;
     }
+
+    public UserApplication addExecutor(KeyedExecutor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    public UserApplication addDeviceCache(DeviceCache deviceCache) {
+        this.deviceCache = deviceCache;
+        return this;
+    }
+
+    public UserApplication addSendOptions(SendOptions sendOptions) {
+        this.sendOptions = sendOptions;
+        return this;
+    }
+
+    /**
+     * @param account Credentials of this account. Defaults to userMode of the config
+     */
+    public UserApplication addAccount(Configuration.UserMode account) {
+        this.account = account;
+        return this;
+    }
+
+    public UserApplication addContainer(ClientManager container) {
+        this.container = container;
+        return this;
+    }
+
+    /**
+     * @param renewalDelay Seconds until the first token renewal
+     */
+    public UserApplication addRenewalDelay(long renewalDelay) {
+        this.renewalDelay = renewalDelay;
+        return this;
+    }
+
+    /**
+     * @param metrics Registry for the per account meters: events, rejected, renewals, renewal-errors and connected
+     */
+    public UserApplication addMetrics(MetricRegistry metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    public Configuration.UserMode getAccount() {
+        return account != null ? account : config.userMode;
+    }
+
+    private interface Task {
+        void run() throws Exception;
+    }
 }
@@ -18,10 +18,12 @@
 
 package com.wire.bots.sdk.user;
 
+import com.wire.bots.sdk.SendOptions;
 import com.wire.bots.sdk.WireClient;
 import com.wire.bots.sdk.WireClientBase;
 import com.wire.bots.sdk.assets.*;
 import com.wire.bots.sdk.crypto.Crypto;
+import com.wire.bots.sdk.devices.DeviceCache;
 import com.wire.bots.sdk.exceptions.HttpException;
 import com.wire.bots.sdk.models.AssetKey;
 import com.wire.bots.sdk.server.model.Conversation;
@@ -30,6 +32,8 @@ import com.wire.bots.sdk.tools.Util;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
 import java.security.MessageDigest;
 import java.util.*;
 
@@ -40,7 +44,16 @@ public class UserClient extends WireClientBase implements WireClient {
     private final UUID convId;
 
     public UserClient(UUID userId, String clientId, UUID convId, Crypto crypto, API api) {
-        super(api, crypto, null);
+        this(userId, clientId, convId, crypto, api, null);
+    }
+
+    public UserClient(UUID userId, String clientId, UUID convId, Crypto crypto, API api, DeviceCache deviceCache) {
+        this(userId, clientId, convId, crypto, api, deviceCache, SendOptions.DEFAULT);
+    }
+
+    public UserClient(UUID userId, String clientId, UUID convId, Crypto crypto, API api, DeviceCache deviceCache,
+                      SendOptions options) {
+        super(api, crypto, null, deviceCache, options);
         this.userId = userId;
         this.clientId = clientId;
         this.api = api;
@@ -122,6 +135,11 @@ public class UserClient extends WireClientBase implements WireClient {
         return api.uploadAsset(asset);
     }
 
+    @Override
+    public AssetKey uploadAsset(IStreamingAsset asset) throws Exception {
+        return api.uploadAsset(asset);
+    }
+
     @Override
     public UUID sendPicture(IGeneric image) throws Exception {
         postGenericMessage(image);
@@ -166,7 +184,7 @@ public class UserClient extends WireClientBase implements WireClient {
     public UUID sendFile(File f, String mime) throws Exception {
         UUID messageId = UUID.randomUUID();
         FileAssetPreview preview = new FileAssetPreview(f.getName(), mime, f.length(), messageId);
-        FileAsset asset = new FileAsset(f, mime, messageId);
+        StreamingFileAsset asset = new StreamingFileAsset(f, mime, messageId);
 
         postGenericMessage(preview);
 
@@ -231,6 +249,18 @@ public class UserClient extends WireClientBase implements WireClient {
         return Util.decrypt(otrKey, cipher);
     }
 
+    @Override
+    public void downloadAsset(String assetKey, String assetToken, byte[] sha256Challenge, byte[] otrKey,
+                              OutputStream out) throws Exception {
+        AssetDownloader.download(offset -> api.openAsset(assetKey, assetToken, offset), sha256Challenge, otrKey, out);
+    }
+
+    @Override
+    public void downloadAsset(String assetKey, String assetToken, byte[] sha256Challenge, byte[] otrKey, Path path)
+            throws Exception {
+        AssetDownloader.download(offset -> api.openAsset(assetKey, assetToken, offset), sha256Challenge, otrKey, path);
+    }
+
     @Override
     public User getSelf() throws HttpException {
         return api.getSelf();
@@ -2,8 +2,10 @@ package com.wire.bots.sdk.user;
 
 import com.wire.bots.cryptobox.CryptoException;
 import com.wire.bots.sdk.MessageHandlerBase;
+import com.wire.bots.sdk.SendOptions;
 import com.wire.bots.sdk.WireClient;
 import com.wire.bots.sdk.crypto.Crypto;
+import com.wire.bots.sdk.devices.DeviceCache;
 import com.wire.bots.sdk.factories.CryptoFactory;
 import com.wire.bots.sdk.factories.StorageFactory;
 import com.wire.bots.sdk.server.model.NewBot;
@@ -23,6 +25,8 @@ public class UserMessageResource extends MessageResourceBase {
     private Client client;
     private Crypto crypto;
     private State state;
+    private DeviceCache deviceCache;
+    private SendOptions sendOptions = SendOptions.DEFAULT;
 
     public UserMessageResource(MessageHandlerBase handler) {
         super(handler, null);
@@ -48,8 +52,8 @@ public class UserMessageResource extends MessageResourceBase {
         NewBot newBot = getStorage().getState();
         String token = newBot.token;
         String clientId = newBot.client;
-        API api = new API(client, null, token);
-        UserClient userClient = new UserClient(userId, clientId, null, crypto, api);
+        API api = new API(client, null, token, sendOptions.getOtrTransport());
+        UserClient userClient = new UserClient(userId, clientId, null, crypto, api, null, sendOptions);
 
         handleUpdate(id, payload, userClient);
     }
@@ -59,17 +63,17 @@ public class UserMessageResource extends MessageResourceBase {
         NewBot newBot = getStorage().getState();
         String token = newBot.token;
         String clientId = newBot.client;
-        API api = new API(client, convId, token);
-        return new UserClient(userId, clientId, convId, crypto, api);
+        API api = new API(client, convId, token, sendOptions.getOtrTransport());
+        return new UserClient(userId, clientId, convId, crypto, api, deviceCache, sendOptions);
     }
 
-    private State getStorage() throws IOException {
+    private synchronized State getStorage() throws IOException {
         if (state == null)
             state = storageFactory.create(userId);
         return state;
     }
 
-    private Crypto getCrypto() throws CryptoException {
+    private synchronized Crypto getCrypto() throws CryptoException {
         if (crypto == null)
             crypto = cryptoFactory.create(userId);
         return crypto;
@@ -94,4 +98,19 @@ public class UserMessageResource extends MessageResourceBase {
         this.client = client;
         return this;
     }
+
+    UserMessageResource addDeviceCache(DeviceCache deviceCache) {
+        this.deviceCache = deviceCache;
+        return this;
+    }
+
+    UserMessageResource addSendOptions(SendOptions sendOptions) {
+        this.sendOptions = sendOptions;
+        return this;
+    }
+
+    @Override
+    protected DeviceCache getDeviceCache() {
+        return deviceCache;
+    }
 }
@@ -0,0 +1,110 @@
+package com.wire.bots.sdk.user;
+
+import com.wire.bots.sdk.tools.Logger;
+import io.dropwizard.lifecycle.Managed;
+import org.glassfish.tyrus.client.ClientManager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hosts many User mode accounts in one process. The accounts share the http client, the websocket container, the
+ * inbound executor and the renewal scheduler; only the login, the socket and the state are per account.
+ * Token renewals are spread evenly over the renewal period so that they do not all hit the Backend at once.
+ * An account that fails to log in is logged and skipped, the others keep running.
+ * <p>
+ * The logins run on the starters in the background: start() returns right away, so a slow Backend does not hold up
+ * the startup of the server. stop() stops the accounts that logged in (and those that log in later), then the
+ * shared renewal scheduler and websocket container.
+ */
+public class UserModeManager implements Managed {
+    private final ExecutorService starters;
+    private final ScheduledExecutorService renewal;
+    private final ClientManager container;
+    private final List<UserApplication> accounts = new ArrayList<>();
+    private final List<UserApplication> started = new ArrayList<>();
+    private boolean stopped;
+
+    /**
+     * @param starters  Runs the logins and notification syncs, which are blocking calls
+     * @param renewal   Renewal scheduler of the accounts. Shut down on stop
+     * @param container Websocket container of the accounts. Shut down on stop
+     */
+    public UserModeManager(ExecutorService starters, ScheduledExecutorService renewal, ClientManager container) {
+        this.starters = starters;
+        this.renewal = renewal;
+        this.container = container;
+    }
+
+    public UserModeManager addAccount(UserApplication account) {
+        accounts.add(account);
+        return this;
+    }
+
+    @Override
+    public void start() {
+        int size = accounts.size();
+        for (int i = 0; i < size; i++)
+            accounts.get(i).addRenewalDelay(UserApplication.RENEWAL_PERIOD * (i + 1) / size);
+
+        AtomicInteger failed = new AtomicInteger();
+        List<CompletableFuture<Void>> logins = new ArrayList<>();
+        for (UserApplication account : accounts) {
+            logins.add(CompletableFuture.runAsync(() -> {
+                try {
+                    account.start();
+                    if (!add(account))
+                        stop(account);
+                } catch (Exception e) {
+                    failed.incrementAndGet();
+                    Logger.error("UserModeManager: %s failed to start: %s", account.getAccount().email, e);
+                }
+            }, starters));
+        }
+
+        CompletableFuture.allOf(logins.toArray(new CompletableFuture[0]))
+                .whenComplete((res, e) -> Logger.info("UserModeManager: started %d of %d accounts",
+                        size - failed.get(), size));
+    }
+
+    @Override
+    public void stop() throws Exception {
+        synchronized (started) {
+            stopped = true;
+            for (UserApplication account : started)
+                stop(account);
+            started.clear();
+        }
+
+        renewal.shutdownNow();
+        container.shutdown();
+    }
+
+    public int size() {
+        return accounts.size();
+    }
+
+    /**
+     * @return False if the manager was stopped meanwhile: the account must be stopped by the caller
+     */
+    private boolean add(UserApplication account) {
+        synchronized (started) {
+            if (stopped)
+                return false;
+            started.add(account);
+            return true;
+        }
+    }
+
+    private static void stop(UserApplication account) {
+        try {
+            account.stop();
+        } catch (Exception e) {
+            Logger.warning("UserModeManager: %s failed to stop: %s", account.getAccount().email, e);
+        }
+    }
+}
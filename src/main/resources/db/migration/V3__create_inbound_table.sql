@@ -0,0 +1,6 @@
+CREATE TABLE Inbound (
+    id         UUID NOT NULL PRIMARY KEY,
+    botId      UUID NOT NULL,
+    payload    JSON NOT NULL,
+    created    TIMESTAMP NOT NULL DEFAULT now()
+);
@@ -0,0 +1,2 @@
+ALTER TABLE States ADD COLUMN data BYTEA;
+ALTER TABLE States ALTER COLUMN bot DROP NOT NULL;
@@ -0,0 +1,14 @@
+CREATE OR REPLACE FUNCTION notify_states() RETURNS trigger AS $$
+BEGIN
+    IF TG_OP = 'DELETE' THEN
+        PERFORM pg_notify('states', OLD.botId::text);
+    ELSE
+        PERFORM pg_notify('states', NEW.botId::text);
+    END IF;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER states_notify
+    AFTER INSERT OR UPDATE OR DELETE ON States
+    FOR EACH ROW EXECUTE PROCEDURE notify_states();
@@ -0,0 +1,96 @@
+package com.wire.bots.sdk;
+
+import com.wire.bots.sdk.assets.AssetDownloader;
+import com.wire.bots.sdk.tools.Util;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AssetDownloaderTest {
+    @Test
+    public void testResume() throws Exception {
+        Random random = new Random();
+        byte[] data = new byte[250 * 1024 + 3];
+        random.nextBytes(data);
+        byte[] otrKey = new byte[32];
+        random.nextBytes(otrKey);
+        byte[] iv = new byte[16];
+        random.nextBytes(iv);
+
+        byte[] encrypted = Util.encrypt(otrKey, data, iv);
+        byte[] sha256 = MessageDigest.getInstance("SHA-256").digest(encrypted);
+
+        // Every connection breaks after 100KB
+        AssetDownloader.Source source = offset -> new InputStream() {
+            private int position = (int) offset;
+            private int read;
+
+            @Override
+            public int read() throws IOException {
+                if (position == encrypted.length)
+                    return -1;
+                if (read++ >= 100 * 1024)
+                    throw new IOException("Connection reset");
+                return encrypted[position++] & 0xFF;
+            }
+        };
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AssetDownloader.download(source, sha256, otrKey, out);
+        assert Arrays.equals(data, out.toByteArray());
+
+        try {
+            AssetDownloader.download(source, new byte[32], otrKey, new ByteArrayOutputStream());
+            assert false;
+        } catch (Exception e) {
+            assert e.getMessage().equals("Failed sha256 check");
+        }
+    }
+
+    @Test
+    public void testWriteFailure() throws Exception {
+        Random random = new Random();
+        byte[] data = new byte[250 * 1024];
+        random.nextBytes(data);
+        byte[] otrKey = new byte[32];
+        random.nextBytes(otrKey);
+        byte[] iv = new byte[16];
+        random.nextBytes(iv);
+
+        byte[] encrypted = Util.encrypt(otrKey, data, iv);
+        byte[] sha256 = MessageDigest.getInstance("SHA-256").digest(encrypted);
+
+        AtomicInteger opened = new AtomicInteger();
+        AssetDownloader.Source source = offset -> {
+            opened.incrementAndGet();
+            return new ByteArrayInputStream(encrypted, (int) offset, encrypted.length - (int) offset);
+        };
+
+        // The disk fills up after 100KB: this is not retried as a broken connection
+        OutputStream out = new OutputStream() {
+            private int written;
+
+            @Override
+            public void write(int b) throws IOException {
+                if (written++ >= 100 * 1024)
+                    throw new IOException("No space left on device");
+            }
+        };
+
+        try {
+            AssetDownloader.download(source, sha256, otrKey, out);
+            assert false;
+        } catch (IOException e) {
+            assert e.getMessage().equals("No space left on device");
+        }
+        assert opened.get() == 1;
+    }
+}
@@ -0,0 +1,41 @@
+package com.wire.bots.sdk;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+public class AsyncLimiterTest {
+    @Test
+    public void testLimit() {
+        AsyncWireClient.Limiter limiter = new AsyncWireClient.Limiter(2);
+        List<CompletableFuture<Integer>> tasks = new ArrayList<>();
+        List<CompletionStage<Integer>> results = new ArrayList<>();
+
+        for (int i = 0; i < 5; i++) {
+            CompletableFuture<Integer> task = new CompletableFuture<>();
+            tasks.add(task);
+            results.add(limiter.submit(() -> task, Runnable::run));
+        }
+        assert limiter.inFlight() == 2;
+        assert limiter.queued() == 3;
+
+        tasks.get(0).complete(0);
+        assert results.get(0).toCompletableFuture().join() == 0;
+        assert limiter.inFlight() == 2;
+        assert limiter.queued() == 2;
+
+        tasks.get(1).completeExceptionally(new IllegalStateException());
+        assert results.get(1).toCompletableFuture().isCompletedExceptionally();
+        assert limiter.queued() == 1;
+
+        for (int i = 2; i < 5; i++)
+            tasks.get(i).complete(i);
+        for (int i = 2; i < 5; i++)
+            assert results.get(i).toCompletableFuture().join() == i;
+        assert limiter.inFlight() == 0;
+        assert limiter.queued() == 0;
+    }
+}
@@ -0,0 +1,274 @@
+package com.wire.bots.sdk;
+
+import com.wire.bots.cryptobox.CryptoException;
+import com.wire.bots.sdk.assets.MessageText;
+import com.wire.bots.sdk.crypto.Crypto;
+import com.wire.bots.sdk.exceptions.HttpException;
+import com.wire.bots.sdk.models.otr.Devices;
+import com.wire.bots.sdk.models.otr.Missing;
+import com.wire.bots.sdk.models.otr.OtrMessage;
+import com.wire.bots.sdk.models.otr.PreKey;
+import com.wire.bots.sdk.models.otr.PreKeys;
+import com.wire.bots.sdk.models.otr.Recipients;
+import com.wire.bots.sdk.server.model.Conversation;
+import com.wire.bots.sdk.server.model.NewBot;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+public class AsyncSendTest {
+    @Test
+    public void testMissingDevices() throws Exception {
+        UUID userId = UUID.randomUUID();
+        ExecutorService http = Executors.newSingleThreadExecutor(r -> new Thread(r, "http"));
+        ExecutorService workers = Executors.newFixedThreadPool(2, r -> new Thread(r, "worker"));
+        try {
+            // The bot has a session with a but not with b
+            FakeBackend backend = new FakeBackend(http, userId, "a", "b");
+            FakeCrypto crypto = new FakeCrypto("a");
+            Client client = new Client(backend, crypto);
+
+            client.postGenericMessageAsync(new MessageText("Hello"), workers)
+                    .toCompletableFuture()
+                    .get(10, TimeUnit.SECONDS);
+
+            // 412 for b: its prekey is fetched, the message is encrypted for it and sent again
+            assert backend.preKeyCalls.size() == 1;
+            assert backend.preKeyCalls.get(0).get(userId).equals(Collections.singletonList("b"));
+            assert backend.delivered != null;
+            assert backend.delivered.get(userId, "a") != null;
+            assert backend.delivered.get(userId, "b") != null;
+
+            // Encryption waits for session locks: never on the http client's threads
+            assert !crypto.threads.isEmpty();
+            for (String thread : crypto.threads)
+                assert thread.equals("worker") : thread;
+        } finally {
+            http.shutdownNow();
+            workers.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testRejectedEncryption() throws Exception {
+        UUID userId = UUID.randomUUID();
+        ExecutorService http = Executors.newSingleThreadExecutor(r -> new Thread(r, "http"));
+        ExecutorService workers = Executors.newFixedThreadPool(2, r -> new Thread(r, "worker"));
+        try {
+            FakeBackend backend = new FakeBackend(http, userId, "a", "b");
+            Client client = new Client(backend, new FakeCrypto("a"));
+
+            // Runs the first send, then rejects the prekey encryption
+            AtomicInteger accepted = new AtomicInteger(1);
+            Executor rejecting = r -> {
+                if (accepted.getAndDecrement() <= 0)
+                    throw new RejectedExecutionException();
+                workers.execute(r);
+            };
+            try {
+                client.postGenericMessageAsync(new MessageText("Hello"), rejecting)
+                        .toCompletableFuture()
+                        .get(10, TimeUnit.SECONDS);
+                assert false;
+            } catch (ExecutionException e) {
+                assert e.getCause() instanceof RejectedExecutionException : e.getCause();
+            }
+
+            // b was released: the next send reuses its prekey instead of waiting for a dead flight
+            long start = System.currentTimeMillis();
+            client.postGenericMessageAsync(new MessageText("Again"), workers)
+                    .toCompletableFuture()
+                    .get(10, TimeUnit.SECONDS);
+            assert System.currentTimeMillis() - start < 5_000;
+            assert backend.preKeyCalls.size() == 1;
+            assert backend.delivered.get(userId, "b") != null;
+        } finally {
+            http.shutdownNow();
+            workers.shutdownNow();
+        }
+    }
+
+    private static class Client extends WireClientBase {
+        Client(FakeBackend backend, Crypto crypto) {
+            super(backend, crypto, state());
+        }
+
+        private static NewBot state() {
+            NewBot ret = new NewBot();
+            ret.id = UUID.randomUUID();
+            ret.client = "bot";
+            ret.conversation = new Conversation();
+            ret.conversation.id = UUID.randomUUID();
+            return ret;
+        }
+    }
+
+    /**
+     * Completes every call on its own thread, like the http client does
+     */
+    private static class FakeBackend implements Backend, AsyncBackend {
+        final List<Missing> preKeyCalls = Collections.synchronizedList(new ArrayList<>());
+        final ExecutorService http;
+        final UUID userId;
+        final List<String> clients;
+        volatile OtrMessage delivered;
+
+        FakeBackend(ExecutorService http, UUID userId, String... clients) {
+            this.http = http;
+            this.userId = userId;
+            this.clients = new ArrayList<>(Arrays.asList(clients));
+        }
+
+        @Override
+        public CompletionStage<Devices> sendMessageAsync(OtrMessage msg, Boolean ignoreMissing) {
+            return async(() -> {
+                Devices ret = new Devices();
+                for (String clientId : clients) {
+                    if (msg.get(userId, clientId) == null)
+                        ret.missing.add(userId, clientId);
+                }
+                if (ret.missing.isEmpty() || Boolean.TRUE.equals(ignoreMissing))
+                    delivered = msg;
+                return ret;
+            });
+        }
+
+        @Override
+        public CompletionStage<Devices> sendPartialMessageAsync(OtrMessage msg, UUID userId) {
+            return sendMessageAsync(msg, false);
+        }
+
+        @Override
+        public CompletionStage<PreKeys> getPreKeysAsync(Missing missing) {
+            preKeyCalls.add(missing);
+            return async(() -> {
+                PreKeys ret = new PreKeys();
+                for (Map.Entry<UUID, Collection<String>> entry : missing.entrySet()) {
+                    HashMap<String, PreKey> keys = new HashMap<>();
+                    for (String clientId : entry.getValue()) {
+                        PreKey preKey = new PreKey();
+                        preKey.id = 1;
+                        preKey.key = "key";
+                        keys.put(clientId, preKey);
+                    }
+                    ret.put(entry.getKey(), keys);
+                }
+                return ret;
+            });
+        }
+
+        private <T> CompletionStage<T> async(Supplier<T> call) {
+            return CompletableFuture.supplyAsync(call, http);
+        }
+
+        @Override
+        public Devices sendMessage(OtrMessage msg, Object... ignoreMissing) throws HttpException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Devices sendPartialMessage(OtrMessage msg, UUID userId) throws HttpException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public PreKeys getPreKeys(Missing missing) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Encrypts for the devices it has a session with, and creates the session from a prekey
+     */
+    private static class FakeCrypto implements Crypto {
+        final List<String> threads = Collections.synchronizedList(new ArrayList<>());
+        final Set<String> sessions = Collections.synchronizedSet(new HashSet<>());
+
+        FakeCrypto(String... sessions) {
+            this.sessions.addAll(Arrays.asList(sessions));
+        }
+
+        @Override
+        public Recipients encrypt(PreKeys preKeys, byte[] content) {
+            threads.add(Thread.currentThread().getName());
+            Recipients ret = new Recipients();
+            for (Map.Entry<UUID, HashMap<String, PreKey>> entry : preKeys.entrySet()) {
+                for (String clientId : entry.getValue().keySet()) {
+                    sessions.add(clientId);
+                    ret.add(entry.getKey(), clientId, content);
+                }
+            }
+            return ret;
+        }
+
+        @Override
+        public Recipients encrypt(Missing missing, byte[] content) {
+            threads.add(Thread.currentThread().getName());
+            Recipients ret = new Recipients();
+            for (Map.Entry<UUID, Collection<String>> entry : missing.entrySet()) {
+                for (String clientId : entry.getValue()) {
+                    if (sessions.contains(clientId))
+                        ret.add(entry.getKey(), clientId, content);
+                }
+            }
+            return ret;
+        }
+
+        @Override
+        public byte[] getIdentity() {
+            return new byte[0];
+        }
+
+        @Override
+        public byte[] getLocalFingerprint() {
+            return new byte[0];
+        }
+
+        @Override
+        public PreKey newLastPreKey() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ArrayList<PreKey> newPreKeys(int from, int count) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String decrypt(UUID userId, String clientId, String cypher) throws CryptoException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean isClosed() {
+            return false;
+        }
+
+        @Override
+        public void purge() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.wire.bots.sdk;
+
+import com.codahale.metrics.MetricRegistry;
+import com.waz.model.Messages;
+import com.wire.bots.sdk.assets.IGeneric;
+import com.wire.bots.sdk.state.StateLister;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BroadcasterTest {
+    @Test
+    public void testPages() throws Exception {
+        List<UUID> bots = bots(7);
+        FakeRepo repo = new FakeRepo();
+        List<String> checkpoints = new ArrayList<>();
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            Broadcaster broadcaster = new Broadcaster(repo, new FakeLister(bots), pool, new MetricRegistry(), 3);
+            Broadcaster.Report report = broadcaster.broadcast(new Message(), null, new Broadcaster.Listener() {
+                @Override
+                public void onCheckpoint(String checkpoint, Broadcaster.Report report) {
+                    // The whole page is done before its checkpoint
+                    assert repo.sent.keySet().containsAll(bots.subList(0, bots.indexOf(UUID.fromString(checkpoint)) + 1));
+                    checkpoints.add(checkpoint);
+                }
+            });
+
+            assert report.getSent() == 7;
+            assert report.getFailed() == 0;
+            assert report.getCheckpoint() == null;
+            assert checkpoints.equals(Arrays.asList(bots.get(2).toString(), bots.get(5).toString()));
+            for (UUID botId : bots)
+                assert repo.sent.get(botId).get() == 1;
+            assert repo.closed.get() == 7;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testResume() throws Exception {
+        List<UUID> bots = bots(7);
+        FakeRepo repo = new FakeRepo();
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            Broadcaster broadcaster = new Broadcaster(repo, new FakeLister(bots), pool, new MetricRegistry(), 3);
+            Broadcaster.Report report = broadcaster.broadcast(new Message(), bots.get(2).toString(),
+                    new Broadcaster.Listener() {
+                    });
+
+            // The first page is not listed again
+            assert report.getSent() == 4;
+            assert repo.sent.keySet().equals(new HashSet<>(bots.subList(3, 7)));
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFailures() throws Exception {
+        List<UUID> bots = bots(5);
+        FakeRepo repo = new FakeRepo();
+        repo.missing.add(bots.get(1));
+        repo.failing.add(bots.get(3));
+        Set<UUID> reported = Collections.synchronizedSet(new HashSet<>());
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            Broadcaster broadcaster = new Broadcaster(repo, new FakeLister(bots), pool, new MetricRegistry(), 2);
+            Broadcaster.Report report = broadcaster.broadcast(new Message(), null, new Broadcaster.Listener() {
+                @Override
+                public void onFailure(UUID botId, Exception e) {
+                    reported.add(botId);
+                }
+            });
+
+            // A failed bot does not stop the broadcast
+            assert report.getSent() == 3;
+            assert report.getFailed() == 2;
+            assert report.getFailures().keySet().equals(reported);
+            assert reported.equals(new HashSet<>(Arrays.asList(bots.get(1), bots.get(3))));
+            assert report.getFailures().get(bots.get(3)).equals("send failed");
+
+            // The client is closed when the send fails too
+            assert repo.closed.get() == 4;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testDuplicates() throws Exception {
+        List<UUID> bots = bots(4);
+        FakeRepo repo = new FakeRepo();
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            // Like SCAN after a rehash: the second page starts with the last bot of the first one again
+            StateLister lister = (cursor, limit) -> cursor == null
+                    ? new StateLister.Page(bots.subList(0, 2), "1")
+                    : new StateLister.Page(bots.subList(1, 4), null);
+            Broadcaster.Report report = new Broadcaster(repo, lister, pool, new MetricRegistry(), 2)
+                    .broadcast(new Message());
+
+            // At least once: the duplicate gets the message twice
+            assert report.getSent() == 5;
+            assert repo.sent.get(bots.get(1)).get() == 2;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static List<UUID> bots(int count) {
+        List<UUID> ret = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+            ret.add(UUID.randomUUID());
+        ret.sort((a, b) -> a.toString().compareTo(b.toString()));
+        return ret;
+    }
+
+    /**
+     * Pages in botId order, the cursor is the last botId of the page. Like JdbiState
+     */
+    private static class FakeLister implements StateLister {
+        private final List<UUID> bots;
+
+        FakeLister(List<UUID> bots) {
+            this.bots = bots;
+        }
+
+        @Override
+        public Page list(String cursor, int limit) {
+            int from = cursor == null ? 0 : bots.indexOf(UUID.fromString(cursor)) + 1;
+            int to = Math.min(from + limit, bots.size());
+            String next = to < bots.size() ? bots.get(to - 1).toString() : null;
+            return new Page(new ArrayList<>(bots.subList(from, to)), next);
+        }
+    }
+
+    /**
+     * Hands out clients that only count their sends and closes
+     */
+    private static class FakeRepo extends ClientRepo {
+        final Map<UUID, AtomicInteger> sent = new ConcurrentHashMap<>();
+        final AtomicInteger closed = new AtomicInteger();
+        final Set<UUID> missing = new HashSet<>();
+        final Set<UUID> failing = new HashSet<>();
+
+        FakeRepo() {
+            super(null, null, null);
+        }
+
+        @Override
+        public WireClient getClient(UUID botId) throws IOException {
+            if (missing.contains(botId))
+                throw new IOException("no state");
+
+            return (WireClient) Proxy.newProxyInstance(WireClient.class.getClassLoader(),
+                    new Class[]{WireClient.class}, (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "send":
+                                if (failing.contains(botId))
+                                    throw new IOException("send failed");
+                                sent.computeIfAbsent(botId, k -> new AtomicInteger()).incrementAndGet();
+                                return null;
+                            case "close":
+                                closed.incrementAndGet();
+                                return null;
+                            default:
+                                throw new UnsupportedOperationException(method.getName());
+                        }
+                    });
+        }
+    }
+
+    private static class Message implements IGeneric {
+        private final UUID messageId = UUID.randomUUID();
+
+        @Override
+        public Messages.GenericMessage createGenericMsg() {
+            return null;
+        }
+
+        @Override
+        public UUID getMessageId() {
+            return messageId;
+        }
+    }
+}
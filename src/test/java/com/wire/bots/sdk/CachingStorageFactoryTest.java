@@ -0,0 +1,164 @@
+package com.wire.bots.sdk;
+
+import com.wire.bots.sdk.exceptions.MissingStateException;
+import com.wire.bots.sdk.factories.CachingStorageFactory;
+import com.wire.bots.sdk.factories.StorageFactory;
+import com.wire.bots.sdk.server.model.NewBot;
+import com.wire.bots.sdk.state.State;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CachingStorageFactoryTest {
+    @Test
+    public void testWriteThrough() throws Exception {
+        MemFactory mem = new MemFactory();
+        CachingStorageFactory factory = new CachingStorageFactory(mem, 100, 60_000, 60_000);
+        UUID botId = UUID.randomUUID();
+
+        NewBot bot = bot(botId, "token");
+        assert factory.create(botId).saveState(bot);
+        assert mem.states.get(botId).token.equals("token");
+
+        // Served from the cache: no load, not even a backing state
+        int creates = mem.creates.get();
+        assert factory.create(botId).getState() == bot;
+        assert mem.loads.get() == 0;
+        assert mem.creates.get() == creates;
+
+        // A failed save drops the cached state
+        mem.failing = true;
+        try {
+            factory.create(botId).saveState(bot(botId, "other"));
+            assert false;
+        } catch (IOException ignored) {
+        }
+        mem.failing = false;
+        assert factory.create(botId).getState().token.equals("token");
+        assert mem.loads.get() == 1;
+    }
+
+    @Test
+    public void testRemove() throws Exception {
+        MemFactory mem = new MemFactory();
+        CachingStorageFactory factory = new CachingStorageFactory(mem, 100, 60_000, 60_000);
+        UUID botId = UUID.randomUUID();
+
+        factory.create(botId).saveState(bot(botId, "token"));
+        assert factory.create(botId).removeState();
+        assert factory.size() == 0;
+        try {
+            factory.create(botId).getState();
+            assert false;
+        } catch (MissingStateException ignored) {
+        }
+    }
+
+    @Test
+    public void testTtl() throws Exception {
+        MemFactory mem = new MemFactory();
+        CachingStorageFactory factory = new CachingStorageFactory(mem, 100, 60_000, 100);
+        UUID botId = UUID.randomUUID();
+
+        factory.create(botId).saveState(bot(botId, "token"));
+
+        // Changed by another replica: picked up once the ttl is over, even though the state is read all the time
+        mem.states.put(botId, bot(botId, "other"));
+        assert factory.create(botId).getState().token.equals("token");
+        Thread.sleep(200);
+        assert factory.create(botId).getState().token.equals("other");
+        assert mem.loads.get() == 1;
+    }
+
+    @Test
+    public void testOwnChanges() throws Exception {
+        MemFactory mem = new MemFactory();
+        CachingStorageFactory factory = new CachingStorageFactory(mem, 100, 60_000, 60_000, true);
+        UUID botId = UUID.randomUUID();
+
+        // The notification of our own save does not evict what it put
+        factory.create(botId).saveState(bot(botId, "token"));
+        factory.create(botId).saveState(bot(botId, "again"));
+        factory.onChange(botId);
+        factory.onChange(botId);
+        assert factory.create(botId).getState().token.equals("again");
+        assert mem.loads.get() == 0;
+
+        // Changed by another replica
+        mem.states.put(botId, bot(botId, "other"));
+        factory.onChange(botId);
+        assert factory.create(botId).getState().token.equals("other");
+        assert mem.loads.get() == 1;
+
+        // A failed save is not waited for
+        mem.failing = true;
+        try {
+            factory.create(botId).saveState(bot(botId, "failed"));
+            assert false;
+        } catch (IOException ignored) {
+        }
+        mem.failing = false;
+        factory.create(botId).getState();
+        mem.states.put(botId, bot(botId, "later"));
+        factory.onChange(botId);
+        assert factory.create(botId).getState().token.equals("later");
+    }
+
+    @Test
+    public void testWithoutListener() throws Exception {
+        MemFactory mem = new MemFactory();
+        CachingStorageFactory factory = new CachingStorageFactory(mem, 100, 60_000, 60_000);
+        UUID botId = UUID.randomUUID();
+
+        // Nothing is counted: every change is dropped
+        factory.create(botId).saveState(bot(botId, "token"));
+        factory.onChange(botId);
+        assert factory.size() == 0;
+    }
+
+    private static NewBot bot(UUID botId, String token) {
+        NewBot ret = new NewBot();
+        ret.id = botId;
+        ret.token = token;
+        return ret;
+    }
+
+    private static class MemFactory implements StorageFactory {
+        final Map<UUID, NewBot> states = new ConcurrentHashMap<>();
+        final AtomicInteger loads = new AtomicInteger();
+        final AtomicInteger creates = new AtomicInteger();
+        volatile boolean failing;
+
+        @Override
+        public State create(UUID botId) {
+            creates.incrementAndGet();
+            return new State() {
+                @Override
+                public boolean saveState(NewBot newBot) throws IOException {
+                    if (failing)
+                        throw new IOException("failed");
+                    states.put(botId, newBot);
+                    return true;
+                }
+
+                @Override
+                public NewBot getState() throws IOException {
+                    loads.incrementAndGet();
+                    NewBot ret = states.get(botId);
+                    if (ret == null)
+                        throw new MissingStateException(botId);
+                    return ret;
+                }
+
+                @Override
+                public boolean removeState() {
+                    return states.remove(botId) != null;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.wire.bots.sdk;
+
+import com.codahale.metrics.MetricRegistry;
+import com.wire.bots.sdk.devices.MemDeviceCache;
+import com.wire.bots.sdk.devices.RedisDeviceCache;
+import com.wire.bots.sdk.models.otr.Devices;
+import com.wire.bots.sdk.models.otr.Missing;
+import com.wire.bots.sdk.redis.RedisPool;
+import org.junit.Test;
+
+import java.util.UUID;
+
+public class DeviceCacheTest {
+
+    @Test
+    public void test() {
+        MetricRegistry metrics = new MetricRegistry();
+        MemDeviceCache cache = new MemDeviceCache(100, 60_000, metrics);
+
+        UUID convId = UUID.randomUUID();
+        UUID alice = UUID.randomUUID();
+        UUID bob = UUID.randomUUID();
+
+        assert cache.get(convId) == null;
+
+        Missing all = new Missing();
+        all.add(alice, "a1");
+        all.add(alice, "a2");
+        all.add(bob, "b1");
+        cache.put(convId, all);
+
+        Missing devices = cache.get(convId);
+        assert devices != null;
+        assert devices.toClients(alice).size() == 2;
+
+        // Copies handed out must not change the cache
+        devices.remove(alice);
+        assert cache.get(convId).toClients(alice).size() == 2;
+
+        Devices mismatch = new Devices();
+        mismatch.missing.add(bob, "b2");
+        mismatch.deleted.add(alice, "a1");
+        cache.update(convId, mismatch);
+
+        devices = cache.get(convId);
+        assert devices.toClients(bob).size() == 2;
+        assert devices.toClients(alice).size() == 1;
+        assert devices.toClients(alice).contains("a2");
+
+        cache.removeUser(convId, bob);
+        assert cache.get(convId).toClients(bob) == null;
+
+        cache.invalidate(convId);
+        assert cache.get(convId) == null;
+
+        assert metrics.meter("com.wire.bots.sdk.devices.DeviceCache.stale").getCount() == 1;
+    }
+
+    @Test
+    public void testRedisDown() throws Exception {
+        // Nothing listens on this port
+        Configuration.DB conf = new Configuration.DB();
+        conf.host = "localhost";
+        conf.port = 6393;
+        conf.timeout = 100;
+        RedisDeviceCache cache = new RedisDeviceCache(conf, 60_000, new MetricRegistry());
+        try {
+            UUID convId = UUID.randomUUID();
+            Missing all = new Missing();
+            all.add(UUID.randomUUID(), "a1");
+
+            // A miss: the sender fetches the devices from the Backend
+            assert cache.get(convId) == null;
+            cache.put(convId, all);
+
+            Devices mismatch = new Devices();
+            mismatch.missing.add(UUID.randomUUID(), "b1");
+            cache.update(convId, mismatch);
+            cache.removeUser(convId, UUID.randomUUID());
+            cache.invalidate(convId);
+        } finally {
+            RedisPool.get(conf).stop();
+        }
+    }
+}
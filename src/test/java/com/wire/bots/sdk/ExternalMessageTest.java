@@ -0,0 +1,55 @@
+package com.wire.bots.sdk;
+
+import com.waz.model.Messages;
+import com.wire.bots.sdk.crypto.ExternalMessage;
+import com.wire.bots.sdk.server.GenericMessageProcessor;
+import org.junit.Test;
+
+import java.util.UUID;
+
+public class ExternalMessageTest {
+
+    @Test
+    public void testWrapUnwrap() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 10000; i++)
+            sb.append("Large poll option ").append(i);
+
+        Messages.GenericMessage generic = Messages.GenericMessage.newBuilder()
+                .setMessageId(UUID.randomUUID().toString())
+                .setText(Messages.Text.newBuilder().setContent(sb.toString()))
+                .build();
+
+        assert ExternalMessage.isExternal(generic.getSerializedSize(), 300);
+        assert !ExternalMessage.isExternal(100, 2);
+
+        ExternalMessage external = ExternalMessage.wrap(generic);
+
+        // This is what the recipient gets after Proteus decryption
+        Messages.GenericMessage wrapper = Messages.GenericMessage.parseFrom(external.getContent());
+        assert wrapper.hasExternal();
+        assert wrapper.getMessageId().equals(generic.getMessageId());
+        assert external.getContent().length < 200;
+
+        Messages.GenericMessage decoded = GenericMessageProcessor.decodeExternal(wrapper, external.getData());
+        assert decoded.equals(generic);
+
+        // Not External: returned as is
+        assert GenericMessageProcessor.decodeExternal(generic, null) == generic;
+    }
+
+    @Test(expected = Exception.class)
+    public void testTampered() throws Exception {
+        Messages.GenericMessage generic = Messages.GenericMessage.newBuilder()
+                .setMessageId(UUID.randomUUID().toString())
+                .setText(Messages.Text.newBuilder().setContent("Hello"))
+                .build();
+
+        ExternalMessage external = ExternalMessage.wrap(generic);
+        Messages.GenericMessage wrapper = Messages.GenericMessage.parseFrom(external.getContent());
+
+        char[] data = external.getData().toCharArray();
+        data[5] = data[5] == 'A' ? 'B' : 'A';
+        GenericMessageProcessor.decodeExternal(wrapper, new String(data));
+    }
+}
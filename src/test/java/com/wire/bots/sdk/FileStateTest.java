@@ -0,0 +1,98 @@
+package com.wire.bots.sdk;
+
+import com.wire.bots.sdk.helpers.Util;
+import com.wire.bots.sdk.state.FileState;
+import com.wire.bots.sdk.state.StateLister;
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
+
+public class FileStateTest {
+    private static final String DIR = "data-lister";
+
+    @AfterClass
+    public static void clean() throws IOException {
+        Util.deleteDir(DIR);
+    }
+
+    @Test
+    public void testLister() throws Exception {
+        List<UUID> bots = new ArrayList<>();
+        for (int i = 0; i < 7; i++) {
+            UUID botId = UUID.randomUUID();
+            bots.add(botId);
+            File dir = new File(String.format("%s/%s", DIR, botId));
+            dir.mkdirs();
+            Files.write(new File(dir, i % 2 == 0 ? "state.bin" : "state.json").toPath(), new byte[]{1});
+        }
+
+        // Neither is listed: no state file, not a bot
+        new File(String.format("%s/%s", DIR, UUID.randomUUID())).mkdirs();
+        new File(String.format("%s/tmp", DIR)).mkdirs();
+
+        Configuration.DB db = new Configuration.DB();
+        db.url = "file://" + new File(DIR).getAbsolutePath();
+        StateLister lister = FileState.lister(db);
+
+        List<UUID> listed = new ArrayList<>();
+        String cursor = null;
+        int pages = 0;
+        do {
+            StateLister.Page page = lister.list(cursor, 3);
+            assert page.botIds.size() <= 3;
+            listed.addAll(page.botIds);
+            cursor = page.next;
+            pages++;
+        } while (cursor != null);
+
+        // Directory order: every bot once
+        assert listed.size() == bots.size() : listed;
+        assert new HashSet<>(listed).equals(new HashSet<>(bots)) : listed;
+        assert pages <= 3;
+    }
+
+    @Test
+    public void testResume() throws Exception {
+        String dir = DIR + "/resume";
+        List<UUID> bots = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            UUID botId = UUID.randomUUID();
+            bots.add(botId);
+            File bot = new File(String.format("%s/%s", dir, botId));
+            bot.mkdirs();
+            Files.write(new File(bot, "state.bin").toPath(), new byte[]{1});
+        }
+
+        Configuration.DB db = new Configuration.DB();
+        db.url = "file://" + new File(dir).getAbsolutePath();
+        StateLister.Page first = FileState.lister(db).list(null, 2);
+        assert first.botIds.size() == 2;
+
+        // A stored checkpoint, passed to a new lister
+        List<UUID> listed = new ArrayList<>(first.botIds);
+        String cursor = first.next;
+        StateLister lister = FileState.lister(db);
+        while (cursor != null) {
+            StateLister.Page page = lister.list(cursor, 2);
+            listed.addAll(page.botIds);
+            cursor = page.next;
+        }
+        assert listed.size() == bots.size() : listed;
+        assert new HashSet<>(listed).equals(new HashSet<>(bots)) : listed;
+
+        // The checkpoint is gone
+        Util.deleteDir(String.format("%s/%s", dir, first.next));
+        try {
+            FileState.lister(db).list(first.next, 2);
+            assert false;
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.wire.bots.sdk;
+
+import com.wire.bots.cryptobox.IRecord;
+import com.wire.bots.cryptobox.PreKey;
+import com.wire.bots.cryptobox.StorageException;
+import com.wire.bots.sdk.crypto.storage.MVStorage;
+import org.h2.mvstore.MVStore;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+public class MVStorageTest {
+    private static final String FILE = "data/MVStorageTest.mv";
+    private static MVStore store;
+
+    @BeforeClass
+    public static void setUp() {
+        store = MVStorage.open(FILE);
+    }
+
+    @AfterClass
+    public static void clean() {
+        MVStorage.close(store);
+        new File(FILE).delete();
+    }
+
+    @Test
+    public void testFetchSession() throws StorageException {
+        MVStorage storage = new MVStorage(store);
+        Random random = new Random();
+        String id = "" + random.nextInt();
+        String sid = "" + random.nextInt();
+
+        IRecord record = storage.fetchSession(id, sid);
+        assert record.getData() == null;
+
+        byte[] data = new byte[1024];
+        random.nextBytes(data);
+
+        record.persist(data);
+
+        record = storage.fetchSession(id, sid);
+        assert record.getData() != null;
+        assert Arrays.equals(data, record.getData());
+
+        record.persist(data);
+    }
+
+    @Test
+    public void testSessionLock() throws Exception {
+        MVStorage storage = new MVStorage(store);
+        Random random = new Random();
+        String id = "" + random.nextInt();
+        String sid = "" + random.nextInt();
+
+        // Closed without persisting: the next fetch does not wait for the lock
+        IRecord record = storage.fetchSession(id, sid);
+        ((AutoCloseable) record).close();
+        long start = System.currentTimeMillis();
+        storage.fetchSession(id, sid).persist(null);
+        assert System.currentTimeMillis() - start < 1000;
+    }
+
+    @Test
+    public void testFailedPersist() throws StorageException {
+        String file = "data/MVStorageTest-failed.mv";
+        MVStore other = MVStorage.open(file);
+        try {
+            MVStorage storage = new MVStorage(other);
+            IRecord record = storage.fetchSession("id", "sid");
+            MVStorage.close(other);
+
+            // The ratchet was not saved: the caller must know
+            try {
+                record.persist(new byte[]{1});
+                assert false;
+            } catch (RuntimeException ignored) {
+            }
+
+            other = MVStorage.open(file);
+            storage = new MVStorage(other);
+            long start = System.currentTimeMillis();
+            record = storage.fetchSession("id", "sid");
+            assert System.currentTimeMillis() - start < 1000;
+            assert record.getData() == null;
+            record.persist(null);
+        } finally {
+            MVStorage.close(other);
+            new File(file).delete();
+        }
+    }
+
+    @Test
+    public void testFetchIdentity() {
+        MVStorage storage = new MVStorage(store);
+        Random random = new Random();
+        String id = "" + random.nextInt();
+
+        byte[] identity = storage.fetchIdentity(id);
+        assert identity == null;
+
+        identity = new byte[1024];
+        random.nextBytes(identity);
+
+        storage.insertIdentity(id, identity);
+
+        byte[] control = storage.fetchIdentity(id);
+        assert control != null;
+        assert Arrays.equals(identity, control);
+    }
+
+    @Test
+    public void testFetchPrekeys() {
+        int SIZE = 10;
+        MVStorage storage = new MVStorage(store);
+        Random random = new Random();
+        String id = "" + random.nextInt();
+
+        PreKey[] preKeys = storage.fetchPrekeys(id);
+        assert preKeys == null;
+
+        ArrayList<PreKey> prekeys = new ArrayList<>();
+        for (int i = 0; i < SIZE; i++) {
+            byte[] data = new byte[1024];
+            random.nextBytes(data);
+            prekeys.add(new PreKey(i, data));
+        }
+        storage.insertPrekeys(id, prekeys);
+        storage.insertPrekey(id, 0xFFFF, new byte[16]);
+
+        PreKey[] control = storage.fetchPrekeys(id);
+
+        assert control != null;
+        assert control.length == SIZE + 1;
+        for (int i = 0; i < SIZE; i++) {
+            PreKey preKey = prekeys.get(i);
+            PreKey controlKey = control[i];
+
+            assert preKey.id == controlKey.id;
+            assert Arrays.equals(preKey.data, controlKey.data);
+        }
+        assert control[SIZE].id == 0xFFFF;
+
+        storage.purge(id);
+        assert storage.fetchPrekeys(id) == null;
+    }
+}
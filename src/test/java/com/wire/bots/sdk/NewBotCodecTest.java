@@ -0,0 +1,61 @@
+package com.wire.bots.sdk;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.wire.bots.sdk.server.model.Conversation;
+import com.wire.bots.sdk.server.model.Member;
+import com.wire.bots.sdk.server.model.NewBot;
+import com.wire.bots.sdk.server.model.User;
+import com.wire.bots.sdk.state.NewBotCodec;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.UUID;
+
+public class NewBotCodecTest {
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    static NewBot newBot() {
+        NewBot bot = new NewBot();
+        bot.id = UUID.randomUUID();
+        bot.client = "a1b2c3d4e5f6";
+        bot.token = "token_" + UUID.randomUUID();
+        bot.locale = "en";
+        bot.origin = new User();
+        bot.origin.id = UUID.randomUUID();
+        bot.origin.name = "Alice";
+        bot.origin.handle = "alice";
+        bot.origin.accent = 3;
+        bot.conversation = new Conversation();
+        bot.conversation.id = UUID.randomUUID();
+        bot.conversation.name = "Team";
+        bot.conversation.creator = bot.origin.id;
+        bot.conversation.members = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            Member member = new Member();
+            member.id = UUID.randomUUID();
+            member.status = 0;
+            bot.conversation.members.add(member);
+        }
+        return bot;
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        NewBot bot = newBot();
+
+        byte[] data = NewBotCodec.encode(bot);
+        NewBot decoded = NewBotCodec.decode(data);
+
+        assert mapper.writeValueAsString(decoded).equals(mapper.writeValueAsString(bot));
+        assert data.length < mapper.writeValueAsBytes(bot).length;
+    }
+
+    @Test
+    public void testLegacyJson() throws Exception {
+        NewBot bot = newBot();
+
+        NewBot decoded = NewBotCodec.decode(mapper.writeValueAsBytes(bot));
+
+        assert mapper.writeValueAsString(decoded).equals(mapper.writeValueAsString(bot));
+    }
+}
@@ -0,0 +1,39 @@
+package com.wire.bots.sdk;
+
+import com.waz.model.Otr;
+import com.wire.bots.sdk.models.otr.OtrMessage;
+import com.wire.bots.sdk.models.otr.OtrTransport;
+import com.wire.bots.sdk.models.otr.Recipients;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.UUID;
+
+public class OtrTransportTest {
+
+    @Test
+    public void testToProtobuf() throws Exception {
+        UUID userId = UUID.randomUUID();
+        byte[] cipher = {1, 2, 3, 4, 5};
+
+        Recipients recipients = new Recipients();
+        recipients.add(userId, "fedcba9876543210", cipher);
+        OtrMessage msg = new OtrMessage("1a2b3c", recipients);
+
+        byte[] bytes = OtrTransport.toProtobuf(msg).toByteArray();
+        Otr.NewOtrMessage parsed = Otr.NewOtrMessage.parseFrom(bytes);
+
+        assert parsed.getSender().getClient() == 0x1a2b3cL;
+        assert parsed.getRecipientsCount() == 1;
+
+        Otr.UserEntry entry = parsed.getRecipients(0);
+        ByteBuffer uuid = ByteBuffer.wrap(entry.getUser().getUuid().toByteArray());
+        assert new UUID(uuid.getLong(), uuid.getLong()).equals(userId);
+
+        Otr.ClientEntry client = entry.getClients(0);
+        assert Long.toHexString(client.getClient().getClient()).equals("fedcba9876543210");
+        assert Arrays.equals(client.getText().toByteArray(), cipher);
+        assert !parsed.hasBlob();
+    }
+}
@@ -7,6 +7,7 @@ import com.wire.bots.cryptobox.StorageException;
 import com.wire.bots.sdk.crypto.storage.JdbiStorage;
 import io.dropwizard.db.DataSourceFactory;
 import io.dropwizard.db.ManagedDataSource;
+import io.dropwizard.util.Duration;
 import org.flywaydb.core.Flyway;
 import org.junit.Before;
 import org.junit.Test;
@@ -15,6 +16,9 @@ import org.skife.jdbi.v2.DBI;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class PostgresCryptoStorageTest {
     private DBI jdbi;
@@ -61,6 +65,39 @@ public class PostgresCryptoStorageTest {
         record.persist(data);
     }
 
+    @Test
+    public void testSessionLock() throws Exception {
+        JdbiStorage storage = new JdbiStorage(jdbi, Duration.milliseconds(200));
+
+        Random random = new Random();
+        String id = "" + random.nextInt();
+        String sid = "" + random.nextInt();
+
+        byte[] data = new byte[1024];
+        random.nextBytes(data);
+        storage.fetchSession(id, sid).persist(data);
+
+        // The row stays locked until the Record is persisted: another decrypt times out
+        IRecord record = storage.fetchSession(id, sid);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            try {
+                executor.submit(() -> storage.fetchSession(id, sid)).get();
+                assert false;
+            } catch (ExecutionException e) {
+                assert e.getCause() instanceof StorageException;
+            }
+
+            // Closing without persisting rolls back and releases the row
+            ((AutoCloseable) record).close();
+            IRecord next = executor.submit(() -> storage.fetchSession(id, sid)).get();
+            assert Arrays.equals(data, next.getData());
+            executor.submit(() -> next.persist(null)).get();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     @Test
     public void testFetchIdentity() throws StorageException {
         JdbiStorage storage = new JdbiStorage(jdbi);
@@ -142,6 +179,35 @@ public class PostgresCryptoStorageTest {
         }
     }
 
+    @Test
+    public void testInsertPrekeys() throws StorageException {
+        JdbiStorage storage = new JdbiStorage(jdbi);
+        Random random = new Random();
+
+        // JDBC batch and COPY
+        for (int size : new int[]{50, 600}) {
+            String id = "" + random.nextInt();
+
+            ArrayList<PreKey> prekeys = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                byte[] data = new byte[256];
+                random.nextBytes(data);
+                prekeys.add(new PreKey(i, data));
+            }
+
+            storage.insertPrekeys(id, prekeys);
+
+            PreKey[] control = storage.fetchPrekeys(id);
+
+            assert control != null;
+            assert control.length == size;
+            for (PreKey controlKey : control) {
+                PreKey preKey = prekeys.get(controlKey.id);
+                assert Arrays.equals(preKey.data, controlKey.data);
+            }
+        }
+    }
+
     @Test
     public void testPurge() throws StorageException {
         JdbiStorage storage = new JdbiStorage(jdbi);
@@ -0,0 +1,67 @@
+package com.wire.bots.sdk;
+
+import com.codahale.metrics.MetricRegistry;
+import com.wire.bots.sdk.server.model.NewBot;
+import com.wire.bots.sdk.state.JdbiState;
+import com.wire.bots.sdk.state.PostgresStateListener;
+import io.dropwizard.db.DataSourceFactory;
+import io.dropwizard.db.ManagedDataSource;
+import org.flywaydb.core.Flyway;
+import org.junit.Test;
+import org.skife.jdbi.v2.DBI;
+
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class PostgresStateListenerTest {
+
+    @Test
+    public void test() throws Exception {
+        DataSourceFactory dataSourceFactory = new DataSourceFactory();
+        dataSourceFactory.setDriverClass("org.postgresql.Driver");
+        dataSourceFactory.setUrl("jdbc:postgresql://localhost/lithium");
+        dataSourceFactory.setUser("dejankovacevic");
+
+        // Migrate DB if needed
+        Flyway flyway = Flyway
+                .configure()
+                .dataSource(dataSourceFactory.getUrl(), dataSourceFactory.getUser(), dataSourceFactory.getPassword())
+                .baselineOnMigrate(true)
+                .load();
+        flyway.migrate();
+
+        ManagedDataSource dataSource = dataSourceFactory.build(new MetricRegistry(), "PostgresStateListenerTest");
+
+        DBI jdbi = new DBI(dataSource);
+
+        BlockingQueue<UUID> changed = new LinkedBlockingQueue<>();
+        PostgresStateListener listener = new PostgresStateListener(jdbi, changed::add);
+        listener.start();
+        try {
+            Thread.sleep(500);
+
+            UUID botId = UUID.randomUUID();
+            NewBot bot = new NewBot();
+            bot.id = botId;
+            bot.token = "token";
+            JdbiState storage = new JdbiState(botId, jdbi);
+            storage.saveState(bot);
+            assert next(changed, botId);
+
+            storage.removeState();
+            assert next(changed, botId);
+        } finally {
+            listener.stop();
+        }
+    }
+
+    private static boolean next(BlockingQueue<UUID> changed, UUID botId) throws InterruptedException {
+        UUID id;
+        do {
+            id = changed.poll(5, TimeUnit.SECONDS);
+        } while (id != null && !id.equals(botId));
+        return id != null;
+    }
+}
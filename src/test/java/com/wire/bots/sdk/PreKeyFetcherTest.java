@@ -0,0 +1,119 @@
+package com.wire.bots.sdk;
+
+import com.wire.bots.sdk.models.otr.Devices;
+import com.wire.bots.sdk.models.otr.Missing;
+import com.wire.bots.sdk.models.otr.OtrMessage;
+import com.wire.bots.sdk.models.otr.PreKey;
+import com.wire.bots.sdk.models.otr.PreKeys;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+public class PreKeyFetcherTest {
+    @Test
+    public void testSingleFlight() throws Exception {
+        PreKeyFetcher fetcher = new PreKeyFetcher(50, 30_000);
+        CountingBackend backend = new CountingBackend();
+        UUID botId = UUID.randomUUID();
+        UUID userId = UUID.randomUUID();
+
+        PreKeyFetcher.Claims first = fetcher.fetchAsync(botId, missing(userId, "1"), backend).toCompletableFuture().get();
+        assert backend.calls.size() == 1;
+        assert first.getPreKeys().count() == 1;
+
+        // The first sender has not created the session yet: the second one waits for it instead of fetching
+        CompletableFuture<PreKeyFetcher.Claims> second = fetcher.fetchAsync(botId, missing(userId, "1"), backend)
+                .toCompletableFuture();
+        PreKeyFetcher.Claims claims = second.get();
+        assert claims.getPreKeys().isEmpty();
+        CompletableFuture<Missing> others = claims.others();
+        assert !others.isDone();
+
+        first.used();
+        first.close();
+        assert others.get().get(userId).contains("1");
+        claims.close();
+        assert backend.calls.size() == 1;
+    }
+
+    @Test
+    public void testBatching() throws Exception {
+        PreKeyFetcher fetcher = new PreKeyFetcher(200, 30_000);
+        CountingBackend backend = new CountingBackend();
+        UUID botId = UUID.randomUUID();
+        UUID userId = UUID.randomUUID();
+
+        CompletionStage<PreKeyFetcher.Claims> first = fetcher.fetchAsync(botId, missing(userId, "1"), backend);
+        CompletionStage<PreKeyFetcher.Claims> second = fetcher.fetchAsync(botId, missing(userId, "2"), backend);
+        CompletionStage<PreKeyFetcher.Claims> other = fetcher.fetchAsync(UUID.randomUUID(), missing(userId, "1"), backend);
+
+        assert first.toCompletableFuture().get().getPreKeys().get(userId).containsKey("1");
+        assert second.toCompletableFuture().get().getPreKeys().get(userId).containsKey("2");
+        assert other.toCompletableFuture().get().getPreKeys().count() == 1;
+
+        // One call for both devices of the first bot, prekeys are never shared with the other bot
+        assert backend.calls.size() == 2;
+    }
+
+    @Test
+    public void testUnusedPreKey() throws Exception {
+        PreKeyFetcher fetcher = new PreKeyFetcher(0, 30_000);
+        CountingBackend backend = new CountingBackend();
+        UUID botId = UUID.randomUUID();
+        UUID userId = UUID.randomUUID();
+
+        PreKeyFetcher.Claims first = fetcher.fetchAsync(botId, missing(userId, "1"), backend).toCompletableFuture().get();
+        first.close();
+
+        PreKeyFetcher.Claims second = fetcher.fetchAsync(botId, missing(userId, "1"), backend).toCompletableFuture().get();
+        assert second.getPreKeys().count() == 1;
+        second.used();
+        second.close();
+        assert backend.calls.size() == 1;
+    }
+
+    private static Missing missing(UUID userId, String clientId) {
+        Missing ret = new Missing();
+        ret.add(userId, clientId);
+        return ret;
+    }
+
+    private static class CountingBackend implements AsyncBackend {
+        final List<Missing> calls = new ArrayList<>();
+        int next = 1;
+
+        @Override
+        public CompletionStage<Devices> sendMessageAsync(OtrMessage msg, Boolean ignoreMissing) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletionStage<Devices> sendPartialMessageAsync(OtrMessage msg, UUID userId) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public synchronized CompletionStage<PreKeys> getPreKeysAsync(Missing missing) {
+            calls.add(missing);
+            PreKeys ret = new PreKeys();
+            for (Map.Entry<UUID, Collection<String>> entry : missing.entrySet()) {
+                HashMap<String, PreKey> clients = new HashMap<>();
+                for (String clientId : entry.getValue()) {
+                    PreKey preKey = new PreKey();
+                    preKey.id = next++;
+                    preKey.key = "key";
+                    clients.put(clientId, preKey);
+                }
+                ret.put(entry.getKey(), clients);
+            }
+            return CompletableFuture.completedFuture(ret);
+        }
+    }
+}
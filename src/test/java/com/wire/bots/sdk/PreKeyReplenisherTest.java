@@ -0,0 +1,155 @@
+package com.wire.bots.sdk;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+public class PreKeyReplenisherTest {
+    @Test
+    public void testPreKeyId() {
+        assert PreKeyReplenisher.preKeyId(envelope(preKeyMessage(7))) == 7;
+        assert PreKeyReplenisher.preKeyId(envelope(preKeyMessage(300))) == 300;
+        assert PreKeyReplenisher.preKeyId(envelope(preKeyMessage(0xFFFF))) == 0xFFFF;
+
+        // CipherMessage: the session exists already
+        assert PreKeyReplenisher.preKeyId(envelope(new byte[]{0x01, (byte) 0xA0})) == -1;
+
+        assert PreKeyReplenisher.preKeyId(new byte[0]) == -1;
+        assert PreKeyReplenisher.preKeyId(new byte[]{(byte) 0xA3, 0x00}) == -1;
+        assert PreKeyReplenisher.preKeyId("not cbor".getBytes()) == -1;
+    }
+
+    @Test
+    public void testLowWater() {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        Configuration.PreKeys config = new Configuration.PreKeys();
+        config.lowWater = 2;
+        config.debounce = io.dropwizard.util.Duration.hours(1);
+        PreKeyReplenisher replenisher = new PreKeyReplenisher(null, scheduler, config);
+
+        UUID botId = UUID.randomUUID();
+        replenisher.onDecrypted(botId, envelope(new byte[]{0x01, (byte) 0xA0}));
+        assert !replenisher.isDue(botId);
+
+        // Unknown estimate: the first new session syncs it
+        replenisher.onDecrypted(botId, envelope(preKeyMessage(1)));
+        assert replenisher.isDue(botId);
+        assert replenisher.estimate(botId) == -1;
+
+        // The last resort prekey is never consumed
+        replenisher.onRemoved(botId);
+        replenisher.onDecrypted(botId, envelope(preKeyMessage(0xFFFF)));
+        assert !replenisher.isDue(botId);
+
+        replenisher.stop();
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void testResync() throws Exception {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        Configuration.PreKeys config = new Configuration.PreKeys();
+        config.lowWater = 2;
+        config.debounce = io.dropwizard.util.Duration.hours(1);
+        config.resync = io.dropwizard.util.Duration.milliseconds(100);
+        PreKeyReplenisher replenisher = new PreKeyReplenisher(new FakeRepo(40), scheduler, config);
+
+        UUID botId = UUID.randomUUID();
+        replenisher.onMemberJoin(botId);
+        assert replenisher.isDue(botId);
+        replenisher.replenish();
+        assert replenisher.estimate(botId) == 40;
+
+        // Fresh estimate: the Backend is not asked
+        replenisher.onMemberJoin(botId);
+        replenisher.onDecrypted(botId, envelope(preKeyMessage(1)));
+        assert !replenisher.isDue(botId);
+        assert replenisher.estimate(botId) == 39;
+
+        Thread.sleep(150);
+        replenisher.onMemberJoin(botId);
+        assert replenisher.isDue(botId);
+
+        replenisher.stop();
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Hands out clients that only report the given number of prekeys
+     */
+    private static class FakeRepo extends ClientRepo {
+        private final int available;
+
+        FakeRepo(int available) {
+            super(null, null, null);
+            this.available = available;
+        }
+
+        @Override
+        public WireClient getClient(UUID botId) {
+            return (WireClient) Proxy.newProxyInstance(WireClient.class.getClassLoader(),
+                    new Class[]{WireClient.class}, (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "getAvailablePrekeys":
+                                ArrayList<Integer> ret = new ArrayList<>();
+                                for (int i = 0; i < available; i++)
+                                    ret.add(i);
+                                return ret;
+                            case "close":
+                                return null;
+                            default:
+                                throw new UnsupportedOperationException(method.getName());
+                        }
+                    });
+        }
+    }
+
+    /**
+     * CBOR {0: 1, 1: {0: mac}, 2: message}
+     */
+    private static byte[] envelope(byte[] message) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0xA3);
+        out.write(0x00);
+        out.write(0x01);
+        out.write(0x01);
+        out.write(0xA1);
+        out.write(0x00);
+        out.write(0x58);
+        out.write(32);
+        out.write(new byte[32], 0, 32);
+        out.write(0x02);
+        out.write(0x58);
+        out.write(message.length);
+        out.write(message, 0, message.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * Type 2 followed by {0: prekey id, 1: base key, 2: identity key, 3: message}
+     */
+    private static byte[] preKeyMessage(int id) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0x02);
+        out.write(0xA4);
+        out.write(0x00);
+        if (id < 24) {
+            out.write(id);
+        } else {
+            out.write(0x19);
+            out.write(id >>> 8);
+            out.write(id);
+        }
+        for (int key = 1; key <= 3; key++) {
+            out.write(key);
+            out.write(0x44);
+            out.write(new byte[4], 0, 4);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,53 @@
+package com.wire.bots.sdk;
+
+import com.wire.bots.sdk.redis.RedisKeys;
+import org.junit.Test;
+
+import java.util.UUID;
+
+public class RedisKeysTest {
+
+    @Test
+    public void testMigrate() {
+        UUID botId = UUID.randomUUID();
+        String id = botId.toString();
+
+        assert RedisKeys.migrate("ses_" + id + "-" + id + "_abcdef").equals(RedisKeys.session(id, id + "_abcdef"));
+        assert RedisKeys.migrate("id_" + id).equals(RedisKeys.identity(id));
+        assert RedisKeys.migrate("pk_" + id).equals(RedisKeys.prekeys(id));
+        assert RedisKeys.migrate(id).equals(RedisKeys.state(botId));
+
+        // Already migrated or not ours
+        assert RedisKeys.migrate(RedisKeys.session(id, "sid")) == null;
+        assert RedisKeys.migrate(RedisKeys.identity(id)) == null;
+        assert RedisKeys.migrate(RedisKeys.state(botId)) == null;
+        assert RedisKeys.migrate("dev_" + id) == null;
+        assert RedisKeys.migrate("lock_ses_" + id + "-sid") == null;
+    }
+
+    @Test
+    public void testLegacy() {
+        UUID botId = UUID.randomUUID();
+        String id = botId.toString();
+        String sid = id + "_abcdef";
+
+        // The fallback reads exactly the keys the migration moves
+        assert RedisKeys.migrate(RedisKeys.legacySession(id, sid)).equals(RedisKeys.session(id, sid));
+        assert RedisKeys.migrate(RedisKeys.legacyIdentity(id)).equals(RedisKeys.identity(id));
+        assert RedisKeys.migrate(RedisKeys.legacyPrekeys(id)).equals(RedisKeys.prekeys(id));
+        assert RedisKeys.migrate(RedisKeys.legacyState(botId)).equals(RedisKeys.state(botId));
+    }
+
+    @Test
+    public void testSameSlot() {
+        String id = UUID.randomUUID().toString();
+        String tag = RedisKeys.tag(id);
+
+        assert RedisKeys.session(id, "sid").contains(tag);
+        assert RedisKeys.sessionLock(id, "sid").contains(tag);
+        assert RedisKeys.fence(id).contains(tag);
+        assert RedisKeys.identity(id).contains(tag);
+        assert RedisKeys.prekeys(id).contains(tag);
+        assert RedisKeys.state(UUID.fromString(id)).contains(tag);
+    }
+}
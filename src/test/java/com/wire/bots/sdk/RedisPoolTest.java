@@ -0,0 +1,80 @@
+package com.wire.bots.sdk;
+
+import com.wire.bots.sdk.crypto.storage.RedisStorage;
+import com.wire.bots.sdk.redis.RedisPool;
+import org.junit.Test;
+
+public class RedisPoolTest {
+    @Test
+    public void testSettings() throws Exception {
+        Configuration.DB conf = conf("localhost", 6390);
+        RedisPool pool = RedisPool.get(conf);
+        RedisPool other = RedisPool.get(conf("localhost", 6391));
+        try {
+            assert RedisPool.get(conf("localhost", 6390)) == pool;
+            assert other != pool;
+
+            // Same deployment, other password: never hand out the first pool
+            Configuration.DB password = conf("localhost", 6390);
+            password.password = "secret";
+            try {
+                RedisPool.get(password);
+                assert false;
+            } catch (IllegalArgumentException ignored) {
+            }
+
+            Configuration.DB size = conf("localhost", 6390);
+            size.poolSize = 8;
+            try {
+                RedisPool.get(size);
+                assert false;
+            } catch (IllegalArgumentException ignored) {
+            }
+        } finally {
+            pool.stop();
+            other.stop();
+        }
+
+        // Stopped pools are gone: the next config starts a new one
+        RedisPool next = RedisPool.get(conf("localhost", 6390));
+        assert next != pool;
+        next.stop();
+    }
+
+    @Test
+    public void testShared() throws Exception {
+        Configuration.DB conf = conf("localhost", 6392);
+        conf.poolSize = 8;
+        RedisPool pool = RedisPool.get(conf);
+        try {
+            // The host only constructors reuse the configured pool instead of failing on its sizing
+            assert RedisPool.shared(conf("localhost", 6392)) == pool;
+            new RedisStorage("localhost", 6392);
+        } finally {
+            pool.stop();
+        }
+
+        RedisPool created = RedisPool.shared(conf("localhost", 6392));
+        assert created != pool;
+        created.stop();
+    }
+
+    @Test
+    public void testSentinelWithoutNodes() {
+        Configuration.DB conf = new Configuration.DB();
+        conf.master = "mymaster";
+        try {
+            RedisPool.get(conf);
+            assert false;
+        } catch (IllegalArgumentException e) {
+            assert e.getMessage().contains("db.nodes");
+        }
+    }
+
+    private static Configuration.DB conf(String host, int port) {
+        Configuration.DB ret = new Configuration.DB();
+        ret.host = host;
+        ret.port = port;
+        return ret;
+    }
+}
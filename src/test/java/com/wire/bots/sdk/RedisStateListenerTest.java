@@ -0,0 +1,50 @@
+package com.wire.bots.sdk;
+
+import com.wire.bots.sdk.redis.RedisPool;
+import com.wire.bots.sdk.server.model.NewBot;
+import com.wire.bots.sdk.state.RedisState;
+import com.wire.bots.sdk.state.RedisStateListener;
+import org.junit.Test;
+
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class RedisStateListenerTest {
+
+    @Test
+    public void test() throws Exception {
+        Configuration.DB conf = new Configuration.DB();
+        conf.host = "localhost";
+        conf.port = 6379;
+
+        BlockingQueue<UUID> changed = new LinkedBlockingQueue<>();
+        RedisStateListener listener = new RedisStateListener(RedisPool.get(conf), changed::add);
+        listener.start();
+        try {
+            Thread.sleep(500);
+
+            UUID botId = UUID.randomUUID();
+            NewBot bot = new NewBot();
+            bot.id = botId;
+            bot.token = "token";
+            RedisState storage = new RedisState(botId, conf);
+            storage.saveState(bot);
+            assert next(changed, botId);
+
+            storage.removeState();
+            assert next(changed, botId);
+        } finally {
+            listener.stop();
+        }
+    }
+
+    private static boolean next(BlockingQueue<UUID> changed, UUID botId) throws InterruptedException {
+        UUID id;
+        do {
+            id = changed.poll(5, TimeUnit.SECONDS);
+        } while (id != null && !id.equals(botId));
+        return id != null;
+    }
+}
@@ -1,9 +1,14 @@
 package com.wire.bots.sdk;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.wire.bots.sdk.exceptions.MissingStateException;
+import com.wire.bots.sdk.redis.RedisKeys;
+import com.wire.bots.sdk.redis.RedisPool;
 import com.wire.bots.sdk.server.model.Conversation;
 import com.wire.bots.sdk.server.model.NewBot;
 import com.wire.bots.sdk.state.RedisState;
 import org.junit.Test;
+import redis.clients.jedis.Jedis;
 
 import java.util.UUID;
 
@@ -38,4 +43,35 @@ public class RedisStateTest {
         boolean removeState = storage.removeState();
         assert removeState;
     }
+
+    @Test
+    public void testLegacy() throws Exception {
+        Configuration.DB conf = new Configuration.DB();
+        conf.host = "localhost";
+        conf.port = 6379;
+
+        UUID botId = UUID.randomUUID();
+        NewBot bot = new NewBot();
+        bot.id = botId;
+        bot.token = "token";
+
+        // Written by a version before the {botId} layout
+        try (Jedis jedis = RedisPool.get(conf).getResource(RedisKeys.tag(botId.toString()))) {
+            jedis.set(RedisKeys.legacyState(botId).getBytes(), new ObjectMapper().writeValueAsBytes(bot));
+        }
+
+        RedisState storage = new RedisState(botId, conf);
+        assert storage.getState().token.equals("token");
+        try (Jedis jedis = RedisPool.get(conf).getResource(RedisKeys.tag(botId.toString()))) {
+            assert !jedis.exists(RedisKeys.legacyState(botId));
+            assert jedis.exists(RedisKeys.state(botId));
+        }
+
+        assert storage.removeState();
+        try {
+            storage.getState();
+            assert false;
+        } catch (MissingStateException ignored) {
+        }
+    }
 }
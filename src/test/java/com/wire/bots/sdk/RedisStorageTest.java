@@ -4,8 +4,12 @@ import com.wire.bots.cryptobox.IRecord;
 import com.wire.bots.cryptobox.PreKey;
 import com.wire.bots.cryptobox.StorageException;
 import com.wire.bots.sdk.crypto.storage.RedisStorage;
+import com.wire.bots.sdk.redis.RedisKeys;
+import com.wire.bots.sdk.redis.RedisPool;
 import org.junit.Test;
+import redis.clients.jedis.Jedis;
 
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Random;
@@ -33,6 +37,36 @@ public class RedisStorageTest {
         record.persist(data);
     }
 
+    @Test
+    public void testLockExpired() throws StorageException {
+        RedisStorage storage = new RedisStorage("localhost");
+        Random random = new Random();
+        String id = "" + random.nextInt();
+        String sid = "" + random.nextInt();
+
+        IRecord record = storage.fetchSession(id, sid);
+
+        // The lock expires and another replica takes the session over
+        Configuration.DB conf = new Configuration.DB();
+        conf.host = "localhost";
+        try (Jedis jedis = RedisPool.get(conf).getResource(RedisKeys.tag(id))) {
+            jedis.del(RedisKeys.sessionLock(id, sid));
+        }
+        IRecord other = storage.fetchSession(id, sid);
+
+        try {
+            record.persist(new byte[]{1});
+            assert false;
+        } catch (UncheckedIOException ignored) {
+        }
+
+        // Neither the session nor the new holder's lock were touched
+        other.persist(new byte[]{2});
+        record = storage.fetchSession(id, sid);
+        assert Arrays.equals(new byte[]{2}, record.getData());
+        record.persist(null);
+    }
+
     @Test
     public void testFetchIdentity() {
         RedisStorage storage = new RedisStorage("localhost");
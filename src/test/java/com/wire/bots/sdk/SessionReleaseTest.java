@@ -0,0 +1,172 @@
+package com.wire.bots.sdk;
+
+import com.google.common.util.concurrent.Striped;
+import com.wire.bots.cryptobox.CryptoException;
+import com.wire.bots.cryptobox.IRecord;
+import com.wire.bots.cryptobox.IStorage;
+import com.wire.bots.cryptobox.PreKey;
+import com.wire.bots.cryptobox.StorageException;
+import com.wire.bots.sdk.crypto.CryptoDatabase;
+import com.wire.bots.sdk.crypto.storage.ReleasingStorage;
+import com.wire.bots.sdk.helpers.MemStorage;
+import com.wire.bots.sdk.helpers.Util;
+import com.wire.bots.sdk.models.otr.Missing;
+import com.wire.bots.sdk.models.otr.PreKeys;
+import com.wire.bots.sdk.models.otr.Recipients;
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Base64;
+import java.util.UUID;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+public class SessionReleaseTest {
+    @AfterClass
+    public static void clean() throws IOException {
+        Util.deleteDir("data");
+    }
+
+    @Test
+    public void testRelease() throws Exception {
+        LockingStorage locking = new LockingStorage(new MemStorage());
+        ReleasingStorage storage = new ReleasingStorage(locking);
+
+        IRecord persisted = storage.fetchSession("id", "1");
+        storage.fetchSession("id", "2");
+        assert storage.pending() == 2;
+
+        persisted.persist(new byte[]{1});
+        assert storage.pending() == 1;
+        assert locking.locked() == 1;
+
+        storage.release();
+        assert storage.pending() == 0;
+        assert locking.locked() == 0;
+
+        // Released, the next fetch does not wait
+        storage.fetchSession("id", "2").persist(null);
+        assert locking.locked() == 0;
+    }
+
+    @Test
+    public void testFailedDecrypt() throws Exception {
+        UUID aliceId = UUID.randomUUID();
+        UUID bobId = UUID.randomUUID();
+        LockingStorage storage = new LockingStorage(new MemStorage());
+
+        try (CryptoDatabase alice = new CryptoDatabase(aliceId, storage);
+             CryptoDatabase bob = new CryptoDatabase(bobId, storage)) {
+            PreKeys bobKeys = new PreKeys(bob.newPreKeys(0, 1), "bob", bobId);
+            Recipients first = alice.encrypt(bobKeys, "Hello Bob".getBytes());
+            String cipher = first.get(bobId, "bob");
+            bob.decrypt(aliceId, "alice", cipher);
+
+            // Fails between fetchSession and persist
+            try {
+                bob.decrypt(aliceId, "alice", cipher);
+                assert false;
+            } catch (CryptoException ignored) {
+            }
+            assert storage.locked() == 0;
+
+            // The session is not left locked
+            Missing bobDevices = new Missing();
+            bobDevices.add(bobId, "bob");
+            Recipients second = alice.encrypt(bobDevices, "Hello again".getBytes());
+            String text = bob.decrypt(aliceId, "alice", second.get(bobId, "bob"));
+            assert "Hello again".equals(new String(Base64.getDecoder().decode(text)));
+        }
+    }
+
+    /**
+     * Locks sessions in process from fetchSession until persist or close, like SegmentStorage and MVStorage
+     */
+    private static class LockingStorage implements IStorage {
+        private final Striped<Semaphore> locks = Striped.semaphore(64, 1);
+        private final IStorage storage;
+        private int locked;
+
+        LockingStorage(IStorage storage) {
+            this.storage = storage;
+        }
+
+        synchronized int locked() {
+            return locked;
+        }
+
+        @Override
+        public IRecord fetchSession(String id, String sid) throws StorageException {
+            Semaphore lock = locks.get(id + sid);
+            try {
+                if (!lock.tryAcquire(1, TimeUnit.SECONDS))
+                    throw new StorageException("Timeout when locking Session: " + sid);
+            } catch (InterruptedException e) {
+                throw new StorageException("Interrupted when locking Session: " + sid);
+            }
+            synchronized (this) {
+                locked++;
+            }
+            return new Record(storage.fetchSession(id, sid), lock);
+        }
+
+        @Override
+        public byte[] fetchIdentity(String id) throws StorageException {
+            return storage.fetchIdentity(id);
+        }
+
+        @Override
+        public void insertIdentity(String id, byte[] data) throws StorageException {
+            storage.insertIdentity(id, data);
+        }
+
+        @Override
+        public PreKey[] fetchPrekeys(String id) throws StorageException {
+            return storage.fetchPrekeys(id);
+        }
+
+        @Override
+        public void insertPrekey(String id, int kid, byte[] data) throws StorageException {
+            storage.insertPrekey(id, kid, data);
+        }
+
+        @Override
+        public void purge(String id) throws StorageException {
+            storage.purge(id);
+        }
+
+        private class Record implements IRecord, AutoCloseable {
+            private final IRecord record;
+            private final Semaphore lock;
+            private boolean closed;
+
+            Record(IRecord record, Semaphore lock) {
+                this.record = record;
+                this.lock = lock;
+            }
+
+            @Override
+            public byte[] getData() {
+                return record.getData();
+            }
+
+            @Override
+            public void persist(byte[] data) {
+                record.persist(data);
+                close();
+            }
+
+            @Override
+            public void close() {
+                if (closed)
+                    return;
+                closed = true;
+                synchronized (LockingStorage.this) {
+                    locked--;
+                }
+                lock.release();
+            }
+        }
+    }
+}
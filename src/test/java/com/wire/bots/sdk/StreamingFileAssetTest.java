@@ -0,0 +1,44 @@
+package com.wire.bots.sdk;
+
+import com.waz.model.Messages;
+import com.wire.bots.sdk.assets.StreamingFileAsset;
+import com.wire.bots.sdk.tools.Util;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+
+public class StreamingFileAssetTest {
+    @Test
+    public void testEncryptedStream() throws Exception {
+        byte[] data = new byte[1024 * 1024 + 7];
+        new Random().nextBytes(data);
+        File file = File.createTempFile("asset", ".bin");
+        file.deleteOnExit();
+        Files.write(file.toPath(), data);
+
+        StreamingFileAsset asset = new StreamingFileAsset(file, "application/octet-stream", UUID.randomUUID());
+        asset.setAssetKey("key");
+        asset.setAssetToken("token");
+
+        byte[] encrypted;
+        try (InputStream input = asset.openEncryptedStream()) {
+            encrypted = Util.toByteArray(input);
+        }
+
+        assert encrypted.length == asset.getEncryptedLength();
+        assert Util.calcMd5(encrypted).equals(asset.getMd5());
+
+        Messages.Asset.RemoteData remote = asset.createGenericMsg().getAsset().getUploaded();
+        byte[] sha256 = MessageDigest.getInstance("SHA-256").digest(encrypted);
+        assert Arrays.equals(sha256, remote.getSha256().toByteArray());
+
+        byte[] decrypted = Util.decrypt(remote.getOtrKey().toByteArray(), encrypted);
+        assert Arrays.equals(data, decrypted);
+    }
+}
@@ -0,0 +1,110 @@
+package com.wire.bots.sdk.benchmarks;
+
+import com.wire.bots.cryptobox.IRecord;
+import com.wire.bots.cryptobox.IStorage;
+import com.wire.bots.cryptobox.PreKey;
+import com.wire.bots.cryptobox.StorageException;
+import com.wire.bots.sdk.crypto.CryptoDatabase;
+import com.wire.bots.sdk.crypto.storage.PgStorage;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.nio.file.FileVisitOption;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What BotsResource.newBot does to the storage: a new crypto box, the last prekey and 50 prekeys.
+ * Run the main method with the test classpath. Needs the native cryptobox library and Postgres on localhost
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Threads(8)
+@Fork(1)
+public class BotCreationBenchmark {
+    private static final String DATA = "data/benchmark";
+
+    @Param({"false", "true"})
+    public boolean batched;
+
+    private IStorage storage;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        PgStorage pg = new PgStorage();
+        storage = batched ? pg : new Unbatched(pg);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        Files.walk(Paths.get(DATA), FileVisitOption.FOLLOW_LINKS)
+                .sorted(Comparator.reverseOrder())
+                .map(Path::toFile)
+                .forEach(File::delete);
+    }
+
+    @Benchmark
+    public Object newBot() throws Exception {
+        UUID botId = UUID.randomUUID();
+        try (CryptoDatabase crypto = new CryptoDatabase(botId, storage, DATA + "/" + botId)) {
+            crypto.newLastPreKey();
+            return crypto.newPreKeys(0, 50);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options opt = new OptionsBuilder()
+                .include(BotCreationBenchmark.class.getSimpleName())
+                .build();
+        new Runner(opt).run();
+    }
+
+    // Hides IBatchStorage so that every prekey is a separate insert
+    private static class Unbatched implements IStorage {
+        private final IStorage storage;
+
+        Unbatched(IStorage storage) {
+            this.storage = storage;
+        }
+
+        @Override
+        public IRecord fetchSession(String id, String sid) throws StorageException {
+            return storage.fetchSession(id, sid);
+        }
+
+        @Override
+        public byte[] fetchIdentity(String id) throws StorageException {
+            return storage.fetchIdentity(id);
+        }
+
+        @Override
+        public void insertIdentity(String id, byte[] data) throws StorageException {
+            storage.insertIdentity(id, data);
+        }
+
+        @Override
+        public PreKey[] fetchPrekeys(String id) throws StorageException {
+            return storage.fetchPrekeys(id);
+        }
+
+        @Override
+        public void insertPrekey(String id, int kid, byte[] data) throws StorageException {
+            storage.insertPrekey(id, kid, data);
+        }
+
+        @Override
+        public void purge(String id) throws StorageException {
+            storage.purge(id);
+        }
+    }
+}
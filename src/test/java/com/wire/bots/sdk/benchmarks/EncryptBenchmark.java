@@ -0,0 +1,92 @@
+package com.wire.bots.sdk.benchmarks;
+
+import com.wire.bots.sdk.crypto.CryptoFile;
+import com.wire.bots.sdk.crypto.ParallelEncryption;
+import com.wire.bots.sdk.models.otr.Missing;
+import com.wire.bots.sdk.models.otr.PreKeys;
+import com.wire.bots.sdk.models.otr.Recipients;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.nio.file.FileVisitOption;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encryption of one message for all the devices in a conversation using existing sessions.
+ * Run the main method with the test classpath. Needs the native cryptobox library
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class EncryptBenchmark {
+    private static final String DATA = "benchmark-data";
+
+    @Param({"10", "100", "500"})
+    public int recipients;
+
+    @Param({"false", "true"})
+    public boolean parallel;
+
+    private CryptoFile alice;
+    private Missing devices;
+    private ForkJoinPool pool;
+    private final byte[] content = new byte[1024];
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        alice = new CryptoFile(DATA, UUID.randomUUID());
+        devices = new Missing();
+
+        // Establish a session with every recipient
+        for (int i = 0; i < recipients; i++) {
+            UUID bobId = UUID.randomUUID();
+            String clientId = Integer.toHexString(i);
+            try (CryptoFile bob = new CryptoFile(DATA, bobId)) {
+                PreKeys preKeys = new PreKeys(bob.newPreKeys(0, 1), clientId, bobId);
+                alice.encrypt(preKeys, content);
+            }
+            devices.add(bobId, clientId);
+        }
+
+        if (parallel) {
+            pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+            alice.addParallelEncryption(new ParallelEncryption(pool, 2));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        if (pool != null)
+            pool.shutdown();
+        alice.close();
+
+        Files.walk(Paths.get(DATA), FileVisitOption.FOLLOW_LINKS)
+                .sorted(Comparator.reverseOrder())
+                .map(Path::toFile)
+                .forEach(File::delete);
+    }
+
+    @Benchmark
+    public Recipients encrypt() throws Exception {
+        return alice.encrypt(devices, content);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options opt = new OptionsBuilder()
+                .include(EncryptBenchmark.class.getSimpleName())
+                .build();
+        new Runner(opt).run();
+    }
+}
@@ -0,0 +1,71 @@
+package com.wire.bots.sdk.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.wire.bots.sdk.models.otr.OtrMessage;
+import com.wire.bots.sdk.models.otr.OtrTransport;
+import com.wire.bots.sdk.models.otr.Recipients;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization of one OtrMessage: JSON with Base64 ciphers vs. binary NewOtrMessage. The serialized sizes are
+ * printed in the setup
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class OtrTransportBenchmark {
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    @Param({"10", "100", "500"})
+    public int recipients;
+
+    // Typical Proteus cipher of a short text message
+    @Param({"200"})
+    public int cipherSize;
+
+    private OtrMessage msg;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Random random = new Random(42);
+        Recipients rec = new Recipients();
+        for (int i = 0; i < recipients; i++) {
+            byte[] cipher = new byte[cipherSize];
+            random.nextBytes(cipher);
+            rec.add(UUID.randomUUID(), Long.toHexString(random.nextLong()), cipher);
+        }
+        msg = new OtrMessage("6ff1d5c1d1e1a2b3", rec);
+
+        int json = mapper.writeValueAsBytes(msg).length;
+        int protobuf = OtrTransport.toProtobuf(msg).toByteArray().length;
+        System.out.printf("%nrecipients: %d, json: %d bytes, protobuf: %d bytes (%.0f%%)%n",
+                recipients, json, protobuf, 100.0 * protobuf / json);
+    }
+
+    @Benchmark
+    public byte[] json() throws Exception {
+        return mapper.writeValueAsBytes(msg);
+    }
+
+    @Benchmark
+    public byte[] protobuf() {
+        return OtrTransport.toProtobuf(msg).toByteArray();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options opt = new OptionsBuilder()
+                .include(OtrTransportBenchmark.class.getSimpleName())
+                .build();
+        new Runner(opt).run();
+    }
+}
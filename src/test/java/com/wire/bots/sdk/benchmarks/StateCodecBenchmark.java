@@ -0,0 +1,78 @@
+package com.wire.bots.sdk.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.wire.bots.sdk.server.model.Conversation;
+import com.wire.bots.sdk.server.model.Member;
+import com.wire.bots.sdk.server.model.NewBot;
+import com.wire.bots.sdk.server.model.User;
+import com.wire.bots.sdk.state.NewBotCodec;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of decoding the bot state, paid once per inbound message: legacy JSON vs the binary codec.
+ * Run the main method with the test classpath
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class StateCodecBenchmark {
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Param({"2", "50", "500"})
+    public int members;
+
+    private byte[] json;
+    private byte[] binary;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        NewBot bot = new NewBot();
+        bot.id = UUID.randomUUID();
+        bot.client = "a1b2c3d4e5f6";
+        bot.token = "token_" + UUID.randomUUID();
+        bot.locale = "en";
+        bot.origin = new User();
+        bot.origin.id = UUID.randomUUID();
+        bot.origin.name = "Alice";
+        bot.conversation = new Conversation();
+        bot.conversation.id = UUID.randomUUID();
+        bot.conversation.name = "Team";
+        bot.conversation.members = new ArrayList<>();
+        for (int i = 0; i < members; i++) {
+            Member member = new Member();
+            member.id = UUID.randomUUID();
+            member.status = 0;
+            bot.conversation.members.add(member);
+        }
+
+        json = mapper.writeValueAsBytes(bot);
+        binary = NewBotCodec.encode(bot);
+    }
+
+    @Benchmark
+    public NewBot decodeJson() throws Exception {
+        return mapper.readValue(json, NewBot.class);
+    }
+
+    @Benchmark
+    public NewBot decodeBinary() throws Exception {
+        return NewBotCodec.decode(binary);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options opt = new OptionsBuilder()
+                .include(StateCodecBenchmark.class.getSimpleName())
+                .build();
+        new Runner(opt).run();
+    }
+}
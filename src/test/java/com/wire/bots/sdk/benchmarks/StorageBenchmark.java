@@ -0,0 +1,112 @@
+package com.wire.bots.sdk.benchmarks;
+
+import com.codahale.metrics.MetricRegistry;
+import com.wire.bots.cryptobox.IRecord;
+import com.wire.bots.cryptobox.PreKey;
+import com.wire.bots.sdk.crypto.storage.IBatchStorage;
+import com.wire.bots.sdk.crypto.storage.JdbiStorage;
+import com.wire.bots.sdk.crypto.storage.MVStorage;
+import com.wire.bots.sdk.crypto.storage.RedisStorage;
+import io.dropwizard.db.DataSourceFactory;
+import org.h2.mvstore.MVStore;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.skife.jdbi.v2.DBI;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The crypto storage operations of a running bot: a session update per message, and prekey inserts and reads.
+ * Run the main method with the test classpath. jdbi needs Postgres and redis needs Redis on localhost
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Threads(8)
+@Fork(1)
+public class StorageBenchmark {
+    private static final String FILE = "data/StorageBenchmark.mv";
+    private static final int SESSIONS = 1000;
+
+    @Param({"mvstore", "jdbi", "redis"})
+    public String driver;
+
+    private IBatchStorage storage;
+    private MVStore store;
+    private String id;
+    private byte[] session;
+    private List<PreKey> preKeys;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        switch (driver) {
+            case "mvstore":
+                store = MVStorage.open(FILE);
+                storage = new MVStorage(store);
+                break;
+            case "jdbi":
+                DataSourceFactory dataSourceFactory = new DataSourceFactory();
+                dataSourceFactory.setDriverClass("org.postgresql.Driver");
+                dataSourceFactory.setUrl("jdbc:postgresql://localhost/lithium");
+                storage = new JdbiStorage(new DBI(dataSourceFactory.build(new MetricRegistry(), "StorageBenchmark")));
+                break;
+            default:
+                storage = new RedisStorage("localhost");
+        }
+
+        Random random = new Random();
+        id = UUID.randomUUID().toString();
+        session = new byte[1024];
+        random.nextBytes(session);
+        preKeys = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            byte[] data = new byte[128];
+            random.nextBytes(data);
+            preKeys.add(new PreKey(i, data));
+        }
+        storage.insertPrekeys(id, preKeys);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        storage.purge(id);
+        if (store != null) {
+            MVStorage.close(store);
+            new File(FILE).delete();
+        }
+    }
+
+    @Benchmark
+    public void updateSession() throws Exception {
+        String sid = "" + ThreadLocalRandom.current().nextInt(SESSIONS);
+        IRecord record = storage.fetchSession(id, sid);
+        record.persist(session);
+    }
+
+    @Benchmark
+    public Object fetchPrekeys() throws Exception {
+        return storage.fetchPrekeys(id);
+    }
+
+    @Benchmark
+    public void insertPrekeys() throws Exception {
+        storage.insertPrekeys(UUID.randomUUID().toString(), preKeys);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options opt = new OptionsBuilder()
+                .include(StorageBenchmark.class.getSimpleName())
+                .build();
+        new Runner(opt).run();
+    }
+}
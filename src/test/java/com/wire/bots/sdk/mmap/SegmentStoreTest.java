@@ -0,0 +1,155 @@
+package com.wire.bots.sdk.mmap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.FileVisitOption;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+public class SegmentStoreTest {
+    private String dir;
+
+    @Before
+    public void setUp() {
+        dir = "data/SegmentStoreTest/" + UUID.randomUUID();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Files.walk(Paths.get(dir), FileVisitOption.FOLLOW_LINKS)
+                .sorted(Comparator.reverseOrder())
+                .map(Path::toFile)
+                .forEach(File::delete);
+    }
+
+    @Test
+    public void testPutGetDelete() throws Exception {
+        SegmentStore store = SegmentStore.get(dir, 0);
+
+        store.put("a", new byte[]{1, 2, 3});
+        store.put("pk/1/1", new byte[]{1});
+        store.put("pk/1/2", new byte[]{2});
+        store.put("pk/2/1", new byte[]{3});
+
+        assert Arrays.equals(store.get("a"), new byte[]{1, 2, 3});
+        Map<String, byte[]> scan = store.scan("pk/1/");
+        assert scan.size() == 2;
+
+        store.put("a", new byte[]{4});
+        assert Arrays.equals(store.get("a"), new byte[]{4});
+
+        store.delete("a");
+        assert store.get("a") == null;
+
+        store.deletePrefix("pk/1/");
+        assert store.scan("pk/1/").isEmpty();
+        assert store.get("pk/2/1") != null;
+
+        store.stop();
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        SegmentStore store = new SegmentStore(new File(dir), 4096, 0);
+        int end = 0;
+        for (int i = 0; i < 10; i++) {
+            store.put("key" + i, ("value" + i).getBytes());
+            end += size("key" + i, "value" + i);
+        }
+        store.put("key9", "valueZ".getBytes());
+        store.stop();
+
+        // Torn write: the last record is corrupt
+        try (RandomAccessFile raf = new RandomAccessFile(new File(dir, "seg-00000000.log"), "rw")) {
+            raf.seek(end + size("key9", "") + 1);
+            raf.write('X');
+        }
+
+        store = new SegmentStore(new File(dir), 4096, 0);
+        assert new String(store.get("key9")).equals("value9");
+        for (int i = 0; i < 9; i++)
+            assert new String(store.get("key" + i)).equals("value" + i);
+
+        // The torn record is overwritten by the next write
+        store.put("key10", "value10".getBytes());
+        store.stop();
+
+        store = new SegmentStore(new File(dir), 4096, 0);
+        assert new String(store.get("key10")).equals("value10");
+        assert new String(store.get("key9")).equals("value9");
+        store.stop();
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        SegmentStore store = new SegmentStore(new File(dir), 256, 0);
+
+        // The first segment stays mostly live so it is never compacted
+        store.put("gone", "value-00".getBytes());
+        for (int i = 0; i < 9; i++)
+            store.put("live" + i, String.format("value-%02d", i).getBytes());
+
+        // The delete lands in the second segment, followed by segments of overwritten values
+        store.delete("gone");
+        for (int round = 0; round < 20; round++) {
+            for (int k = 0; k < 4; k++)
+                store.put("churn" + k, String.format("value-%02d", round).getBytes());
+        }
+
+        int before = segments();
+        store.compact();
+        assert segments() < before;
+        assert new File(dir, "seg-00000000.log").exists();
+        assert !new File(dir, "seg-00000001.log").exists();
+        store.stop();
+
+        // The delete was carried over: the value in the first segment does not come back
+        store = new SegmentStore(new File(dir), 256, 0);
+        assert store.get("gone") == null;
+        for (int i = 0; i < 9; i++)
+            assert new String(store.get("live" + i)).equals(String.format("value-%02d", i));
+        for (int k = 0; k < 4; k++)
+            assert new String(store.get("churn" + k)).equals("value-19");
+        store.stop();
+    }
+
+    /**
+     * Header (crc, key length, value length), key and value
+     */
+    private static int size(String key, String value) {
+        return 12 + key.length() + value.length();
+    }
+
+    private int segments() {
+        String[] files = new File(dir).list((d, name) -> name.startsWith("seg-"));
+        return files != null ? files.length : 0;
+    }
+
+    @Test
+    public void testKeys() throws Exception {
+        SegmentStore store = SegmentStore.get(dir, 1000);
+        for (int i = 0; i < 5; i++)
+            store.put("st/" + i, new byte[]{(byte) i});
+        store.put("su/0", new byte[]{0});
+
+        List<String> page = store.keys("st/", null, 2);
+        assert page.equals(Arrays.asList("st/0", "st/1"));
+        page = store.keys("st/", page.get(1), 2);
+        assert page.equals(Arrays.asList("st/2", "st/3"));
+        page = store.keys("st/", page.get(1), 2);
+        assert page.equals(Collections.singletonList("st/4"));
+
+        store.stop();
+    }
+}
@@ -0,0 +1,124 @@
+package com.wire.bots.sdk.server;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.wire.bots.sdk.server.model.Payload;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.UUID;
+
+public class InboundQueueTest {
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    public void testMessageId() throws Exception {
+        UUID botId = UUID.randomUUID();
+        Payload payload = payload("cipher");
+
+        assert InboundQueue.messageId(botId, payload).equals(InboundQueue.messageId(botId, payload("cipher")));
+        assert !InboundQueue.messageId(botId, payload).equals(InboundQueue.messageId(botId, payload("other")));
+        assert !InboundQueue.messageId(botId, payload).equals(InboundQueue.messageId(UUID.randomUUID(), payload));
+    }
+
+    @Test
+    public void testRedelivery() throws Exception {
+        List<Runnable> tasks = new ArrayList<>();
+        MemJournal journal = new MemJournal();
+        InboundQueue queue = new InboundQueue(new KeyedExecutor("redelivery", tasks::add, 10, new MetricRegistry()),
+                journal, new MetricRegistry());
+        List<UUID> handled = new ArrayList<>();
+        queue.addHandler((botId, messageId, payload) -> handled.add(messageId));
+
+        UUID botId = UUID.randomUUID();
+        UUID messageId = InboundQueue.messageId(botId, payload("cipher"));
+        assert queue.offer(botId, messageId, payload("cipher"));
+        assert queue.offer(botId, InboundQueue.messageId(botId, payload("cipher")), payload("cipher"));
+        assert journal.rows.size() == 1;
+
+        tasks.forEach(Runnable::run);
+        assert handled.size() == 1;
+        assert handled.get(0).equals(messageId);
+        assert journal.rows.isEmpty();
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        MemJournal journal = new MemJournal();
+        UUID botId = UUID.randomUUID();
+        UUID first = UUID.randomUUID();
+        UUID second = UUID.randomUUID();
+        journal.insert(first, botId, mapper.writeValueAsString(payload("1")));
+        journal.insert(second, botId, mapper.writeValueAsString(payload("2")));
+
+        InboundQueue queue = new InboundQueue(new KeyedExecutor("replay", Runnable::run, 10, new MetricRegistry()),
+                journal, new MetricRegistry());
+        List<String> handled = new ArrayList<>();
+        queue.addHandler((bot, messageId, payload) -> handled.add(payload.data.text));
+
+        queue.start();
+        assert handled.size() == 2;
+        assert handled.get(0).equals("1");
+        assert handled.get(1).equals("2");
+        assert journal.rows.isEmpty();
+    }
+
+    @Test
+    public void testRejected() throws Exception {
+        MemJournal journal = new MemJournal();
+        InboundQueue queue = new InboundQueue(new KeyedExecutor("rejected", r -> {
+        }, 1, new MetricRegistry()), journal, new MetricRegistry());
+        queue.addHandler((botId, messageId, payload) -> {
+        });
+
+        UUID botId = UUID.randomUUID();
+        assert queue.offer(botId, UUID.randomUUID(), payload("1"));
+        assert !queue.offer(botId, UUID.randomUUID(), payload("2"));
+        // Only the accepted payload stays journaled
+        assert journal.rows.size() == 1;
+    }
+
+    static Payload payload(String text) {
+        Payload payload = new Payload();
+        payload.type = "conversation.otr-message-add";
+        payload.from = new UUID(1, 2);
+        payload.convId = new UUID(3, 4);
+        payload.time = "2020-01-01T00:00:00.000Z";
+        payload.data = new Payload.Data();
+        payload.data.sender = "1234";
+        payload.data.recipient = "5678";
+        payload.data.text = text;
+        return payload;
+    }
+
+    static class MemJournal implements InboundDAO {
+        final LinkedHashMap<UUID, Inbound> rows = new LinkedHashMap<>();
+        boolean broken;
+
+        @Override
+        public synchronized int insert(UUID id, UUID botId, String payload) {
+            if (broken)
+                throw new IllegalStateException("Journal is down");
+            if (rows.containsKey(id))
+                return 0;
+            Inbound inbound = new Inbound();
+            inbound.id = id;
+            inbound.botId = botId;
+            inbound.payload = payload;
+            rows.put(id, inbound);
+            return 1;
+        }
+
+        @Override
+        public synchronized List<Inbound> getAll() {
+            return new ArrayList<>(rows.values());
+        }
+
+        @Override
+        public synchronized int delete(UUID id) {
+            return rows.remove(id) != null ? 1 : 0;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.wire.bots.sdk.server;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Test;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class KeyedExecutorTest {
+    private static final int BOTS = 2000;
+    private static final int MESSAGES = 50;
+
+    @Test
+    public void testOrderPerKey() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(16);
+        KeyedExecutor executor = new KeyedExecutor("test", pool, BOTS * MESSAGES, new MetricRegistry());
+
+        UUID[] bots = new UUID[BOTS];
+        for (int i = 0; i < BOTS; i++)
+            bots[i] = UUID.randomUUID();
+
+        ConcurrentHashMap<UUID, AtomicInteger> last = new ConcurrentHashMap<>();
+        ConcurrentHashMap<UUID, AtomicBoolean> running = new ConcurrentHashMap<>();
+        AtomicInteger errors = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(BOTS * MESSAGES);
+
+        // Interleave the bots like the Backend would
+        for (int seq = 0; seq < MESSAGES; seq++) {
+            for (UUID botId : bots) {
+                final int expected = seq;
+                executor.execute(botId, () -> {
+                    AtomicBoolean busy = running.computeIfAbsent(botId, k -> new AtomicBoolean());
+                    if (!busy.compareAndSet(false, true))
+                        errors.incrementAndGet();   // two messages of the same bot at the same time
+
+                    AtomicInteger counter = last.computeIfAbsent(botId, k -> new AtomicInteger());
+                    if (counter.getAndIncrement() != expected)
+                        errors.incrementAndGet();   // out of order
+
+                    busy.set(false);
+                    done.countDown();
+                });
+            }
+        }
+
+        assert done.await(60, TimeUnit.SECONDS);
+        assert errors.get() == 0;
+        for (UUID botId : bots)
+            assert last.get(botId).get() == MESSAGES;
+        assert executor.pending() == 0;
+
+        pool.shutdown();
+    }
+
+    @Test
+    public void testRejectWhenFull() throws Exception {
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        KeyedExecutor executor = new KeyedExecutor("full", pool, 2, new MetricRegistry());
+
+        CountDownLatch block = new CountDownLatch(1);
+        UUID botId = UUID.randomUUID();
+        executor.execute(botId, () -> {
+            try {
+                block.await();
+            } catch (InterruptedException ignore) {
+            }
+        });
+        executor.execute(botId, () -> {
+        });
+
+        boolean rejected = false;
+        try {
+            executor.execute(UUID.randomUUID(), () -> {
+            });
+        } catch (RejectedExecutionException e) {
+            rejected = true;
+        }
+        assert rejected;
+
+        block.countDown();
+        pool.shutdown();
+        assert pool.awaitTermination(10, TimeUnit.SECONDS);
+        assert executor.pending() == 0;
+    }
+
+    @Test
+    public void testPoolRejects() throws Exception {
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        AtomicBoolean reject = new AtomicBoolean(true);
+        KeyedExecutor executor = new KeyedExecutor("rejecting", r -> {
+            if (reject.get())
+                throw new RejectedExecutionException("Pool is shutting down");
+            pool.execute(r);
+        }, 10, new MetricRegistry());
+
+        UUID botId = UUID.randomUUID();
+        boolean rejected = false;
+        try {
+            executor.execute(botId, () -> {
+            });
+        } catch (RejectedExecutionException e) {
+            rejected = true;
+        }
+        assert rejected;
+        assert executor.pending() == 0;
+
+        // The key is not stuck: the next task is scheduled and runs
+        reject.set(false);
+        CountDownLatch done = new CountDownLatch(1);
+        executor.execute(botId, done::countDown);
+        assert done.await(10, TimeUnit.SECONDS);
+
+        pool.shutdown();
+        assert pool.awaitTermination(10, TimeUnit.SECONDS);
+        assert executor.pending() == 0;
+    }
+
+    @Test
+    public void testParallelism() throws Exception {
+        final int threads = 8;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        KeyedExecutor executor = new KeyedExecutor("parallelism", pool, threads * 2, new MetricRegistry());
+
+        // Every task waits until the first task of every key is running: only passes if the keys run in parallel
+        CountDownLatch started = new CountDownLatch(threads);
+        CountDownLatch done = new CountDownLatch(threads * 2);
+        AtomicInteger stalled = new AtomicInteger();
+        for (int i = 0; i < threads; i++) {
+            UUID botId = UUID.randomUUID();
+            for (int j = 0; j < 2; j++) {
+                executor.execute(botId, () -> {
+                    started.countDown();
+                    try {
+                        if (!started.await(10, TimeUnit.SECONDS))
+                            stalled.incrementAndGet();
+                    } catch (InterruptedException ignore) {
+                    }
+                    done.countDown();
+                });
+            }
+        }
+
+        assert done.await(30, TimeUnit.SECONDS);
+        assert stalled.get() == 0;
+        pool.shutdown();
+    }
+}
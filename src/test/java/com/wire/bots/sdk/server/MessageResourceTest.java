@@ -0,0 +1,48 @@
+package com.wire.bots.sdk.server;
+
+import com.codahale.metrics.MetricRegistry;
+import com.wire.bots.sdk.MessageHandlerBase;
+import com.wire.bots.sdk.server.resources.MessageResource;
+import io.dropwizard.util.Duration;
+import org.junit.Test;
+
+import javax.ws.rs.core.Response;
+import java.util.UUID;
+
+import static com.wire.bots.sdk.server.InboundQueueTest.payload;
+
+public class MessageResourceTest {
+    @Test
+    public void testAsyncResponses() throws Exception {
+        KeyedExecutor executor = new KeyedExecutor("responses", r -> {
+        }, 1, new MetricRegistry());
+        MessageResource resource = new MessageResource(new MessageHandlerBase() {
+        }, null, executor, new InboundQueue(executor, null, new MetricRegistry()));
+
+        UUID botId = UUID.randomUUID();
+        Response accepted = resource.newMessage(botId, null, payload("1"));
+        assert accepted.getStatus() == 200;
+        Response full = resource.newMessage(botId, null, payload("2"));
+        assert full.getStatus() == 429;
+
+        InboundQueueTest.MemJournal journal = new InboundQueueTest.MemJournal();
+        journal.broken = true;
+        KeyedExecutor another = new KeyedExecutor("broken", r -> {
+        }, 1, new MetricRegistry());
+        MessageResource broken = new MessageResource(new MessageHandlerBase() {
+        }, null, another, new InboundQueue(another, journal, new MetricRegistry()));
+        assert broken.newMessage(botId, null, payload("1")).getStatus() == 503;
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        // The key is busy: its payload never gets a worker
+        KeyedExecutor executor = new KeyedExecutor("timeout", r -> {
+        }, 10, new MetricRegistry());
+        MessageResource resource = new MessageResource(new MessageHandlerBase() {
+        }, null, executor, null, Duration.milliseconds(50));
+
+        Response response = resource.newMessage(UUID.randomUUID(), null, payload("1"));
+        assert response.getStatus() == 503;
+    }
+}